@@ -0,0 +1,47 @@
+package edu.cwru.sepia.agent;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * QKernel.score on the Vector API, in lanes of the CPU's preferred width with a scalar tail.
+ *
+ * Every lane is a separate multiply and add rather than a fused multiply-add, so the Q-values are identical
+ * to those of the scalar loop. The class needs jdk.incubator.vector to compile and to load, so it lives in
+ * its own source root, src-vector, outside the project's build. QKernel only loads it by name once it found
+ * the module, and a build of src alone runs the scalar loop. To add it, compile it against the classes
+ * of src, e.g. with the Eclipse output folder bin, and run with the module:
+ *
+ * javac -nowarn --add-modules jdk.incubator.vector -cp bin -d bin src-vector/edu/cwru/sepia/agent/VectorQKernel.java
+ * java --add-modules jdk.incubator.vector -cp bin:src/Sepia.jar ...
+ *
+ * -nowarn silences the incubating module warning, which javac 17 always prints for the module.
+ */
+final class VectorQKernel implements QKernel.Kernel {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public void score(double[] weights, int numFeatures, double[] features, int stride, int from, int to, double[] out) {
+         int bound = from + SPECIES.loopBound(to - from);
+         double first = weights[0];
+         int i = from;
+         for(; i < bound; i += SPECIES.length()) {
+              DoubleVector.fromArray(SPECIES, features, i).mul(first).intoArray(out, i);
+         }
+         for(; i < to; i++) {
+              out[i] = first * features[i];
+         }
+         for(int f = 1; f < numFeatures; f++) {
+              double weight = weights[f];
+              int base = f * stride;
+              for(i = from; i < bound; i += SPECIES.length()) {
+                   DoubleVector.fromArray(SPECIES, features, base + i).mul(weight)
+                             .add(DoubleVector.fromArray(SPECIES, out, i)).intoArray(out, i);
+              }
+              for(; i < to; i++) {
+                   out[i] += weight * features[base + i];
+              }
+         }
+    }
+}
@@ -0,0 +1,297 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.action.ActionFeedback;
+import edu.cwru.sepia.action.ActionResult;
+import edu.cwru.sepia.environment.model.history.DamageLog;
+import edu.cwru.sepia.environment.model.history.DeathLog;
+import edu.cwru.sepia.environment.model.history.History;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Index over the damage, death and command feedback logs of a single turn.
+ *
+ * The index is built once per turn with one pass over the logs and then answers the questions the agent's
+ * features and rewards ask in O(1): who attacked whom, how many hits a unit took, how much damage a unit
+ * dealt and received, how many units each player lost and whose commands completed or failed. All storage
+ * is primitive arrays indexed by unit id that are reused between turns, so rebuilding does not allocate once
+ * the arrays have grown to the largest unit id on the map.
+ */
+public class CombatLogIndex implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int NO_TURN = Integer.MIN_VALUE;
+
+    private int indexedTurn = NO_TURN;
+    private transient History.HistoryView indexedHistory;
+
+    /**
+     * Per unit id: number of damage logs naming the unit as defender, damage dealt and damage received.
+     */
+    private int[] hitsTaken = new int[0];
+    private int[] damageDealt = new int[0];
+    private int[] damageReceived = new int[0];
+    /**
+     * Unit ids whose per-unit counters are non-zero, so clearing costs O(logs) rather than O(units).
+     */
+    private int[] touchedUnits = new int[16];
+    private int numTouchedUnits = 0;
+
+    /**
+     * Open addressing set of (attacker, defender) edges packed into longs. EMPTY_EDGE marks a free slot.
+     */
+    private static final long EMPTY_EDGE = -1L;
+    private long[] attackEdges = emptyEdgeTable(16);
+
+    private int[] deathsByController = new int[2];
+    private int[] deadUnits = new int[8];
+    private int numDeadUnits = 0;
+
+    private int numDamageLogs = 0;
+    private boolean commandFinished = false;
+
+    private static final byte NO_FEEDBACK = 0;
+    private static final byte COMPLETED = 1;
+    private static final byte FAILED = 2;
+    /**
+     * Per unit id: how the unit's command ended on the indexed turn, NO_FEEDBACK while it is still running.
+     * Anything that is neither INCOMPLETE nor COMPLETED counts as FAILED.
+     */
+    private byte[] commandStatus = new byte[0];
+    private int[] finishedUnits = new int[8];
+    private int numFinishedUnits = 0;
+
+    /**
+     * Makes sure the index describes the given turn of the given history. Rebuilding only happens the first
+     * time a turn is requested, every later call in the same turn is a couple of comparisons.
+     *
+     * @param historyView History of the episode
+     * @param turn The turn whose logs should be indexed. Negative turns produce an empty index.
+     * @param playernum Player whose command feedback is checked for finished or failed actions
+     */
+    public void update(History.HistoryView historyView, int turn, int playernum) {
+         if(isIndexed(historyView, turn)) {
+              return;
+         }
+         clear();
+         indexedTurn = turn;
+         indexedHistory = historyView;
+         if(turn < 0) {
+              return;
+         }
+
+         List<DamageLog> damageLogs = historyView.getDamageLogs(turn);
+         numDamageLogs = damageLogs.size();
+         ensureEdgeCapacity(numDamageLogs);
+         for(int i = 0; i < damageLogs.size(); i++) {
+              DamageLog damageLog = damageLogs.get(i);
+              int attacker = damageLog.getAttackerID();
+              int defender = damageLog.getDefenderID();
+              ensureUnitCapacity(Math.max(attacker, defender));
+              touch(attacker);
+              touch(defender);
+              hitsTaken[defender]++;
+              damageDealt[attacker] += damageLog.getDamage();
+              damageReceived[defender] += damageLog.getDamage();
+              addEdge(attacker, defender);
+         }
+
+         List<DeathLog> deathLogs = historyView.getDeathLogs(turn);
+         for(int i = 0; i < deathLogs.size(); i++) {
+              DeathLog deathLog = deathLogs.get(i);
+              int controller = deathLog.getController();
+              if(controller >= deathsByController.length) {
+                   deathsByController = Arrays.copyOf(deathsByController, controller + 1);
+              }
+              deathsByController[controller]++;
+              if(numDeadUnits == deadUnits.length) {
+                   deadUnits = Arrays.copyOf(deadUnits, deadUnits.length * 2);
+              }
+              deadUnits[numDeadUnits++] = deathLog.getDeadUnitID();
+         }
+
+         for(ActionResult result : historyView.getCommandFeedback(playernum, turn).values()) {
+              ActionFeedback feedback = result.getFeedback();
+              if(feedback != ActionFeedback.INCOMPLETE) {
+                   commandFinished = true;
+                   int unitId = result.getAction().getUnitId();
+                   if(unitId < 0) {
+                        continue;
+                   }
+                   if(unitId >= commandStatus.length) {
+                        commandStatus = Arrays.copyOf(commandStatus, Math.max(unitId + 1, commandStatus.length * 2));
+                   }
+                   if(commandStatus[unitId] == NO_FEEDBACK) {
+                        if(numFinishedUnits == finishedUnits.length) {
+                             finishedUnits = Arrays.copyOf(finishedUnits, finishedUnits.length * 2);
+                        }
+                        finishedUnits[numFinishedUnits++] = unitId;
+                   }
+                   commandStatus[unitId] = feedback == ActionFeedback.COMPLETED ? COMPLETED : FAILED;
+              }
+         }
+    }
+
+    /**
+     * @return true if the index currently describes the given turn of the given history
+     */
+    public boolean isIndexed(History.HistoryView historyView, int turn) {
+         return turn == indexedTurn && historyView == indexedHistory;
+    }
+
+    /**
+     * @return true if attackerId damaged defenderId on the indexed turn
+     */
+    public boolean attacked(int attackerId, int defenderId) {
+         if(attackerId < 0 || defenderId < 0) {
+              return false;
+         }
+         long edge = packEdge(attackerId, defenderId);
+         int mask = attackEdges.length - 1;
+         for(int slot = hashEdge(edge) & mask; attackEdges[slot] != EMPTY_EDGE; slot = (slot + 1) & mask) {
+              if(attackEdges[slot] == edge) {
+                   return true;
+              }
+         }
+         return false;
+    }
+
+    /**
+     * @return Number of damage logs with unitId as the defender
+     */
+    public int getHitsTaken(int unitId) {
+         return unitId >= 0 && unitId < hitsTaken.length ? hitsTaken[unitId] : 0;
+    }
+
+    /**
+     * @return Total damage dealt by unitId
+     */
+    public int getDamageDealt(int unitId) {
+         return unitId >= 0 && unitId < damageDealt.length ? damageDealt[unitId] : 0;
+    }
+
+    /**
+     * @return Total damage received by unitId
+     */
+    public int getDamageReceived(int unitId) {
+         return unitId >= 0 && unitId < damageReceived.length ? damageReceived[unitId] : 0;
+    }
+
+    /**
+     * @return Number of units belonging to controller that died
+     */
+    public int getDeaths(int controller) {
+         return controller >= 0 && controller < deathsByController.length ? deathsByController[controller] : 0;
+    }
+
+    public int getNumDeadUnits() {
+         return numDeadUnits;
+    }
+
+    public int getDeadUnit(int i) {
+         return deadUnits[i];
+    }
+
+    public int getNumDamageLogs() {
+         return numDamageLogs;
+    }
+
+    /**
+     * @return true if any command of the indexed player completed or failed
+     */
+    public boolean isCommandFinished() {
+         return commandFinished;
+    }
+
+    /**
+     * @return true if the unit's command completed on the indexed turn
+     */
+    public boolean isCommandCompleted(int unitId) {
+         return unitId >= 0 && unitId < commandStatus.length && commandStatus[unitId] == COMPLETED;
+    }
+
+    /**
+     * @return true if the unit's command ended on the indexed turn without completing, e.g. FAILED or INVALIDUNIT
+     */
+    public boolean isCommandFailed(int unitId) {
+         return unitId >= 0 && unitId < commandStatus.length && commandStatus[unitId] == FAILED;
+    }
+
+    private void clear() {
+         for(int i = 0; i < numFinishedUnits; i++) {
+              commandStatus[finishedUnits[i]] = NO_FEEDBACK;
+         }
+         numFinishedUnits = 0;
+         for(int i = 0; i < numTouchedUnits; i++) {
+              int unit = touchedUnits[i];
+              hitsTaken[unit] = 0;
+              damageDealt[unit] = 0;
+              damageReceived[unit] = 0;
+         }
+         numTouchedUnits = 0;
+         if(numDamageLogs > 0) {
+              Arrays.fill(attackEdges, EMPTY_EDGE);
+         }
+         Arrays.fill(deathsByController, 0);
+         numDeadUnits = 0;
+         numDamageLogs = 0;
+         commandFinished = false;
+    }
+
+    private void touch(int unitId) {
+         if(hitsTaken[unitId] != 0 || damageDealt[unitId] != 0 || damageReceived[unitId] != 0) {
+              return;
+         }
+         if(numTouchedUnits == touchedUnits.length) {
+              touchedUnits = Arrays.copyOf(touchedUnits, touchedUnits.length * 2);
+         }
+         touchedUnits[numTouchedUnits++] = unitId;
+    }
+
+    private void ensureUnitCapacity(int unitId) {
+         if(unitId < hitsTaken.length) {
+              return;
+         }
+         int length = Math.max(unitId + 1, hitsTaken.length * 2);
+         hitsTaken = Arrays.copyOf(hitsTaken, length);
+         damageDealt = Arrays.copyOf(damageDealt, length);
+         damageReceived = Arrays.copyOf(damageReceived, length);
+    }
+
+    private void ensureEdgeCapacity(int numEdges) {
+         if(numEdges * 2 > attackEdges.length) {
+              attackEdges = emptyEdgeTable(Integer.highestOneBit(numEdges * 4));
+         }
+    }
+
+    private void addEdge(int attackerId, int defenderId) {
+         long edge = packEdge(attackerId, defenderId);
+         int mask = attackEdges.length - 1;
+         int slot = hashEdge(edge) & mask;
+         while(attackEdges[slot] != EMPTY_EDGE) {
+              if(attackEdges[slot] == edge) {
+                   return;
+              }
+              slot = (slot + 1) & mask;
+         }
+         attackEdges[slot] = edge;
+    }
+
+    private static long packEdge(int attackerId, int defenderId) {
+         return ((long) attackerId << 32) | (defenderId & 0xffffffffL);
+    }
+
+    private static int hashEdge(long edge) {
+         long h = edge * 0x9E3779B97F4A7C15L;
+         return (int) (h ^ (h >>> 32));
+    }
+
+    private static long[] emptyEdgeTable(int size) {
+         long[] table = new long[size];
+         Arrays.fill(table, EMPTY_EDGE);
+         return table;
+    }
+}
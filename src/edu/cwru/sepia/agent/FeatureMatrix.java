@@ -0,0 +1,507 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Unit;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Dense (footman x enemy x feature) tensor for one decision event.
+ *
+ * The agent fills the tensor once per event from the current state and then every consumer, weight update,
+ * greedy selection and epsilon selection, reads Q-values and features from it instead of recomputing them.
+ * Unit positions and hit points are looked up once per unit when the matrix is reset, and Q-values for all
+ * pairs come from a single matrix-vector product in {@link #score(double[])}. Buffers only grow, so an
+ * event with no more units than a previous one does not allocate.
+ *
+ * Features are stored feature-major: feature f of the pair at {@link #offset(int, int)} is at
+ * offset + f * {@link #getStride()}. Scoring then streams through one contiguous column per feature, see
+ * QKernel.score, which keeps the cost per pair flat as the number of features grows.
+ *
+ * In large battles the agent can restrict each row to a few candidate defenders with
+ * {@link #setCandidates(int, int[], int)}. Only candidate pairs then need features, {@link #score(double[])}
+ * only scores them and the argmax only considers them, while {@link #scoreAll(double[])} still scores
+ * every pair for comparison.
+ *
+ * After {@link #useSparse(int)} pairs hold the table indexes of SparseFeatures instead, numActive per pair
+ * starting at {@link #activeOffset(int, int)} of {@link #getActive()}, and a pair's Q-value is the sum of the
+ * weights at its indexes. Everything else, rows, candidates and argmax, works the same.
+ */
+public class FeatureMatrix implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int numFeatures;
+
+    private transient State.StateView stateView;
+    private transient History.HistoryView historyView;
+    /**
+     * Turn the matrix was built on. SEPIA hands a player the same view objects on every turn of an episode,
+     * so the views alone do not tell turns apart.
+     */
+    private int turnNumber = -1;
+
+    private int numAttackers = 0;
+    private int numDefenders = 0;
+    private int[] attackerIds = new int[0];
+    private int[] defenderIds = new int[0];
+    /**
+     * Row of each attacker and column of each defender, indexed by unit id. -1 for units that are not rows,
+     * or columns, of the matrix.
+     */
+    private int[] rowByUnit = new int[0];
+    private int[] colByUnit = new int[0];
+
+    /**
+     * Per attacker and per defender unit data, fetched once per event. Missing units have present == false.
+     */
+    private int[] attackerX = new int[0];
+    private int[] attackerY = new int[0];
+    private int[] attackerHP = new int[0];
+    private boolean[] attackerPresent = new boolean[0];
+    private int[] defenderX = new int[0];
+    private int[] defenderY = new int[0];
+    private int[] defenderHP = new int[0];
+    private boolean[] defenderPresent = new boolean[0];
+
+    private double[] features = new double[0];
+    private int stride = 0;
+    private double[] qValues = new double[0];
+    private double[] maxQ = new double[0];
+    private int[] bestDefender = new int[0];
+
+    /**
+     * Candidate columns of each row in ascending order, numDefenders slots per row. Only used while pruned.
+     */
+    private boolean pruned = false;
+    private int[] candidateCols = new int[0];
+    private int[] numCandidates = new int[0];
+
+    /**
+     * Table indexes per pair when sparse, 0 for dense features.
+     */
+    private int numActive = 0;
+    private int[] active = new int[0];
+
+    public FeatureMatrix(int numFeatures) {
+         this.numFeatures = numFeatures;
+    }
+
+    /**
+     * Switches the matrix to sparse features with numActive table indexes per pair. The dense feature buffer
+     * is no longer allocated, so getFeatures, copyFeatures and copyRow must not be used afterwards.
+     */
+    public void useSparse(int numActive) {
+         this.numActive = numActive;
+         features = new double[0];
+         stride = 0;
+    }
+
+    /**
+     * @return true after useSparse
+     */
+    public boolean isSparse() {
+         return numActive > 0;
+    }
+
+    /**
+     * Sizes the matrix for the given units and caches their positions and hit points. Features are left for
+     * the caller to write through {@link #getFeatures()} and {@link #offset(int, int)}.
+     *
+     * @param stateView State the features will be computed from
+     * @param historyView History the features will be computed from
+     * @param attackers Friendly footmen, one row each in list order
+     * @param defenders Enemy footmen, one column each in list order
+     */
+    public void reset(State.StateView stateView, History.HistoryView historyView, List<Integer> attackers, List<Integer> defenders) {
+         this.stateView = stateView;
+         this.historyView = historyView;
+         this.turnNumber = stateView.getTurnNumber();
+         for(int row = 0; row < numAttackers; row++) {
+              rowByUnit[attackerIds[row]] = -1;
+         }
+         for(int col = 0; col < numDefenders; col++) {
+              colByUnit[defenderIds[col]] = -1;
+         }
+         numAttackers = attackers.size();
+         numDefenders = defenders.size();
+         pruned = false;
+         ensureCapacity();
+
+         for(int row = 0; row < numAttackers; row++) {
+              int unitId = attackers.get(row);
+              attackerIds[row] = unitId;
+              if(unitId >= rowByUnit.length) {
+                   int oldLength = rowByUnit.length;
+                   rowByUnit = Arrays.copyOf(rowByUnit, Math.max(unitId + 1, oldLength * 2));
+                   Arrays.fill(rowByUnit, oldLength, rowByUnit.length, -1);
+              }
+              rowByUnit[unitId] = row;
+              Unit.UnitView unit = stateView.getUnit(unitId);
+              attackerPresent[row] = unit != null;
+              if(unit != null) {
+                   attackerX[row] = unit.getXPosition();
+                   attackerY[row] = unit.getYPosition();
+                   attackerHP[row] = unit.getHP();
+              }
+         }
+         for(int col = 0; col < numDefenders; col++) {
+              int unitId = defenders.get(col);
+              defenderIds[col] = unitId;
+              if(unitId >= colByUnit.length) {
+                   int oldLength = colByUnit.length;
+                   colByUnit = Arrays.copyOf(colByUnit, Math.max(unitId + 1, oldLength * 2));
+                   Arrays.fill(colByUnit, oldLength, colByUnit.length, -1);
+              }
+              colByUnit[unitId] = col;
+              Unit.UnitView unit = stateView.getUnit(unitId);
+              defenderPresent[col] = unit != null;
+              if(unit != null) {
+                   defenderX[col] = unit.getXPosition();
+                   defenderY[col] = unit.getYPosition();
+                   defenderHP[col] = unit.getHP();
+              }
+         }
+    }
+
+    /**
+     * Computes the Q-value of every (attacker, defender) pair and the argmax of every row, or with candidates
+     * set only of the candidate pairs and the argmax over them.
+     * Ties keep the first defender in column order and NaN Q-values are never selected.
+     *
+     * @param weights Q-function weights, at least numFeatures long
+     */
+    public void score(double[] weights) {
+         scoreRows(weights, 0, numAttackers);
+    }
+
+    /**
+     * Does what {@link #score(double[])} does for the rows from (inclusive) to to (exclusive) only. Rows are
+     * independent, so disjoint ranges can be scored by different threads with the same result.
+     *
+     * @param weights Q-function weights, at least numFeatures long
+     */
+    public void scoreRows(double[] weights, int from, int to) {
+         if(!pruned) {
+              scoreAllRows(weights, from, to);
+              return;
+         }
+         for(int row = from; row < to; row++) {
+              double best = Double.NEGATIVE_INFINITY;
+              int bestCol = -1;
+              int first = row * numDefenders;
+              for(int i = 0; i < numCandidates[row]; i++) {
+                   int col = candidateCols[first + i];
+                   int pair = first + col;
+                   double q = 0;
+                   if(numActive > 0) {
+                        q = QKernel.sparseDot(weights, active, pair * numActive, numActive);
+                   } else {
+                        for(int f = 0; f < numFeatures; f++) {
+                             q += weights[f] * features[f * stride + pair];
+                        }
+                   }
+                   qValues[pair] = q;
+                   if(q > best) {
+                        best = q;
+                        bestCol = col;
+                   }
+              }
+              maxQ[row] = best;
+              bestDefender[row] = bestCol < 0 ? -1 : defenderIds[bestCol];
+         }
+    }
+
+    /**
+     * Computes the Q-value of every pair and the argmax of every row, ignoring candidates. Every pair's
+     * features must have been written.
+     *
+     * @param weights Q-function weights, at least numFeatures long
+     */
+    public void scoreAll(double[] weights) {
+         scoreAllRows(weights, 0, numAttackers);
+    }
+
+    private void scoreAllRows(double[] weights, int from, int to) {
+         if(numActive > 0) {
+              for(int pair = from * numDefenders; pair < to * numDefenders; pair++) {
+                   qValues[pair] = QKernel.sparseDot(weights, active, pair * numActive, numActive);
+              }
+         } else {
+              QKernel.score(weights, numFeatures, features, stride, from * numDefenders, to * numDefenders, qValues);
+         }
+         for(int row = from; row < to; row++) {
+              double best = Double.NEGATIVE_INFINITY;
+              int bestCol = -1;
+              for(int col = 0; col < numDefenders; col++) {
+                   double q = qValues[row * numDefenders + col];
+                   if(q > best) {
+                        best = q;
+                        bestCol = col;
+                   }
+              }
+              maxQ[row] = best;
+              bestDefender[row] = bestCol < 0 ? -1 : defenderIds[bestCol];
+         }
+    }
+
+    /**
+     * Restricts a row to the given defender columns until the next reset. Rows without candidates set have none.
+     *
+     * @param cols Candidate columns, in any order
+     * @param count Number of candidates in cols
+     */
+    public void setCandidates(int row, int[] cols, int count) {
+         if(!pruned) {
+              pruned = true;
+              Arrays.fill(numCandidates, 0, numAttackers, 0);
+         }
+         int first = row * numDefenders;
+         System.arraycopy(cols, 0, candidateCols, first, count);
+         Arrays.sort(candidateCols, first, first + count);
+         numCandidates[row] = count;
+    }
+
+    /**
+     * Rebuilds the grid over the present defenders of this event, a defender is indexed by its column.
+     */
+    public void indexDefenders(SpatialGrid grid, int xExtent, int yExtent) {
+         grid.rebuild(xExtent, yExtent, defenderX, defenderY, defenderPresent, numDefenders);
+    }
+
+    /**
+     * @return true if the pair's features were written this event, i.e. it is a candidate of the row
+     */
+    public boolean hasFeatures(int row, int col) {
+         if(!pruned) {
+              return true;
+         }
+         int first = row * numDefenders;
+         return Arrays.binarySearch(candidateCols, first, first + numCandidates[row], col) >= 0;
+    }
+
+    /**
+     * @return true if rows are restricted to candidate defenders
+     */
+    public boolean isPruned() {
+         return pruned;
+    }
+
+    /**
+     * @return Number of defenders the row considers, every defender unless pruned
+     */
+    public int getNumCandidates(int row) {
+         return pruned ? numCandidates[row] : numDefenders;
+    }
+
+    /**
+     * @return Column of the row's i-th candidate, in ascending column order
+     */
+    public int getCandidate(int row, int i) {
+         return pruned ? candidateCols[row * numDefenders + i] : i;
+    }
+
+    /**
+     * @return true if the matrix was last reset from exactly these views on their current turn
+     */
+    public boolean isBuiltFor(State.StateView stateView, History.HistoryView historyView) {
+         return this.stateView == stateView && this.historyView == historyView
+                   && turnNumber == stateView.getTurnNumber();
+    }
+
+    /**
+     * @return Row of the attacker or -1 if the unit is not part of the matrix
+     */
+    public int rowOf(int attackerId) {
+         return attackerId >= 0 && attackerId < rowByUnit.length ? rowByUnit[attackerId] : -1;
+    }
+
+    /**
+     * @return Column of the defender or -1 if the unit is not part of the matrix
+     */
+    public int colOf(int defenderId) {
+         return defenderId >= 0 && defenderId < colByUnit.length ? colByUnit[defenderId] : -1;
+    }
+
+    /**
+     * @return Index into {@link #getFeatures()} of the first feature of the pair, the others follow every
+     * {@link #getStride()} entries
+     */
+    public int offset(int row, int col) {
+         return row * numDefenders + col;
+    }
+
+    /**
+     * @return Distance in {@link #getFeatures()} between consecutive features of one pair
+     */
+    public int getStride() {
+         return stride;
+    }
+
+    /**
+     * @return The backing feature-major buffer. Only pairs below numAttackers * numDefenders are valid.
+     */
+    public double[] getFeatures() {
+         return features;
+    }
+
+    /**
+     * @return The backing buffer of table indexes while sparse. Only pairs below numAttackers * numDefenders are
+     * valid.
+     */
+    public int[] getActive() {
+         return active;
+    }
+
+    /**
+     * @return Index into {@link #getActive()} of the pair's first table index, the others follow it
+     */
+    public int activeOffset(int row, int col) {
+         return offset(row, col) * numActive;
+    }
+
+    /**
+     * Copies the table indexes of one pair into out starting at outOffset.
+     */
+    public void copyActive(int row, int col, int[] out, int outOffset) {
+         System.arraycopy(active, activeOffset(row, col), out, outOffset, numActive);
+    }
+
+    /**
+     * Copies the features of one pair into out.
+     */
+    public void copyFeatures(int row, int col, double[] out) {
+         copyFeatures(row, col, out, 0);
+    }
+
+    /**
+     * Copies the features of one pair into out starting at outOffset.
+     */
+    public void copyFeatures(int row, int col, double[] out, int outOffset) {
+         int pair = offset(row, col);
+         for(int f = 0; f < numFeatures; f++) {
+              out[outOffset + f] = features[f * stride + pair];
+         }
+    }
+
+    /**
+     * Copies the features of the row's candidate pairs into out, pair by pair: the i-th candidate's features
+     * start at i * numFeatures. This is the layout ReplayBuffer stores candidates in.
+     *
+     * @return Number of candidates copied, every defender unless pruned
+     */
+    public int copyRow(int row, double[] out) {
+         int first = offset(row, 0);
+         int count = getNumCandidates(row);
+         for(int f = 0; f < numFeatures; f++) {
+              int base = f * stride + first;
+              for(int i = 0; i < count; i++) {
+                   out[i * numFeatures + f] = features[base + getCandidate(row, i)];
+              }
+         }
+         return count;
+    }
+
+    public double getQ(int row, int col) {
+         return qValues[row * numDefenders + col];
+    }
+
+    public double getMaxQ(int row) {
+         return maxQ[row];
+    }
+
+    /**
+     * @return Unit id of the best defender for the row, -1 if there is none
+     */
+    public int getBestDefender(int row) {
+         return bestDefender[row];
+    }
+
+    public int getNumFeatures() {
+         return numFeatures;
+    }
+
+    public int getNumAttackers() {
+         return numAttackers;
+    }
+
+    public int getNumDefenders() {
+         return numDefenders;
+    }
+
+    public int getAttackerId(int row) {
+         return attackerIds[row];
+    }
+
+    public int getDefenderId(int col) {
+         return defenderIds[col];
+    }
+
+    public boolean isAttackerPresent(int row) {
+         return attackerPresent[row];
+    }
+
+    public int getAttackerX(int row) {
+         return attackerX[row];
+    }
+
+    public int getAttackerY(int row) {
+         return attackerY[row];
+    }
+
+    public int getAttackerHP(int row) {
+         return attackerHP[row];
+    }
+
+    public boolean isDefenderPresent(int col) {
+         return defenderPresent[col];
+    }
+
+    public int getDefenderX(int col) {
+         return defenderX[col];
+    }
+
+    public int getDefenderY(int col) {
+         return defenderY[col];
+    }
+
+    public int getDefenderHP(int col) {
+         return defenderHP[col];
+    }
+
+    private void ensureCapacity() {
+         if(attackerIds.length < numAttackers) {
+              attackerIds = new int[numAttackers];
+              attackerX = new int[numAttackers];
+              attackerY = new int[numAttackers];
+              attackerHP = new int[numAttackers];
+              attackerPresent = new boolean[numAttackers];
+              maxQ = new double[numAttackers];
+              bestDefender = new int[numAttackers];
+              numCandidates = new int[numAttackers];
+         }
+         if(defenderIds.length < numDefenders) {
+              defenderIds = new int[numDefenders];
+              defenderX = new int[numDefenders];
+              defenderY = new int[numDefenders];
+              defenderHP = new int[numDefenders];
+              defenderPresent = new boolean[numDefenders];
+         }
+         int pairs = numAttackers * numDefenders;
+         if(qValues.length < pairs) {
+              qValues = new double[pairs];
+              candidateCols = new int[pairs];
+         }
+         if(numActive > 0) {
+              if(active.length < pairs * numActive) {
+                   active = new int[pairs * numActive];
+              }
+         } else if(stride < pairs) {
+              stride = pairs;
+              features = new double[pairs * numFeatures];
+         }
+    }
+}
@@ -0,0 +1,90 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+
+/**
+ * Fixed memory histogram of non-negative long values, typically nanoseconds.
+ *
+ * Buckets are log-linear in the style of HdrHistogram: values below SUB_BUCKETS get one bucket each, and
+ * every power of two above that is split into SUB_BUCKETS / 2 equal buckets, so a value is recorded with a
+ * relative error of at most 2 / SUB_BUCKETS (about 6%) over the whole long range. Recording is a shift and
+ * an increment, never allocates, and the counts array is under 8KB.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+
+    private final long[] counts = new long[SUB_BUCKETS + (64 - SUB_BITS) * HALF];
+    private long totalCount = 0;
+    private long sum = 0;
+    private long max = 0;
+
+    /**
+     * @param value Value to count, negative values are counted as 0
+     */
+    public void record(long value) {
+         long v = Math.max(value, 0);
+         counts[indexOf(v)]++;
+         totalCount++;
+         sum += v;
+         max = Math.max(max, v);
+    }
+
+    /**
+     * @param percentile Between 0 and 100
+     * @return Upper bound of the bucket holding the value at the percentile, 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+         if(totalCount == 0) {
+              return 0;
+         }
+         long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * totalCount));
+         long seen = 0;
+         for(int i = 0; i < counts.length; i++) {
+              seen += counts[i];
+              if(seen >= rank) {
+                   return Math.min(upperBound(i), max);
+              }
+         }
+         return max;
+    }
+
+    public long getCount() {
+         return totalCount;
+    }
+
+    public long getMax() {
+         return max;
+    }
+
+    public double getMean() {
+         return totalCount == 0 ? 0 : (double) sum / totalCount;
+    }
+
+    public void reset() {
+         Arrays.fill(counts, 0);
+         totalCount = 0;
+         sum = 0;
+         max = 0;
+    }
+
+    private static int indexOf(long value) {
+         if(value < SUB_BUCKETS) {
+              return (int) value;
+         }
+         int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BITS - 1);
+         int sub = (int) (value >>> shift);
+         return SUB_BUCKETS + (shift - 1) * HALF + (sub - HALF);
+    }
+
+    private static long upperBound(int index) {
+         if(index < SUB_BUCKETS) {
+              return index;
+         }
+         int shift = (index - SUB_BUCKETS) / HALF + 1;
+         long sub = (index - SUB_BUCKETS) % HALF + HALF;
+         return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,135 @@
+package edu.cwru.sepia.agent;
+
+import java.io.Serializable;
+
+/**
+ * Gradient descent rule for the Q-function weights.
+ *
+ * The agent sums the gradient of every transition of an event into one vector, averages it and calls step
+ * once, so an event is one batched update whatever the number of footmen. Implementations keep their state in
+ * primitive arrays sized on construction and never allocate in step. The gradient is the direction the agent's
+ * own rule descends along, tdTerm * features for the online update of updateWeights and
+ * -(r + gamma * max Q(s',a') - Q(s,a)) * features for replay, so the optimizers only replace how far and how
+ * smoothly the weights move, not where to.
+ *
+ * sgd      - w -= rate * g
+ * momentum - v = beta1 * v + g, w -= rate * v
+ * rmsprop  - s = beta2 * s + (1 - beta2) * g^2, w -= rate * g / (sqrt(s) + EPSILON)
+ * adam     - m and s as above for beta1 and beta2, bias corrected, w -= rate * m' / (sqrt(s') + EPSILON)
+ */
+public interface Optimizer extends Serializable {
+
+    /**
+     * Added to the root of the second moment so the first steps do not divide by zero.
+     */
+    double EPSILON = 1e-8;
+
+    /**
+     * Moves weights along -gradient.
+     *
+     * @param weights Updated in place
+     * @param gradient Averaged gradient of the event, as long as weights. Not modified.
+     * @param rate Learning rate of this step
+     */
+    void step(double[] weights, double[] gradient, double rate);
+
+    /**
+     * @param name sgd, momentum, rmsprop or adam
+     * @param numWeights Length of the weight vector
+     * @param beta1 Decay of the first moment, momentum and adam
+     * @param beta2 Decay of the second moment, rmsprop and adam
+     * @return A new optimizer with zeroed state
+     */
+    static Optimizer create(String name, int numWeights, double beta1, double beta2) {
+         switch(name) {
+              case "sgd":
+                   return new Sgd();
+              case "momentum":
+                   return new Momentum(numWeights, beta1);
+              case "rmsprop":
+                   return new RmsProp(numWeights, beta2);
+              case "adam":
+                   return new Adam(numWeights, beta1, beta2);
+              default:
+                   throw new IllegalArgumentException("Unknown optimizer " + name);
+         }
+    }
+
+    final class Sgd implements Optimizer {
+         private static final long serialVersionUID = 1L;
+
+         @Override
+         public void step(double[] weights, double[] gradient, double rate) {
+              for(int i = 0; i < weights.length; i++) {
+                   weights[i] -= rate * gradient[i];
+              }
+         }
+    }
+
+    final class Momentum implements Optimizer {
+         private static final long serialVersionUID = 1L;
+         private final double beta1;
+         private final double[] velocity;
+
+         Momentum(int numWeights, double beta1) {
+              this.beta1 = beta1;
+              velocity = new double[numWeights];
+         }
+
+         @Override
+         public void step(double[] weights, double[] gradient, double rate) {
+              for(int i = 0; i < weights.length; i++) {
+                   velocity[i] = beta1 * velocity[i] + gradient[i];
+                   weights[i] -= rate * velocity[i];
+              }
+         }
+    }
+
+    final class RmsProp implements Optimizer {
+         private static final long serialVersionUID = 1L;
+         private final double beta2;
+         private final double[] meanSquare;
+
+         RmsProp(int numWeights, double beta2) {
+              this.beta2 = beta2;
+              meanSquare = new double[numWeights];
+         }
+
+         @Override
+         public void step(double[] weights, double[] gradient, double rate) {
+              for(int i = 0; i < weights.length; i++) {
+                   meanSquare[i] = beta2 * meanSquare[i] + (1 - beta2) * gradient[i] * gradient[i];
+                   weights[i] -= rate * gradient[i] / (Math.sqrt(meanSquare[i]) + EPSILON);
+              }
+         }
+    }
+
+    final class Adam implements Optimizer {
+         private static final long serialVersionUID = 1L;
+         private final double beta1;
+         private final double beta2;
+         private final double[] mean;
+         private final double[] meanSquare;
+         private double beta1Power = 1;
+         private double beta2Power = 1;
+
+         Adam(int numWeights, double beta1, double beta2) {
+              this.beta1 = beta1;
+              this.beta2 = beta2;
+              mean = new double[numWeights];
+              meanSquare = new double[numWeights];
+         }
+
+         @Override
+         public void step(double[] weights, double[] gradient, double rate) {
+              beta1Power *= beta1;
+              beta2Power *= beta2;
+              for(int i = 0; i < weights.length; i++) {
+                   mean[i] = beta1 * mean[i] + (1 - beta1) * gradient[i];
+                   meanSquare[i] = beta2 * meanSquare[i] + (1 - beta2) * gradient[i] * gradient[i];
+                   double corrected = mean[i] / (1 - beta1Power);
+                   weights[i] -= rate * corrected / (Math.sqrt(meanSquare[i] / (1 - beta2Power)) + EPSILON);
+              }
+         }
+    }
+}
@@ -0,0 +1,102 @@
+package edu.cwru.sepia.agent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs a loop over [0, count) on a work-stealing ForkJoinPool, or inline when the loop is short.
+ *
+ * The range is halved until a piece is at most a grain of indexes and the halves are forked, so a worker that
+ * runs out of pieces steals from the others. A body must only write what its indexes own, e.g. rows of the
+ * feature matrix or per-footman slots, and keep any scratch it needs local to the call. Results are then the
+ * same whichever thread ran which piece, and any reduction over the indexes is left to the caller, in index
+ * order, so it is deterministic as well.
+ *
+ * Loops with the same number of threads share one pool per JVM, so the frozen copies a ConcurrentEvaluator
+ * makes or the workers of a ParallelTrainingRunner do not each start their own threads. The pools' threads are
+ * daemons and never keep the JVM alive.
+ */
+final class ParallelLoop {
+
+    /**
+     * The loop body for the indexes from (inclusive) to to (exclusive).
+     */
+    interface Body {
+         void run(int from, int to);
+    }
+
+    /**
+     * Pieces per worker thread a loop is split into, so stealing can even out uneven pieces.
+     */
+    private static final int PIECES_PER_THREAD = 4;
+
+    private static final Map<Integer, ForkJoinPool> POOLS = new HashMap<>();
+
+    private final ForkJoinPool pool;
+    private final int threshold;
+
+    /**
+     * @param threads Worker threads, at least 2
+     * @param threshold Smallest count that is run on the pool, shorter loops run inline on the caller
+     */
+    ParallelLoop(int threads, int threshold) {
+         pool = sharedPool(threads);
+         this.threshold = threshold;
+    }
+
+    private static synchronized ForkJoinPool sharedPool(int threads) {
+         ForkJoinPool pool = POOLS.get(threads);
+         if(pool == null) {
+              pool = new ForkJoinPool(threads);
+              POOLS.put(threads, pool);
+         }
+         return pool;
+    }
+
+    /**
+     * @return true if a loop over count indexes is run on the pool
+     */
+    boolean isParallel(int count) {
+         return count >= threshold && count > 1;
+    }
+
+    /**
+     * Runs body over [0, count) and returns once every index is done.
+     */
+    void run(int count, Body body) {
+         if(!isParallel(count)) {
+              body.run(0, count);
+              return;
+         }
+         int grain = Math.max(1, count / (pool.getParallelism() * PIECES_PER_THREAD));
+         pool.invoke(new Piece(body, 0, count, grain));
+    }
+
+    private static final class Piece extends RecursiveAction {
+         private static final long serialVersionUID = 1L;
+
+         private final Body body;
+         private final int from;
+         private final int to;
+         private final int grain;
+
+         Piece(Body body, int from, int to, int grain) {
+              this.body = body;
+              this.from = from;
+              this.to = to;
+              this.grain = grain;
+         }
+
+         @Override
+         protected void compute() {
+              if(to - from <= grain) {
+                   body.run(from, to);
+                   return;
+              }
+              int middle = (from + to) >>> 1;
+              invokeAll(new Piece(body, from, middle, grain), new Piece(body, middle, to, grain));
+         }
+    }
+}
@@ -0,0 +1,151 @@
+package edu.cwru.sepia.agent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Worker side of the parameter server protocol, see edu.cwru.sepia.experiment.ParameterServer.
+ *
+ * The worker learns into its own weight vector as usual. A sync pushes the difference between its weights and
+ * the weights it last pulled, and the reply carries the server's weights after the push, which replace the
+ * worker's. Every push names the server version its base was pulled at. The server drops pushes whose base is
+ * more than its staleness bound behind, the worker then just continues from the fresh weights.
+ *
+ * Messages are big-endian. A request is a type byte followed by:
+ * HELLO  int numFeatures, long schemaHash, double[numFeatures] initial weights
+ * PUSH   long baseVersion, double[numFeatures] delta
+ * PULL   nothing
+ * TEST   int episode, double averageReward
+ * HELLO, PUSH and PULL are answered with a status byte, long version and double[numFeatures] weights, TEST
+ * with a status byte. A STATUS_ERROR reply is followed by a UTF message and the connection is closed.
+ */
+public class ParameterClient implements Closeable {
+
+    public static final byte HELLO = 1;
+    public static final byte PUSH = 2;
+    public static final byte PULL = 3;
+    public static final byte TEST = 4;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_STALE = 1;
+    public static final byte STATUS_ERROR = 2;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final double[] base;
+    private long version;
+    private int pushes = 0;
+    private int stalePushes = 0;
+
+    /**
+     * Connects and registers with the server. The first worker's weights become the server's initial weights,
+     * every worker then continues from the server's.
+     *
+     * @param featureNames Names of the features, must match the server's
+     * @param weights Initial weights, overwritten with the server's
+     * @throws IOException if the server can not be reached or refuses the worker
+     */
+    public ParameterClient(String host, int port, String[] featureNames, double[] weights) throws IOException {
+         socket = new Socket(host, port);
+         socket.setTcpNoDelay(true);
+         in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+         out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+         base = new double[weights.length];
+         out.writeByte(HELLO);
+         out.writeInt(weights.length);
+         out.writeLong(WeightCheckpointer.schemaHash(featureNames));
+         writeVector(weights);
+         out.flush();
+         readWeights(weights);
+    }
+
+    /**
+     * Pushes the weights' change since the last sync and replaces them with the server's.
+     *
+     * @param weights The worker's weights, updated in place
+     * @return false if the server dropped the push as too stale
+     */
+    public boolean sync(double[] weights) throws IOException {
+         out.writeByte(PUSH);
+         out.writeLong(version);
+         for(int i = 0; i < weights.length; i++) {
+              out.writeDouble(weights[i] - base[i]);
+         }
+         out.flush();
+         pushes++;
+         boolean accepted = readWeights(weights);
+         if(!accepted) {
+              stalePushes++;
+         }
+         return accepted;
+    }
+
+    /**
+     * Replaces the weights with the server's without pushing anything.
+     */
+    public void pull(double[] weights) throws IOException {
+         out.writeByte(PULL);
+         out.flush();
+         readWeights(weights);
+    }
+
+    /**
+     * Reports a finished test session, which the server checkpoints with its current weights.
+     */
+    public void reportTest(int episode, double averageReward) throws IOException {
+         out.writeByte(TEST);
+         out.writeInt(episode);
+         out.writeDouble(averageReward);
+         out.flush();
+         readStatus();
+    }
+
+    public int getPushes() {
+         return pushes;
+    }
+
+    public int getStalePushes() {
+         return stalePushes;
+    }
+
+    @Override
+    public void close() throws IOException {
+         socket.close();
+    }
+
+    /**
+     * Reads a weights reply into weights and base.
+     * @return true unless the server reported the push as stale
+     */
+    private boolean readWeights(double[] weights) throws IOException {
+         byte status = readStatus();
+         version = in.readLong();
+         for(int i = 0; i < weights.length; i++) {
+              weights[i] = in.readDouble();
+         }
+         System.arraycopy(weights, 0, base, 0, weights.length);
+         return status == STATUS_OK;
+    }
+
+    private byte readStatus() throws IOException {
+         byte status = in.readByte();
+         if(status == STATUS_ERROR) {
+              String message = in.readUTF();
+              socket.close();
+              throw new IOException("Parameter server refused the request: " + message);
+         }
+         return status;
+    }
+
+    private void writeVector(double[] vector) throws IOException {
+         for(double value : vector) {
+              out.writeDouble(value);
+         }
+    }
+}
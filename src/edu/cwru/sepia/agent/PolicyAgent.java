@@ -0,0 +1,365 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Unit;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Greedy play with fixed weights for deployment and test play, without RLAgent's learning bookkeeping.
+ *
+ * The agent plays the policy a frozen RLAgent with the same dense weights plays, the same events, the same
+ * targets and the same tie breaking, but keeps no last targets, computes no rewards, holds no view past its
+ * turn and has no episode schedule. Per turn it indexes the previous turn's logs once, copies every enemy's
+ * position, hit points and hit count term into primitive arrays and then picks each footman's target with
+ * one loop over them.
+ *
+ * Every middleStep has a latency budget. When the clock passes it while footmen are still being scored, the
+ * remaining footmen attack their nearest enemy by Chebyshev distance instead. Turns over the budget and
+ * fallback decisions are counted, reported after every episode that had any and available through the
+ * getters, next to a histogram of the middleStep latency.
+ *
+ * Agent arguments are key=value:
+ * weights=S        best, the highest scoring checkpoint in RLAgent.CHECKPOINT_DIR or else agent_weights/weights.txt,
+ *                  the default, or the path of a checkpoint file or a text weights file
+ * budgetMicros=N   latency budget of one middleStep in microseconds, defaults to DEFAULT_BUDGET_MICROS
+ *
+ * Only dense weights are supported. A sparse feature table is played by a frozen RLAgent.
+ */
+public class PolicyAgent extends Agent implements UnitRosterAware {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final long DEFAULT_BUDGET_MICROS = 1000;
+
+    private final double[] weights;
+    private final long budgetNanos;
+
+    private final CombatLogIndex logs = new CombatLogIndex();
+    /**
+     * Living footmen and enemies in the order RLAgent keeps them, which decides ties.
+     */
+    private int[] footmen = new int[0];
+    private int numFootmen = 0;
+    private int[] enemies = new int[0];
+    private int numEnemies = 0;
+    /**
+     * Per enemy data of the current turn. enemyFocus is the weighted hit count feature, the same for every
+     * footman.
+     */
+    private int[] enemyX = new int[0];
+    private int[] enemyY = new int[0];
+    private int[] enemyHP = new int[0];
+    private boolean[] enemyPresent = new boolean[0];
+    private double[] enemyFocus = new double[0];
+    private transient int[] rosterFriendly;
+    private transient int[] rosterEnemy;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private long overBudgetTurns = 0;
+    private long fallbackDecisions = 0;
+    private long episodeOverBudgetTurns = 0;
+    private long episodeFallbackDecisions = 0;
+
+    public PolicyAgent(int playernum, String[] args) {
+        super(playernum);
+        String source = "best";
+        long budgetMicros = DEFAULT_BUDGET_MICROS;
+        for (String option : args) {
+            int split = option.indexOf('=');
+            if (split < 0) {
+                throw new IllegalArgumentException("Expected key=value agent argument, got " + option);
+            }
+            String key = option.substring(0, split);
+            String value = option.substring(split + 1);
+            switch (key) {
+                case "weights":
+                    source = value;
+                    break;
+                case "budgetMicros":
+                    budgetMicros = Long.parseLong(value);
+                    if (budgetMicros < 1) {
+                        throw new IllegalArgumentException("budgetMicros must be at least 1, got " + value);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown agent argument " + key);
+            }
+        }
+        try {
+            weights = checkWeights(loadWeights(source));
+        } catch (IOException ex) {
+            throw new IllegalStateException("Failed to load weights from " + source + ". Reason: " + ex.getMessage(), ex);
+        }
+        budgetNanos = budgetMicros * 1000;
+    }
+
+    /**
+     * @param weights Dense weights, RLAgent.NUM_FEATURES of them, not copied
+     * @param budgetNanos Latency budget of one middleStep
+     */
+    public PolicyAgent(int playernum, double[] weights, long budgetNanos) {
+        super(playernum);
+        this.weights = checkWeights(weights);
+        this.budgetNanos = budgetNanos;
+    }
+
+    /**
+     * @param source best, a checkpoint file or a text weights file, see the class comment
+     */
+    public static double[] loadWeights(String source) throws IOException {
+        if (source.equals("best")) {
+            WeightCheckpointer.Checkpoint checkpoint = WeightCheckpointer.loadBest(Paths.get(RLAgent.CHECKPOINT_DIR),
+                    RLAgent.FEATURE_NAMES);
+            if (checkpoint != null) {
+                return checkpoint.weights;
+            }
+            source = "agent_weights/weights.txt";
+        }
+        Path path = Paths.get(source);
+        if (source.endsWith(WeightCheckpointer.SUFFIX)) {
+            return WeightCheckpointer.load(path, RLAgent.FEATURE_NAMES).weights;
+        }
+        List<String> lines = Files.readAllLines(path);
+        double[] weights = new double[lines.size()];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = Double.parseDouble(lines.get(i));
+        }
+        return weights;
+    }
+
+    private static double[] checkWeights(double[] weights) {
+        if (weights.length != RLAgent.NUM_FEATURES) {
+            throw new IllegalArgumentException("Expected " + RLAgent.NUM_FEATURES + " dense weights, got "
+                    + weights.length);
+        }
+        return weights;
+    }
+
+    @Override
+    public void setUnitRoster(int[] friendlyUnits, int[] enemyUnits) {
+        rosterFriendly = friendlyUnits;
+        rosterEnemy = enemyUnits;
+    }
+
+    @Override
+    public Map<Integer, Action> initialStep(State.StateView stateView, History.HistoryView historyView) {
+        if (rosterFriendly != null) {
+            footmen = rosterFriendly.clone();
+            enemies = rosterEnemy.clone();
+            rosterFriendly = null;
+            rosterEnemy = null;
+        } else {
+            footmen = footmenOf(stateView, playernum);
+            enemies = footmenOf(stateView, RLAgent.ENEMY_PLAYERNUM);
+        }
+        numFootmen = footmen.length;
+        numEnemies = enemies.length;
+        if (enemyX.length < numEnemies) {
+            enemyX = new int[numEnemies];
+            enemyY = new int[numEnemies];
+            enemyHP = new int[numEnemies];
+            enemyPresent = new boolean[numEnemies];
+            enemyFocus = new double[numEnemies];
+        }
+        episodeOverBudgetTurns = 0;
+        episodeFallbackDecisions = 0;
+        return middleStep(stateView, historyView);
+    }
+
+    /**
+     * Footmen of a player in state view order, the order RLAgent finds them in.
+     */
+    private static int[] footmenOf(State.StateView stateView, int player) {
+        List<Integer> unitIds = stateView.getUnitIds(player);
+        int[] units = new int[unitIds.size()];
+        int count = 0;
+        for (Integer unitId : unitIds) {
+            if (stateView.getUnit(unitId).getTemplateView().getName().equalsIgnoreCase("footman")) {
+                units[count++] = unitId;
+            }
+        }
+        return count == units.length ? units : Arrays.copyOf(units, count);
+    }
+
+    @Override
+    public Map<Integer, Action> middleStep(State.StateView stateView, History.HistoryView historyView) {
+        long start = System.nanoTime();
+        int lastTurnNumber = stateView.getTurnNumber() - 1;
+        logs.update(historyView, lastTurnNumber, playernum);
+        Map<Integer, Action> actions = new HashMap<>();
+        boolean event = lastTurnNumber < 0 || logs.getNumDeadUnits() > 0 || logs.getNumDamageLogs() > 0
+                || logs.isCommandFinished();
+        if (event) {
+            removeDead();
+        }
+        if (event && numFootmen > 0) {
+            prepareEnemies(stateView, lastTurnNumber);
+            boolean fallback = false;
+            for (int f = 0; f < numFootmen; f++) {
+                int footman = footmen[f];
+                Unit.UnitView unit = stateView.getUnit(footman);
+                int target;
+                if (fallback) {
+                    target = nearestEnemy(unit);
+                    fallbackDecisions++;
+                    episodeFallbackDecisions++;
+                } else {
+                    target = bestEnemy(footman, unit, lastTurnNumber);
+                    fallback = System.nanoTime() - start > budgetNanos;
+                }
+                actions.put(footman, Action.createCompoundAttack(footman, target));
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        latency.record(nanos);
+        if (nanos > budgetNanos) {
+            overBudgetTurns++;
+            episodeOverBudgetTurns++;
+        }
+        return actions;
+    }
+
+    /**
+     * Drops the units that died in the previous turn, keeping the order of the others.
+     */
+    private void removeDead() {
+        for (int d = 0; d < logs.getNumDeadUnits(); d++) {
+            int deadUnit = logs.getDeadUnit(d);
+            numFootmen = remove(footmen, numFootmen, deadUnit);
+            numEnemies = remove(enemies, numEnemies, deadUnit);
+        }
+    }
+
+    private static int remove(int[] units, int count, int unitId) {
+        for (int i = 0; i < count; i++) {
+            if (units[i] == unitId) {
+                System.arraycopy(units, i + 1, units, i, count - i - 1);
+                return count - 1;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Fetches every enemy once and computes the hit count term, which does not depend on the footman.
+     */
+    private void prepareEnemies(State.StateView stateView, int lastTurnNumber) {
+        for (int e = 0; e < numEnemies; e++) {
+            Unit.UnitView enemy = stateView.getUnit(enemies[e]);
+            enemyPresent[e] = enemy != null;
+            if (enemy != null) {
+                enemyX[e] = enemy.getXPosition();
+                enemyY[e] = enemy.getYPosition();
+                enemyHP[e] = enemy.getHP();
+            }
+            double hits = lastTurnNumber < 1 ? 0 : logs.getHitsTaken(enemies[e]) / numFootmen;
+            enemyFocus[e] = weights[3] * hits;
+        }
+    }
+
+    /**
+     * The argmax RLAgent computes, summed in the same order so the Q-values are bit for bit the same. Ties keep
+     * the first enemy and NaN Q-values are never selected.
+     *
+     * @return The enemy with the highest Q-value, -1 if there is none
+     */
+    private int bestEnemy(int footman, Unit.UnitView unit, int lastTurnNumber) {
+        boolean present = unit != null;
+        int x = present ? unit.getXPosition() : 0;
+        int y = present ? unit.getYPosition() : 0;
+        int hp = present ? unit.getHP() : 0;
+        boolean logsRead = lastTurnNumber >= 1;
+        double best = Double.NEGATIVE_INFINITY;
+        int bestEnemy = -1;
+        for (int e = 0; e < numEnemies; e++) {
+            boolean pair = present && enemyPresent[e];
+            double q = weights[0];
+            q += weights[1] * (pair ? RLAgent.getInverseDistance(x, y, enemyX[e], enemyY[e]) : -1);
+            q += weights[2] * (pair ? RLAgent.getHitpointRatio(hp, enemyHP[e]) : -1);
+            q += enemyFocus[e];
+            q += weights[4] * (logsRead && logs.attacked(enemies[e], footman) ? 1 : 0);
+            if (q > best) {
+                best = q;
+                bestEnemy = enemies[e];
+            }
+        }
+        return bestEnemy;
+    }
+
+    /**
+     * @return The present enemy closest to the unit, the first one on ties or if the unit is gone, -1 if there
+     * is none
+     */
+    private int nearestEnemy(Unit.UnitView unit) {
+        int nearest = -1;
+        int nearestDistance = Integer.MAX_VALUE;
+        for (int e = 0; e < numEnemies; e++) {
+            if (!enemyPresent[e]) {
+                continue;
+            }
+            int distance = unit == null ? 0
+                    : Math.max(Math.abs(enemyX[e] - unit.getXPosition()), Math.abs(enemyY[e] - unit.getYPosition()));
+            if (distance < nearestDistance) {
+                nearest = enemies[e];
+                nearestDistance = distance;
+            }
+        }
+        return nearest;
+    }
+
+    @Override
+    public void terminalStep(State.StateView stateView, History.HistoryView historyView) {
+        if (episodeOverBudgetTurns > 0) {
+            System.out.println(String.format("Policy went over its %dus budget on %d turns this episode, "
+                    + "%d decisions fell back to the nearest enemy.", budgetNanos / 1000, episodeOverBudgetTurns,
+                    episodeFallbackDecisions));
+        }
+    }
+
+    /**
+     * @return Turns whose middleStep took longer than the budget, over every episode played
+     */
+    public long getOverBudgetTurns() {
+        return overBudgetTurns;
+    }
+
+    /**
+     * @return Footman decisions made by the nearest enemy fallback, over every episode played
+     */
+    public long getFallbackDecisions() {
+        return fallbackDecisions;
+    }
+
+    /**
+     * @return Latency of every middleStep in nanoseconds, over every episode played
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public double[] getWeights() {
+        return weights;
+    }
+
+    @Override
+    public void savePlayerData(OutputStream outputStream) {
+
+    }
+
+    @Override
+    public void loadPlayerData(InputStream inputStream) {
+
+    }
+}
@@ -0,0 +1,121 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+
+/**
+ * Linear Q-value kernels over feature vectors.
+ *
+ * score works on a structure-of-arrays layout, feature f of candidate i at features[f * stride + i], and
+ * computes every candidate's Q-value with one pass per feature over contiguous memory. Its inner loop is a
+ * plain multiply-add over arrays with no dependency between iterations, the shape HotSpot's C2 compiler
+ * turns into SIMD instructions of whatever width the CPU has, and runs as scalar code where it can not.
+ * When VectorQKernel, in the optional src-vector source root, was compiled and the JVM runs with
+ * --add-modules jdk.incubator.vector, score uses it instead, the same loop written against the Vector API,
+ * which does not depend on the JIT recognising it. The choice is made once
+ * when the class is initialised, scoreScalar is always the plain loop, and both give identical results.
+ * dot is the per-candidate array-of-structures path kept for single vectors, sparseDot the sum of the
+ * weights a pair of SparseFeatures activates.
+ */
+public final class QKernel {
+
+    /**
+     * The Vector API kernel, null when jdk.incubator.vector is not in the boot layer
+     */
+    private static final Kernel VECTOR = loadVectorKernel();
+
+    private QKernel() {
+    }
+
+    /**
+     * A feature-major scoring loop, see score.
+     */
+    interface Kernel {
+         void score(double[] weights, int numFeatures, double[] features, int stride, int from, int to, double[] out);
+    }
+
+    private static Kernel loadVectorKernel() {
+         if(!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+              return null;
+         }
+         try {
+              //by name, so this class loads where VectorQKernel was not compiled or the module is missing
+              return (Kernel) Class.forName("edu.cwru.sepia.agent.VectorQKernel").getDeclaredConstructor().newInstance();
+         } catch(ReflectiveOperationException | LinkageError ex) {
+              return null;
+         }
+    }
+
+    /**
+     * @return Whether score runs the Vector API kernel rather than the scalar loop
+     */
+    public static boolean isVectorized() {
+         return VECTOR != null;
+    }
+
+    /**
+     * out[i] = sum over f of weights[f] * features[f * stride + i], for i below count.
+     *
+     * @param weights Q-function weights, at least numFeatures long
+     * @param numFeatures Features per candidate
+     * @param features Feature-major buffer, at least numFeatures * stride long
+     * @param stride Distance between consecutive features of one candidate, at least count
+     * @param count Number of candidates
+     * @param out Receives the Q-values, at least count long
+     */
+    public static void score(double[] weights, int numFeatures, double[] features, int stride, int count, double[] out) {
+         score(weights, numFeatures, features, stride, 0, count, out);
+    }
+
+    /**
+     * The same for the candidates from (inclusive) to to (exclusive) only. Every out[i] is computed exactly as
+     * by the full range, so a range can be split between threads.
+     */
+    public static void score(double[] weights, int numFeatures, double[] features, int stride, int from, int to, double[] out) {
+         if(numFeatures == 0) {
+              Arrays.fill(out, from, to, 0);
+         } else if(VECTOR != null) {
+              VECTOR.score(weights, numFeatures, features, stride, from, to, out);
+         } else {
+              scoreScalar(weights, numFeatures, features, stride, from, to, out);
+         }
+    }
+
+    /**
+     * The scalar loop of score, whichever kernel score uses. numFeatures must be at least 1.
+     */
+    public static void scoreScalar(double[] weights, int numFeatures, double[] features, int stride, int from, int to, double[] out) {
+         double first = weights[0];
+         for(int i = from; i < to; i++) {
+              out[i] = first * features[i];
+         }
+         for(int f = 1; f < numFeatures; f++) {
+              double weight = weights[f];
+              int base = f * stride;
+              for(int i = from; i < to; i++) {
+                   out[i] += weight * features[base + i];
+              }
+         }
+    }
+
+    /**
+     * @return The dot product of weights and the numFeatures values of features starting at offset
+     */
+    public static double dot(double[] weights, double[] features, int offset, int numFeatures) {
+         double q = 0;
+         for(int f = 0; f < numFeatures; f++) {
+              q += weights[f] * features[offset + f];
+         }
+         return q;
+    }
+
+    /**
+     * @return The sum of weights[active[offset + k]] for k below count, the Q-value of binary sparse features
+     */
+    public static double sparseDot(double[] weights, int[] active, int offset, int count) {
+         double q = 0;
+         for(int k = 0; k < count; k++) {
+              q += weights[active[offset + k]];
+         }
+         return q;
+    }
+}
@@ -1,11 +1,7 @@
 package edu.cwru.sepia.agent;
 
 import edu.cwru.sepia.action.Action;
-import edu.cwru.sepia.action.ActionFeedback;
-import edu.cwru.sepia.action.ActionResult;
 import edu.cwru.sepia.action.TargetedAction;
-import edu.cwru.sepia.environment.model.history.DamageLog;
-import edu.cwru.sepia.environment.model.history.DeathLog;
 import edu.cwru.sepia.environment.model.history.History;
 import edu.cwru.sepia.environment.model.history.History.HistoryView;
 import edu.cwru.sepia.environment.model.state.State;
@@ -14,9 +10,13 @@ import edu.cwru.sepia.environment.model.state.Unit;
 import edu.cwru.sepia.util.DistanceMetrics;
 
 import java.io.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 
-public class RLAgent extends Agent {
+public class RLAgent extends Agent implements UnitRosterAware {
+
+    private static final long serialVersionUID = 1L;
 
     /**
      * Set in the constructor. Defines how many learning episodes your agent should run for.
@@ -37,10 +37,35 @@ public class RLAgent extends Agent {
      */
     public static final int ENEMY_PLAYERNUM = 1;
 
+    /**
+     * Turns of the HistoryView the agent reads back from the current one. Rewards, events, features, the
+     * CombatLogIndex and the TrajectoryRecorder only look at the previous turn, so a history window of this
+     * many turns, see edu.cwru.sepia.simulation.HistoryWindow, covers everything the agent accesses.
+     */
+    public static final int HISTORY_TURNS = 1;
+
     /**
      * Set this to whatever size your feature vector is.
      */
     public static final int NUM_FEATURES = 5;
+    /**
+     * Names of the features in weight order. Checkpoints store a hash of them and refuse to load into a
+     * different feature set, so rename or reorder these whenever writeFeatures changes.
+     */
+    public static final String[] FEATURE_NAMES = {"constant", "inverseDistance", "hitpointRatio",
+              "footmenAttacking", "isBeingAttackedBy"};
+    /**
+     * Binary checkpoints of the weights, see WeightCheckpointer.
+     */
+    public static final String CHECKPOINT_DIR = "agent_weights/checkpoints";
+
+    private static final int SCHEDULE_CONSTANT = 0;
+    private static final int SCHEDULE_EXPONENTIAL = 1;
+    private static final int SCHEDULE_INVERSE = 2;
+
+    private static final int CANDIDATES_ALL = 0;
+    private static final int CANDIDATES_NEAREST = 1;
+    private static final int CANDIDATES_RADIUS = 2;
 
     /** Use this random number generator for your epsilon exploration. When you submit we will
      * change this seed so make sure that your agent works for more than the default seed.
@@ -48,9 +73,9 @@ public class RLAgent extends Agent {
     public final Random random = new Random(12345);
 
     /**
-     * Your Q-function weights.
+     * Your Q-function weights. Kept as a primitive array so the decision path never boxes.
      */
-    public Double[] weights;
+    public double[] weights;
     /**
      * Actual number of episodes ran
      */
@@ -70,17 +95,230 @@ public class RLAgent extends Agent {
     /**
      * These variables are set for you according to the assignment definition. You can change them,
      * but it is not recommended. If you do change them please let us know and explain your reasoning for
-     * changing them.
+     * changing them. They can also be set through the gamma, learningRate and epsilon agent arguments, and
+     * epsilon decays per episode by epsilonSchedule, by default epsilon * 0.9^episode.
      */
-    public final double gamma = 0.9;
-    public final double learningRate = .0001;
-    public final double epsilon = .02;
+    public double gamma = 0.9;
+    public double learningRate = .0001;
+    public double epsilon = .02;
+    private int epsilonSchedule = SCHEDULE_EXPONENTIAL;
+    private double epsilonDecay = 0.9;
     
     //modifiable epsilon for applying decay in the initial step
     private double decayedEpsilon=epsilon;
-    private State.StateView oldStateView;
-    private History.HistoryView oldHistoryView;
-    private HashMap<Integer,Integer> lastTargets;
+    /**
+     * Target chosen at the last event, indexed by footman unit id. -1 means no target.
+     */
+    private int[] lastTargets = new int[0];
+
+    /**
+     * Scratch buffers reused by every decision so a steady-state middleStep does not allocate beyond the
+     * action map it returns, which benchmark.AllocationCheck verifies.
+     * featureScratch holds candidate features, oldFeatureScratch the features of the previous (s,a),
+     * updatedWeights the per-footman result of updateWeights and avgUpdatedWeights their running sum.
+     */
+    private final double[] featureScratch = new double[NUM_FEATURES];
+    private final double[] oldFeatureScratch = new double[NUM_FEATURES];
+    private final double[] updatedWeights = new double[NUM_FEATURES];
+    private final double[] avgUpdatedWeights = new double[NUM_FEATURES];
+    /**
+     * Enemy id picked by the last call to getMaxQ. Stored in a field so the argmax needs no result object.
+     */
+    private int maxQDefender = -1;
+    /**
+     * Index of the previous turn's combat logs. Only the current views are ever read, so one is enough.
+     */
+    private final CombatLogIndex combatLogs = new CombatLogIndex();
+    /**
+     * Features and Q-values of every (footman, enemy) pair for the current event, shared by the weight
+     * update and action selection so neither recomputes them.
+     */
+    private final FeatureMatrix featureMatrix = new FeatureMatrix(NUM_FEATURES);
+    /**
+     * Intra-turn parallelism, set through key=value agent arguments. With parallelism=N filling and scoring the
+     * feature matrix and the planned footmen's TD terms are split over N threads, for events that plan at least
+     * parallelThreshold footmen. parallelism=1, the default, runs everything on the agent's thread.
+     */
+    private int parallelism = 1;
+    private int parallelThreshold = 50;
+    /**
+     * Created by initialStep when parallelism is above 1. Transient, the pool's threads are not serializable.
+     */
+    private transient ParallelLoop parallelLoop;
+    /**
+     * TD term and NUM_FEATURES features of the last action of every planned footman, indexed by its position in
+     * the planned list and filled by collectTransitions. Only the slots of footmen with a last target are set.
+     */
+    private double[] transitionTd = new double[0];
+    private double[] transitionFeatures = new double[0];
+    /**
+     * Sparse feature settings, set through key=value agent arguments. With features=sparse the weights are the
+     * 2^tableBits entries of a SparseFeatures table rather than one weight per FEATURE_NAMES entry.
+     */
+    private boolean sparse = false;
+    private int tilings = 8;
+    private int tileWidth = 4;
+    private int hpTileWidth = 40;
+    private int tableBits = 16;
+    private SparseFeatures sparseFeatures;
+    /**
+     * Table indexes of one pair for calcQValue, and of the last action of every planned footman, getNumActive()
+     * per position in the planned list, for the sparse update.
+     */
+    private int[] activeScratch = new int[0];
+    private int[] transitionActive = new int[0];
+    /**
+     * Table indexes of the pair each footman was last sent to attack, getNumActive() per unit id, taken when
+     * the action was chosen. Only kept with sparse features.
+     */
+    private int[] takenActive = new int[0];
+    /**
+     * Set by runners that manage this agent. See TrainingListener.
+     */
+    private transient TrainingListener trainingListener;
+    /**
+     * Set by runners that play test sessions themselves, see TestEvaluator.
+     */
+    private transient TestEvaluator testEvaluator;
+    /**
+     * A frozen agent is an evaluation copy, see freeze. lastEpisodeReward is the reward of its last episode.
+     */
+    private boolean frozen = false;
+    private double lastEpisodeReward = 0;
+
+    /**
+     * Experience replay settings, set through key=value agent arguments after the two positional ones.
+     * replayCapacity=0, the default, keeps the one-transition online update. Replay changes the learning rule
+     * as well as the sampling: it moves the weights along the TD error r + gamma * max Q(s',a') - Q(s,a), while
+     * the online update keeps the original r + gamma * max Q(s',a') + Q(s,a), see updateWeights.
+     */
+    private int replayCapacity = 0;
+    private int replayBatchSize = 32;
+    private int replaySteps = 1;
+    private boolean replayPrioritized = false;
+    /**
+     * Created by initialStep once the army sizes are known. Transient because its direct buffer can not be
+     * serialized, a deserialized agent starts with an empty buffer.
+     */
+    private transient ReplayBuffer replay;
+    private int[] replaySlots = new int[0];
+    private double[] replayImportance = new double[0];
+    /**
+     * Features of the pair each footman was last sent to attack as they were when it was chosen, NUM_FEATURES
+     * per unit id. Kept for replay, and for the dense online update with actionFeatures=taken. By default the
+     * online update reads the last target on the current state, see lastActionFeatures.
+     */
+    private double[] takenFeatures = new double[0];
+    private boolean takenActionFeatures = false;
+    /**
+     * A footman's candidate rows of the feature matrix, laid out pair by pair for the replay buffer.
+     */
+    private double[] candidateScratch = new double[0];
+
+    /**
+     * Multi-step credit assignment, see TraceBuffer. lambda > 0 uses eligibility traces, nstep > 0 n-step
+     * returns, with neither the one-step update runs. Created by initialStep, transient like the replay buffer.
+     */
+    private double lambda = 0;
+    private int nstep = 0;
+    private transient TraceBuffer traces;
+    /**
+     * Sum of the TraceBuffer updates of an event and how many were summed
+     */
+    private final double[] traceDirection = new double[NUM_FEATURES];
+    private int traceUpdates = 0;
+
+    /**
+     * Checkpoint settings, set through key=value agent arguments. Every test session is checkpointed, and
+     * with checkpointEvery=N every Nth learning episode as well. exportText keeps writing the best weights
+     * to agent_weights/weights.txt.
+     */
+    private int checkpointKeepLast = 3;
+    private int checkpointKeepBest = 3;
+    private int checkpointEvery = 0;
+    private boolean exportText = true;
+    private transient WeightCheckpointer checkpointer;
+
+    /**
+     * Telemetry settings, set through key=value agent arguments. telemetry=DIR turns it on, the recorder is
+     * created by the first initialStep so every copy of the agent, e.g. one per parallel worker, gets its own files.
+     */
+    private String telemetryDirectory = null;
+    private String telemetryFormat = "csv";
+    private boolean telemetryTurns = false;
+    private transient TrainingTelemetry telemetry;
+
+    /**
+     * replanning=affected only re-plans the footmen an event concerns, see collectAffected. The default,
+     * replanning=army, re-plans every footman on every event. replanRadius is the Chebyshev distance at which a
+     * footman counts as engaged with its target, and within which an enemy's death makes it re-plan.
+     */
+    private boolean replanAffected = false;
+    private int replanRadius = 1;
+    /**
+     * Footmen re-planned at this event and footmen whose completed attack is re-issued unchanged.
+     */
+    private final List<Integer> replanFootmen = new ArrayList<>();
+    private final List<Integer> reissueFootmen = new ArrayList<>();
+
+    /**
+     * optimizer=normalized, the default, is the original update: one SGD step per footman, averaged and scaled
+     * so the largest weight magnitude is 1. Any other optimizer takes one step per event along the TD gradient
+     * averaged over the event's transitions, see Optimizer. Its rate is learningRate, or with lrSchedule
+     * learningRate * lrDecay^episode (exponential) or learningRate / (1 + lrDecay * episode) (inverse), and
+     * with clipNorm the averaged gradient is scaled down to at most that L2 norm.
+     */
+    private String optimizerName = "normalized";
+    private double optimizerRate = Double.NaN;
+    private double beta1 = 0.9;
+    private double beta2 = 0.999;
+    private double clipNorm = 0;
+    private int lrSchedule = SCHEDULE_CONSTANT;
+    private double lrDecay = 0;
+    private Optimizer optimizer;
+    private final double[] gradient = new double[NUM_FEATURES];
+
+    /**
+     * candidates=nearest or radius restricts each footman's greedy and random choices to the candidateK nearest
+     * enemies, or to the enemies within candidateRadius, found through a SpatialGrid. Only those pairs get
+     * features, which makes an event linear rather than quadratic in the army size. Every candidateCheckEvery
+     * events all pairs are scored as well and the pruned argmax is compared to the exhaustive one, the
+     * counts are reported through telemetry and getCandidateMismatchRate.
+     */
+    private int candidateMode = CANDIDATES_ALL;
+    private int candidateK = 8;
+    private int candidateRadius = 4;
+    private int candidateCheckEvery = 20;
+    private transient SpatialGrid enemyGrid;
+    private int[] candidateIndexes = new int[0];
+    private int[] exhaustiveBest = new int[0];
+    private long candidateEvents = 0;
+    private long candidateChecks = 0;
+    private long candidateMismatches = 0;
+
+    /**
+     * record=DIR streams every event of the non-frozen episodes to a TrajectoryRecorder log in DIR, for
+     * offline training without the simulator.
+     */
+    private String recordDirectory = null;
+    private transient TrajectoryRecorder recorder;
+
+    /**
+     * parameterServer=host:port makes this agent a worker of an edu.cwru.sepia.experiment.ParameterServer. It
+     * registers on its first learning initialStep, continues from the server's weights and every syncEvery
+     * learning events, and at the end of every learning episode, pushes what it learned since the last sync and
+     * takes the server's weights. Its test sessions are then checkpointed by the server rather than locally.
+     */
+    private String parameterServer = null;
+    private int syncEvery = 10;
+    private transient ParameterClient parameterClient;
+    private long syncEvents = 0;
+
+    /**
+     * Units of the next episode set through setUnitRoster, used by one initialStep.
+     */
+    private transient int[] rosterFriendly;
+    private transient int[] rosterEnemy;
 
     public RLAgent(int playernum, String[] args) {
         super(playernum);
@@ -100,15 +338,335 @@ public class RLAgent extends Agent {
             System.out.println("Warning! Load weights argument not specified. Defaulting to not loading.");
         }
 
+        for (int i = 2; i < args.length; i++) {
+            parseOption(args[i]);
+        }
+        if (sparse) {
+            useSparseFeatures();
+        }
+        if (lambda != 0 || nstep != 0) {
+            checkTraces();
+        }
+
         if (loadWeights) {
-            weights = loadWeights();
+            //the best binary checkpoint if there is one, the text weights otherwise
+            WeightCheckpointer.Checkpoint checkpoint = WeightCheckpointer.loadBest(Paths.get(CHECKPOINT_DIR),
+                    getNumWeights(), getWeightSchemaHash());
+            if (checkpoint != null) {
+                System.out.println("Loaded checkpoint " + checkpoint.file + " from episode " + checkpoint.episode);
+                weights = checkpoint.weights;
+            } else {
+                weights = unboxWeights(loadWeights());
+                if (weights != null && weights.length != getNumWeights()) {
+                    throw new IllegalStateException("agent_weights/weights.txt holds " + weights.length
+                            + " weights, the agent's features need " + getNumWeights());
+                }
+            }
+        } else if (sparseFeatures != null) {
+            // an untouched table entry adds nothing to a Q-value
+            weights = new double[getNumWeights()];
         } else {
             // initialize weights to random values between -1 and 1
-            weights = new Double[NUM_FEATURES];
+            weights = new double[NUM_FEATURES];
             for (int i = 0; i < weights.length; i++) {
                 weights[i] = random.nextDouble() * 2 - 1;
             }
         }
+        if (!optimizerName.equals("normalized")) {
+            optimizer = Optimizer.create(optimizerName, NUM_FEATURES, beta1, beta2);
+            if (Double.isNaN(optimizerRate)) {
+                // adaptive rules step by about the rate regardless of the TD error's scale
+                optimizerRate = optimizerName.equals("rmsprop") || optimizerName.equals("adam") ? 0.01 : learningRate;
+            }
+        }
+    }
+
+    /**
+     * Applies one key=value agent argument.
+     * replayCapacity=N        transitions kept for experience replay, 0 disables replay. Replay learns from the
+     *                         TD error with - Q(s,a), the online update uses + Q(s,a)
+     * replayBatch=N           transitions per mini-batch
+     * replaySteps=N           mini-batch updates per event
+     * replaySampling=S        uniform or prioritized
+     * checkpointKeepLast=K    most recent checkpoints kept
+     * checkpointKeepBest=K    highest scoring checkpoints kept
+     * checkpointEvery=N       also checkpoint every Nth learning episode, 0 only checkpoints test sessions
+     * exportText=B            whether new best weights are also written to agent_weights/weights.txt
+     * replanning=M            army re-plans every footman on every event, affected only the footmen it concerns
+     * replanRadius=R          engagement distance for replanning=affected, defaults to 1, adjacent
+     * telemetry=DIR           write per-episode metrics to DIR, see TrainingTelemetry
+     * telemetryFormat=F       csv or jsonl
+     * telemetryTurns=B        also write a row per middleStep
+     * optimizer=O             normalized, sgd, momentum, rmsprop or adam
+     * gamma=X                 discount factor, defaults to 0.9
+     * epsilon=X               exploration rate before decay, defaults to 0.02
+     * epsilonSchedule=S       constant, exponential or inverse decay of epsilon per episode
+     * epsilonDecay=X          decay factor of epsilonSchedule, defaults to 0.9
+     * learningRate=X          rate of the update, defaults to 0.0001, or 0.01 for rmsprop, adam and sparse
+     * beta1=X                 first moment decay of momentum and adam, defaults to 0.9
+     * beta2=X                 second moment decay of rmsprop and adam, defaults to 0.999
+     * clipNorm=X              largest L2 norm of a gradient step, 0 does not clip
+     * lrSchedule=S            constant, exponential or inverse decay of the rate per episode
+     * lrDecay=X               decay factor of lrSchedule
+     * candidates=M            all scores every enemy, nearest the candidateK nearest, radius those within candidateRadius
+     * candidateK=K            enemies considered per footman with candidates=nearest, also the fallback of radius
+     * candidateRadius=R       Chebyshev radius for candidates=radius and the spatial grid's cell size
+     * candidateCheckEvery=N   compare the pruned choices to exhaustive scoring every Nth event, 0 never
+     * record=DIR              record trajectories to DIR, see TrajectoryRecorder
+     * parameterServer=H:P     train as a worker of the parameter server at H:P
+     * syncEvery=N             learning events between syncs with the parameter server
+     * parallelism=N           threads that fill and score the feature matrix and compute TD terms, 1 is sequential
+     * parallelThreshold=M     planned footmen an event needs before it is split over the threads, defaults to 50
+     * features=F              dense, the FEATURE_NAMES features, or sparse, tile coding and crosses, see SparseFeatures
+     * tilings=N               tilings of the sparse position and hit point codings, defaults to 8
+     * tileWidth=W             map cells per sparse position tile, defaults to 4
+     * hpTileWidth=H           hit points per sparse hit point tile, defaults to 40
+     * tableBits=B             log2 of the sparse weight table size, defaults to 16
+     * lambda=X                TD(lambda) with eligibility traces decaying by gamma * lambda, in (0, 1], see TraceBuffer
+     * nstep=N                 n-step returns over N events instead, 1 is one-step Q-learning to compare against
+     * actionFeatures=F        current, the default, updates a footman's last action with the last target's features
+     *                         on the current state, taken with its features when it was chosen
+     * @param option argument from the configuration
+     */
+    private void parseOption(String option) {
+        int split = option.indexOf('=');
+        if (split < 0) {
+            throw new IllegalArgumentException("Expected key=value agent argument, got " + option);
+        }
+        String key = option.substring(0, split);
+        String value = option.substring(split + 1);
+        switch (key) {
+            case "replayCapacity":
+                replayCapacity = Integer.parseInt(value);
+                break;
+            case "replayBatch":
+                replayBatchSize = Integer.parseInt(value);
+                break;
+            case "replaySteps":
+                replaySteps = Integer.parseInt(value);
+                break;
+            case "replaySampling":
+                if (!value.equals("uniform") && !value.equals("prioritized")) {
+                    throw new IllegalArgumentException("replaySampling must be uniform or prioritized, not " + value);
+                }
+                replayPrioritized = value.equals("prioritized");
+                break;
+            case "checkpointKeepLast":
+                checkpointKeepLast = Integer.parseInt(value);
+                break;
+            case "checkpointKeepBest":
+                checkpointKeepBest = Integer.parseInt(value);
+                break;
+            case "checkpointEvery":
+                checkpointEvery = Integer.parseInt(value);
+                break;
+            case "exportText":
+                exportText = Boolean.parseBoolean(value);
+                break;
+            case "replanning":
+                if (!value.equals("army") && !value.equals("affected")) {
+                    throw new IllegalArgumentException("replanning must be army or affected, not " + value);
+                }
+                replanAffected = value.equals("affected");
+                break;
+            case "replanRadius":
+                replanRadius = Integer.parseInt(value);
+                break;
+            case "telemetry":
+                telemetryDirectory = value;
+                break;
+            case "telemetryFormat":
+                telemetryFormat = value;
+                break;
+            case "telemetryTurns":
+                telemetryTurns = Boolean.parseBoolean(value);
+                break;
+            case "optimizer":
+                if (!value.equals("normalized") && !value.equals("sgd") && !value.equals("momentum")
+                        && !value.equals("rmsprop") && !value.equals("adam")) {
+                    throw new IllegalArgumentException("optimizer must be normalized, sgd, momentum, rmsprop or adam, not " + value);
+                }
+                optimizerName = value;
+                break;
+            case "gamma":
+                gamma = Double.parseDouble(value);
+                break;
+            case "epsilon":
+                epsilon = Double.parseDouble(value);
+                break;
+            case "epsilonSchedule":
+                epsilonSchedule = parseSchedule(key, value);
+                break;
+            case "epsilonDecay":
+                epsilonDecay = Double.parseDouble(value);
+                break;
+            case "learningRate":
+                learningRate = Double.parseDouble(value);
+                optimizerRate = learningRate;
+                break;
+            case "beta1":
+                beta1 = Double.parseDouble(value);
+                break;
+            case "beta2":
+                beta2 = Double.parseDouble(value);
+                break;
+            case "clipNorm":
+                clipNorm = Double.parseDouble(value);
+                break;
+            case "lrSchedule":
+                lrSchedule = parseSchedule(key, value);
+                break;
+            case "lrDecay":
+                lrDecay = Double.parseDouble(value);
+                break;
+            case "candidates":
+                if (value.equals("all")) {
+                    candidateMode = CANDIDATES_ALL;
+                } else if (value.equals("nearest")) {
+                    candidateMode = CANDIDATES_NEAREST;
+                } else if (value.equals("radius")) {
+                    candidateMode = CANDIDATES_RADIUS;
+                } else {
+                    throw new IllegalArgumentException("candidates must be all, nearest or radius, not " + value);
+                }
+                break;
+            case "candidateK":
+                candidateK = Integer.parseInt(value);
+                if (candidateK < 1) {
+                    throw new IllegalArgumentException("candidateK must be at least 1, got " + value);
+                }
+                break;
+            case "candidateRadius":
+                candidateRadius = Integer.parseInt(value);
+                break;
+            case "candidateCheckEvery":
+                candidateCheckEvery = Integer.parseInt(value);
+                break;
+            case "record":
+                recordDirectory = value;
+                break;
+            case "parameterServer":
+                if (value.lastIndexOf(':') < 0) {
+                    throw new IllegalArgumentException("Expected host:port, got " + value);
+                }
+                parameterServer = value;
+                break;
+            case "syncEvery":
+                syncEvery = Integer.parseInt(value);
+                if (syncEvery < 1) {
+                    throw new IllegalArgumentException("syncEvery must be at least 1, got " + value);
+                }
+                break;
+            case "parallelism":
+                parallelism = Integer.parseInt(value);
+                if (parallelism < 1) {
+                    throw new IllegalArgumentException("parallelism must be at least 1, got " + value);
+                }
+                break;
+            case "parallelThreshold":
+                parallelThreshold = Integer.parseInt(value);
+                if (parallelThreshold < 1) {
+                    throw new IllegalArgumentException("parallelThreshold must be at least 1, got " + value);
+                }
+                break;
+            case "features":
+                if (!value.equals("dense") && !value.equals("sparse")) {
+                    throw new IllegalArgumentException("features must be dense or sparse, not " + value);
+                }
+                sparse = value.equals("sparse");
+                break;
+            case "tilings":
+                tilings = Integer.parseInt(value);
+                break;
+            case "tileWidth":
+                tileWidth = Integer.parseInt(value);
+                break;
+            case "hpTileWidth":
+                hpTileWidth = Integer.parseInt(value);
+                break;
+            case "tableBits":
+                tableBits = Integer.parseInt(value);
+                break;
+            case "lambda":
+                lambda = Double.parseDouble(value);
+                if (lambda <= 0 || lambda > 1) {
+                    throw new IllegalArgumentException("lambda must be in (0, 1], got " + value);
+                }
+                break;
+            case "nstep":
+                nstep = Integer.parseInt(value);
+                if (nstep < 1) {
+                    throw new IllegalArgumentException("nstep must be at least 1, got " + value);
+                }
+                break;
+            case "actionFeatures":
+                if (!value.equals("current") && !value.equals("taken")) {
+                    throw new IllegalArgumentException("actionFeatures must be current or taken, not " + value);
+                }
+                takenActionFeatures = value.equals("taken");
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown agent argument " + key);
+        }
+    }
+
+    /**
+     * Switches the agent to the sparse feature table. Only the online update is implemented for it, replay,
+     * the optimizers, the parameter server and trajectory recording all work on the dense features.
+     */
+    private void useSparseFeatures() {
+        if (replayCapacity > 0 || !optimizerName.equals("normalized") || parameterServer != null
+                || recordDirectory != null) {
+            throw new IllegalArgumentException("features=sparse can not be combined with replay, an optimizer, "
+                    + "a parameter server or recording");
+        }
+        sparseFeatures = new SparseFeatures(tilings, tileWidth, hpTileWidth, tableBits);
+        featureMatrix.useSparse(sparseFeatures.getNumActive());
+        activeScratch = new int[sparseFeatures.getNumActive()];
+        if (Double.isNaN(optimizerRate)) {
+            // binary features with a step split over the active entries, see updateSparse
+            optimizerRate = 0.01;
+        }
+    }
+
+    /**
+     * Checks that the multi-step update can run: one of lambda and nstep, the online update of the dense
+     * features, either normalized or through an optimizer.
+     */
+    private void checkTraces() {
+        if (lambda != 0 && nstep != 0) {
+            throw new IllegalArgumentException("lambda and nstep are alternatives, set one of them");
+        }
+        if (replayCapacity > 0 || sparseFeatures != null) {
+            throw new IllegalArgumentException("lambda and nstep can not be combined with replay or features=sparse");
+        }
+    }
+
+    /**
+     * @return Length of the weight vector, NUM_FEATURES or the sparse table size
+     */
+    public int getNumWeights() {
+        return sparseFeatures != null ? sparseFeatures.getTableSize() : NUM_FEATURES;
+    }
+
+    /**
+     * @return Schema hash checkpoints of these weights are stored under, see WeightCheckpointer
+     */
+    public long getWeightSchemaHash() {
+        return WeightCheckpointer.schemaHash(sparseFeatures != null ? sparseFeatures.getSchema() : FEATURE_NAMES);
+    }
+
+    private static int parseSchedule(String key, String value) {
+        switch (value) {
+            case "constant":
+                return SCHEDULE_CONSTANT;
+            case "exponential":
+                return SCHEDULE_EXPONENTIAL;
+            case "inverse":
+                return SCHEDULE_INVERSE;
+            default:
+                throw new IllegalArgumentException(key + " must be constant, exponential or inverse, not " + value);
+        }
     }
 
     /**
@@ -118,22 +676,112 @@ public class RLAgent extends Agent {
     public Map<Integer, Action> initialStep(State.StateView stateView, History.HistoryView historyView) {
 
         // You will need to add code to check if you are in a testing or learning episode
-         	if(numEpisode % 10 == 0 && (testEpisode == 0 || testEpisode %5 != 0)) {
-         		testEpisode++;
-         	} else {
-         		testEpisode = 0;
-         		numEpisode++;
+         	//frozen copies play greedy episodes with fixed weights and have no schedule
+         	if(!frozen) {
+         		submitTestSessionIfDue();
+         		if(numEpisode % 10 == 0 && (testEpisode == 0 || testEpisode %5 != 0)) {
+         			testEpisode++;
+         		} else {
+         			testEpisode = 0;
+         			numEpisode++;
+         		}
          	}
-         	if(numEpisode>numEpisodes) {
+         	if(!frozen && numEpisode>numEpisodes) {
+         		if(trainingListener != null) {
+         			//the runner decides when to stop, never take the JVM down under it
+         			return new HashMap<Integer, Action>();
+         		}
+         		if(candidateMode != CANDIDATES_ALL) {
+         			System.out.println("Pruned targets differed from exhaustive scoring in " + candidateMismatches
+         					+ " of " + candidateChecks + " checked decisions.");
+         		}
+         		if(parameterClient != null) {
+         			System.out.println("Synced with the parameter server " + parameterClient.getPushes() + " times, "
+         					+ parameterClient.getStalePushes() + " pushes were dropped as stale.");
+         		}
          		System.out.println(numEpisodes + " completed. Quitting...");
          		System.exit(0);
          	}
     	
          	//decay epsilon
-         	decayedEpsilon=epsilon*Math.pow(0.9, numEpisode);
+         	decayedEpsilon=decay(epsilon, epsilonSchedule, epsilonDecay);
 
-        // Find all of your units
-        myFootmen = new LinkedList<>();
+         	if(telemetryDirectory != null && !frozen) {
+         		startTelemetry();
+         	}
+         	if(recordDirectory != null && !frozen) {
+         		startRecording();
+         	}
+         	if(parameterServer != null && parameterClient == null && !frozen) {
+         		connectParameterServer();
+         	}
+         	if(parallelism > 1 && parallelLoop == null) {
+         		parallelLoop = new ParallelLoop(parallelism, parallelThreshold);
+         	}
+
+        // Find all of your units and the enemy units, told by the runner when it knows them
+        int maxUnitId = rosterFriendly != null ? useUnitRoster() : findFootmen(stateView);
+        if (lastTargets.length <= maxUnitId) {
+            int oldLength = lastTargets.length;
+            lastTargets = Arrays.copyOf(lastTargets, maxUnitId + 1);
+            Arrays.fill(lastTargets, oldLength, lastTargets.length, -1);
+        }
+        // targets of the previous episode are no action of this one, unit ids are reused between episodes
+        Arrays.fill(lastTargets, -1);
+        if (sparseFeatures != null) {
+            int length = lastTargets.length * sparseFeatures.getNumActive();
+            takenActive = Arrays.copyOf(takenActive, Math.max(takenActive.length, length));
+        }
+        if (lambda != 0 || nstep != 0) {
+            if (traces == null) {
+                traces = new TraceBuffer(NUM_FEATURES, gamma, lambda, nstep);
+            }
+            traces.ensureUnits(lastTargets.length);
+            traces.clear();
+        }
+        if (replayCapacity > 0 || takenActionFeatures) {
+            takenFeatures = Arrays.copyOf(takenFeatures, Math.max(takenFeatures.length, lastTargets.length * NUM_FEATURES));
+        }
+        if (replayCapacity > 0) {
+            if (replay == null || replay.getMaxCandidates() < enemyFootmen.size()) {
+                replay = new ReplayBuffer(replayCapacity, NUM_FEATURES, enemyFootmen.size(), replayPrioritized);
+                replaySlots = new int[replayBatchSize];
+                replayImportance = new double[replayBatchSize];
+            }
+        }
+
+        return middleStep(stateView, historyView);
+    }
+
+    /**
+     * Uses the roster given by setUnitRoster as this episode's footmen, once.
+     *
+     * @return Largest unit id of the roster, -1 if it is empty
+     */
+    private int useUnitRoster() {
+         int maxUnitId = -1;
+         myFootmen = new ArrayList<>(rosterFriendly.length);
+         for(int unitId : rosterFriendly) {
+              myFootmen.add(unitId);
+              maxUnitId = Math.max(maxUnitId, unitId);
+         }
+         enemyFootmen = new ArrayList<>(rosterEnemy.length);
+         for(int unitId : rosterEnemy) {
+              enemyFootmen.add(unitId);
+              maxUnitId = Math.max(maxUnitId, unitId);
+         }
+         rosterFriendly = null;
+         rosterEnemy = null;
+         return maxUnitId;
+    }
+
+    /**
+     * Finds this episode's footmen in the initial state, by the name of every unit's template.
+     *
+     * @return Largest unit id in the state, -1 if it has no units
+     */
+    private int findFootmen(State.StateView stateView) {
+        myFootmen = new ArrayList<>();
         for (Integer unitId : stateView.getUnitIds(playernum)) {
             Unit.UnitView unit = stateView.getUnit(unitId);
 
@@ -145,8 +793,7 @@ public class RLAgent extends Agent {
             }
         }
 
-        // Find all of the enemy units
-        enemyFootmen = new LinkedList<>();
+        enemyFootmen = new ArrayList<>();
         for (Integer unitId : stateView.getUnitIds(ENEMY_PLAYERNUM)) {
             Unit.UnitView unit = stateView.getUnit(unitId);
 
@@ -158,7 +805,21 @@ public class RLAgent extends Agent {
             }
         }
 
-        return middleStep(stateView, historyView);
+        int maxUnitId = -1;
+        for (Integer unitId : stateView.getAllUnitIds()) {
+            maxUnitId = Math.max(maxUnitId, unitId);
+        }
+        return maxUnitId;
+    }
+
+    /**
+     * Takes the footmen of the next episode from the runner, which skips classifying the units of the initial
+     * state. Every unit of the roster is taken to be a footman.
+     */
+    @Override
+    public void setUnitRoster(int[] friendlyUnits, int[] enemyUnits) {
+         rosterFriendly = friendlyUnits;
+         rosterEnemy = enemyUnits;
     }
 
     /**
@@ -189,59 +850,655 @@ public class RLAgent extends Agent {
      */
     @Override
     public Map<Integer, Action> middleStep(State.StateView stateView, History.HistoryView historyView) {
+         if(telemetry == null) {
+              return decideActions(stateView, historyView);
+         }
+         long start = System.nanoTime();
+         telemetry.startTurn();
+         Map<Integer, Action> actions = decideActions(stateView, historyView);
+         long nanos = System.nanoTime() - start;
+         //the logs are indexed by now, so classifying the event is a few reads
+         CombatLogIndex logs = lastTurnLogs(stateView, historyView);
+         telemetry.endTurn(stateView.getTurnNumber(), triggerEventOccured(stateView, historyView),
+                   stateView.getTurnNumber() == 0, logs.getNumDeadUnits() > 0, logs.getNumDamageLogs() > 0,
+                   logs.isCommandFinished(), nanos);
+         return actions;
+    }
+
+    /**
+     * The body of middleStep, which wraps it in telemetry when that is enabled.
+     */
+    private Map<Integer, Action> decideActions(State.StateView stateView, History.HistoryView historyView) {
          //System.out.println(Arrays.toString(weights));
          Map<Integer, Action> actions=new HashMap<Integer, Action>();
          if(triggerEventOccured(stateView, historyView)) {
-        	 for(DeathLog deathLog : historyView.getDeathLogs(stateView.getTurnNumber() -1)) {
-        	          int k = myFootmen.indexOf(deathLog.getDeadUnitID());
-        	          int e = enemyFootmen.indexOf(deathLog.getDeadUnitID());
-        	          if(k > -1) {
-        	        	  myFootmen.remove(k);
-        	          } else if(e > -1) {
-        	        	  enemyFootmen.remove(e);
+        	 CombatLogIndex logs = lastTurnLogs(stateView, historyView);
+        	 //update only if the current episode is not testing...
+        	 boolean learning = !frozen && numEpisode % 10 != 0 && numEpisode>1;
+        	 boolean remember = learning && replay != null && stateView.getTurnNumber() > 0;
+        	 for(int d = 0; d < logs.getNumDeadUnits(); d++) {
+        	          Integer deadUnit = logs.getDeadUnit(d);
+        	          if(myFootmen.remove(deadUnit)) {
+        	               if(recorder != null && lastTargets[deadUnit] != -1) {
+        	                    recorder.addReward(deadUnit, calculateReward(stateView, historyView, deadUnit));
+        	               }
+        	               if(remember && lastTargets[deadUnit] != -1) {
+        	                    rememberTransition(deadUnit, calculateReward(stateView, historyView, deadUnit), -1);
+        	               }
+        	               if(traces != null) {
+        	                    if(learning && lastTargets[deadUnit] != -1) {
+        	                         creditTraces(deadUnit, calculateReward(stateView, historyView, deadUnit), 0, true);
+        	                    }
+        	                    //a dead footman's trace must not carry over to the unit that reuses its id
+        	                    traces.clear(deadUnit);
+        	               }
+        	               lastTargets[deadUnit] = -1;
+        	          } else {
+        	        	  enemyFootmen.remove(deadUnit);
         	          }
         	     }
-        	 //update only if the current episode is not testing...
-        	 if(numEpisode % 10 != 0 && numEpisode>1) {
-        	      Double maxweight = Double.NEGATIVE_INFINITY;
-	        	 Double[] avgUpdatedWeights=new Double[weights.length];
-	        	 for(int i = 0; i<weights.length; i++) {
-                    avgUpdatedWeights[i]=new Double(0);
-	        	 }
+        	 //the footmen this event re-plans, everyone unless only the affected ones are
+        	 List<Integer> planned = myFootmen;
+        	 if(replanAffected && stateView.getTurnNumber() > 0) {
+        	      collectAffected(stateView, logs);
+        	      planned = replanFootmen;
+        	      for(int f = 0; f < reissueFootmen.size(); f++) {
+        	           int myFootman = reissueFootmen.get(f);
+        	           actions.put(myFootman, Action.createCompoundAttack(myFootman, lastTargets[myFootman]));
+        	      }
+        	 }
+        	 buildFeatureMatrix(stateView, historyView, planned);
+        	 if(learning && replay != null) {
+        	      for(int f = 0; f < planned.size() && remember; f++) {
+        	           int myFootman = planned.get(f);
+        	           if(lastTargets[myFootman] != -1) {
+        	                rememberTransition(myFootman, calculateReward(stateView, historyView, myFootman), featureMatrix.rowOf(myFootman));
+        	           }
+        	      }
+        	      replayWeights();
+        	 } else if(learning && traces != null) {
+        	      updateTraces(stateView, historyView, planned);
+        	 } else if(learning && optimizer != null) {
+        	      optimizeOnline(stateView, historyView, planned);
+        	 } else if(learning && sparseFeatures != null) {
+        	      updateSparse(stateView, historyView, planned);
+        	 } else if(learning) {
+	        	 Arrays.fill(avgUpdatedWeights, 0);
 	        	 int numNewWeights=0;
-	        	 for(Integer myFootman: myFootmen) {
-	        	      if(lastTargets.get(myFootman)!=null) {
-     	        		 Double[] weits = updateWeights(weights, calculateFeatureVector(oldStateView, oldHistoryView, myFootman, lastTargets.get(myFootman)), calculateReward(stateView, historyView, myFootman), stateView, historyView, myFootman);
+	        	 collectTransitions(stateView, historyView, planned);
+	        	 //summed in planned order whichever thread computed a term, so the result does not depend on the split
+	        	 for(int f = 0; f<planned.size(); f++) {
+	        	      if(lastTargets[planned.get(f)] != -1) {
+	        	           double tdTerm = transitionTd[f];
+	        	           int base = f * NUM_FEATURES;
+	        	           if(telemetry != null) {
+	        	                telemetry.recordUpdate(tdTerm);
+	        	           }
              			 for(int i = 0; i<weights.length; i++) {
-             			      avgUpdatedWeights[i] += weits[i];
+             			      avgUpdatedWeights[i] += weights[i]-learningRate*tdTerm*transitionFeatures[base + i];
              			 }
              			 numNewWeights+=1;
 	        	      }
 	        	 }
 	        	 if(numNewWeights>0) {
-     	        	 for(int i = 0; i<weights.length; i++) {
-                         avgUpdatedWeights[i] /= numNewWeights;
-                         if(Math.abs(avgUpdatedWeights[i])>maxweight) {
-                              maxweight=Math.abs(avgUpdatedWeights[i]);
-                         }
-     	        	 }
-     			 for(int i = 0; i<weights.length; i++) {
-     			      weights[i]=avgUpdatedWeights[i]/maxweight;
-     			 }
+     	        	 setNormalizedAverage(avgUpdatedWeights, numNewWeights);
+     			 //features do not depend on the weights, only the Q-values need refreshing
+     			 scoreFeatureMatrix();
 	        	 }
         	 }
-        	 lastTargets=new HashMap<Integer,Integer>();
-   	      for(Integer myFootman:myFootmen) {
+        	 if(learning && parameterClient != null && ++syncEvents % syncEvery == 0) {
+        	      syncParameterServer();
+        	      scoreFeatureMatrix();
+        	 }
+        	 for(int f = 0; f < planned.size() && recorder != null; f++) {
+        	      int myFootman = planned.get(f);
+        	      if(lastTargets[myFootman] != -1) {
+        	           recorder.addReward(myFootman, calculateReward(stateView, historyView, myFootman));
+        	      }
+        	 }
+        	 if(planned == myFootmen) {
+        	      Arrays.fill(lastTargets, -1);
+        	 }
+   	      for(int f = 0; f<planned.size(); f++) {
+   	           int myFootman = planned.get(f);
    	           int target=selectAction(stateView,historyView,myFootman);
    	           actions.put(myFootman, Action.createCompoundAttack(myFootman, target));
-   	           lastTargets.put(myFootman, target);
+   	           lastTargets[myFootman] = target;
+   	           if(recorder != null) {
+   	                recorder.addAction(myFootman, target);
+   	           }
+   	           if(target != -1 && (replay != null || (learning && takenActionFeatures && sparseFeatures == null))) {
+   	                featureMatrix.copyFeatures(featureMatrix.rowOf(myFootman), featureMatrix.colOf(target),
+   	                          takenFeatures, myFootman * NUM_FEATURES);
+   	           }
+   	           if(learning && traces != null && target != -1) {
+   	                featureMatrix.copyFeatures(featureMatrix.rowOf(myFootman), featureMatrix.colOf(target), featureScratch);
+   	                traces.push(myFootman, featureScratch);
+   	           }
+   	           if(sparseFeatures != null && target != -1) {
+   	                featureMatrix.copyActive(featureMatrix.rowOf(myFootman), featureMatrix.colOf(target),
+   	                          takenActive, myFootman * sparseFeatures.getNumActive());
+   	           }
    	       }
-        	  oldHistoryView=historyView;
-        	  oldStateView=stateView;
+   	      if(recorder != null) {
+   	           try {
+   	                recorder.recordEvent(stateView, historyView, myFootmen, enemyFootmen);
+   	           } catch(IOException ex) {
+   	                stopRecording(ex);
+   	           }
+   	      }
          }
          return actions;
     }
     
+    /**
+     * Fills out with the features the online update uses for a footman's last action: the (footman, last
+     * target) pair evaluated on the current state. The update used to recompute them from
+     * the views kept from the previous event, but SEPIA's StateView is live and the logs read are those of the
+     * current turn, so that was this event's state all along. They are read from this event's feature matrix
+     * instead, and only computed when the pair is not in it, because the target died or was not a candidate.
+     * With actionFeatures=taken the update uses takenFeatures, the pair as it was when the action was chosen.
+     * @param stateView
+     * @param historyView
+     * @param footmanId footman with a last target
+     * @param out receives NUM_FEATURES values
+     */
+    private void lastActionFeatures(StateView stateView, HistoryView historyView, int footmanId, double[] out) {
+         int row = featureMatrix.rowOf(footmanId);
+         int col = featureMatrix.colOf(lastTargets[footmanId]);
+         if(row >= 0 && col >= 0 && featureMatrix.hasFeatures(row, col)) {
+              featureMatrix.copyFeatures(row, col, out);
+         } else {
+              fillFeatureVector(stateView, historyView, footmanId, lastTargets[footmanId], out);
+         }
+    }
+
+    /**
+     * Online update of the sparse table: the last action of every planned footman moves the weights of its
+     * active entries along its TD error. The step is the rate averaged over the event's transitions and split
+     * over the getNumActive() entries, the usual step size of tile coding. Each footman costs O(active
+     * features) whatever the table size, and unlike the dense update the table is not normalized.
+     * @param stateView
+     * @param historyView
+     * @param planned footmen re-planned at this event
+     */
+    private void updateSparse(StateView stateView, HistoryView historyView, List<Integer> planned) {
+         collectTransitions(stateView, historyView, planned);
+         int count = 0;
+         for(int f = 0; f < planned.size(); f++) {
+              count += lastTargets[planned.get(f)] != -1 ? 1 : 0;
+         }
+         if(count == 0) {
+              return;
+         }
+         int numActive = sparseFeatures.getNumActive();
+         double rate = decay(optimizerRate, lrSchedule, lrDecay) / (count * numActive);
+         for(int f = 0; f < planned.size(); f++) {
+              if(lastTargets[planned.get(f)] == -1) {
+                   continue;
+              }
+              double tdError = transitionTd[f];
+              if(telemetry != null) {
+                   telemetry.recordUpdate(tdError);
+              }
+              for(int k = f * numActive; k < (f + 1) * numActive; k++) {
+                   weights[transitionActive[k]] += rate * tdError;
+              }
+         }
+         scoreFeatureMatrix();
+    }
+
+    /**
+     * Online multi-step update: the planned footmen's last steps are credited to the TraceBuffer, together with
+     * the terminal steps of footmen that died at this event, and the summed updates applied as one step.
+     * Q(s',a') comes from this event's matrix, scored with the weights before the step.
+     * @param stateView
+     * @param historyView
+     * @param planned footmen re-planned at this event
+     */
+    private void updateTraces(StateView stateView, HistoryView historyView, List<Integer> planned) {
+         for(int f = 0; f < planned.size(); f++) {
+              int myFootman = planned.get(f);
+              if(lastTargets[myFootman] != -1) {
+                   creditTraces(myFootman, calculateReward(stateView, historyView, myFootman),
+                             featureMatrix.getMaxQ(featureMatrix.rowOf(myFootman)), false);
+              }
+         }
+         if(applyTraceUpdates()) {
+              scoreFeatureMatrix();
+         }
+    }
+
+    private void creditTraces(int footmanId, double reward, double maxNextQ, boolean terminal) {
+         int updates = traces.credit(footmanId, reward, maxNextQ, terminal, weights, traceDirection);
+         for(int k = 0; k < updates && telemetry != null; k++) {
+              telemetry.recordUpdate(traces.getError(k));
+         }
+         traceUpdates += updates;
+    }
+
+    /**
+     * Applies the credited updates like replayWeights applies a batch: averaged and normalized, or through the
+     * optimizer as one step along their mean.
+     * @return true if the weights changed
+     */
+    private boolean applyTraceUpdates() {
+         int count = traceUpdates;
+         if(count > 0) {
+              if(optimizer != null) {
+                   for(int i = 0; i < NUM_FEATURES; i++) {
+                        gradient[i] = -traceDirection[i];
+                   }
+                   optimizerStep(count);
+              } else {
+                   for(int i = 0; i < NUM_FEATURES; i++) {
+                        avgUpdatedWeights[i] = count * weights[i] + learningRate * traceDirection[i];
+                   }
+                   setNormalizedAverage(avgUpdatedWeights, count);
+              }
+         }
+         Arrays.fill(traceDirection, 0);
+         traceUpdates = 0;
+         return count > 0;
+    }
+
+    /**
+     * Online update through the optimizer: the gradients of the planned footmen's last actions, with the same TD
+     * term as updateWeights, are summed and applied as one step instead of being averaged and normalized.
+     * Q(s',a') comes from this event's matrix, scored with the weights before the step.
+     * @param stateView
+     * @param historyView
+     * @param planned footmen re-planned at this event
+     */
+    private void optimizeOnline(StateView stateView, HistoryView historyView, List<Integer> planned) {
+         Arrays.fill(gradient, 0);
+         int count = 0;
+         collectTransitions(stateView, historyView, planned);
+         for(int f = 0; f < planned.size(); f++) {
+              if(lastTargets[planned.get(f)] == -1) {
+                   continue;
+              }
+              double tdTerm = transitionTd[f];
+              int base = f * NUM_FEATURES;
+              if(telemetry != null) {
+                   telemetry.recordUpdate(tdTerm);
+              }
+              for(int i = 0; i < NUM_FEATURES; i++) {
+                   gradient[i] += tdTerm * transitionFeatures[base + i];
+              }
+              count++;
+         }
+         if(count > 0) {
+              optimizerStep(count);
+              scoreFeatureMatrix();
+         }
+    }
+
+    /**
+     * Computes the TD term r + gamma * max Q(s',a') + Q(s,a) of updateWeights and the features of the last
+     * action of every planned footman with a last target into transitionTd[f] and transitionFeatures[f *
+     * NUM_FEATURES], f the footman's position in planned. (s,a) is the last target on the current state, or
+     * with actionFeatures=taken the pair when the action was chosen, from takenFeatures. Each footman only writes its own slots and reads this
+     * event's scored matrix, so the footmen can be split over the parallel loop. The callers sum the slots in
+     * planned order, which keeps the update the same as a sequential one.
+     * With sparse features the table indexes go to transitionActive instead and the TD term is the TD error
+     * r + gamma * max Q(s',a') - Q(s,a) of replayWeights, which updateSparse moves the weights along. Like with
+     * replay, (s,a) is the pair as it was when the action was chosen, from takenActive, rather than the last
+     * target on the current state. Tiles of one state are disjoint from those of the next, so the dense
+     * features' shortcut would not update the entries the choice was made by.
+     * @param stateView
+     * @param historyView
+     * @param planned footmen re-planned at this event, all of them rows of the feature matrix
+     */
+    private void collectTransitions(StateView stateView, HistoryView historyView, List<Integer> planned) {
+         int count = planned.size();
+         if(transitionTd.length < count) {
+              transitionTd = new double[count];
+              transitionFeatures = new double[count * NUM_FEATURES];
+         }
+         if(sparseFeatures != null && transitionActive.length < count * sparseFeatures.getNumActive()) {
+              transitionActive = new int[count * sparseFeatures.getNumActive()];
+         }
+         //the combat logs are indexed here, the workers only read them
+         lastTurnLogs(stateView, historyView);
+         if(parallelLoop == null || !parallelLoop.isParallel(count)) {
+              collectTransitions(stateView, historyView, planned, 0, count, oldFeatureScratch);
+         } else {
+              parallelLoop.run(count, (from, to) ->
+                        collectTransitions(stateView, historyView, planned, from, to, new double[NUM_FEATURES]));
+         }
+    }
+
+    private void collectTransitions(StateView stateView, HistoryView historyView, List<Integer> planned,
+                                    int from, int to, double[] scratch) {
+         for(int f = from; f < to; f++) {
+              int myFootman = planned.get(f);
+              if(lastTargets[myFootman] == -1) {
+                   continue;
+              }
+              if(sparseFeatures != null) {
+                   int numActive = sparseFeatures.getNumActive();
+                   System.arraycopy(takenActive, myFootman * numActive, transitionActive, f * numActive, numActive);
+                   transitionTd[f] = calculateReward(stateView, historyView, myFootman)
+                             + gamma * featureMatrix.getMaxQ(featureMatrix.rowOf(myFootman))
+                             - QKernel.sparseDot(weights, transitionActive, f * numActive, numActive);
+                   continue;
+              }
+              if(takenActionFeatures) {
+                   System.arraycopy(takenFeatures, myFootman * NUM_FEATURES, transitionFeatures, f * NUM_FEATURES, NUM_FEATURES);
+              } else {
+                   lastActionFeatures(stateView, historyView, myFootman, scratch);
+                   System.arraycopy(scratch, 0, transitionFeatures, f * NUM_FEATURES, NUM_FEATURES);
+              }
+              //the matrix row rather than getMaxQ, which keeps its argmax in a field
+              transitionTd[f] = calculateReward(stateView, historyView, myFootman)
+                        + gamma * featureMatrix.getMaxQ(featureMatrix.rowOf(myFootman))
+                        + QKernel.dot(weights, transitionFeatures, f * NUM_FEATURES, NUM_FEATURES);
+         }
+    }
+
+    /**
+     * Rescores the feature matrix with the current weights, split over the parallel loop for large events.
+     */
+    private void scoreFeatureMatrix() {
+         int numAttackers = featureMatrix.getNumAttackers();
+         if(parallelLoop == null || !parallelLoop.isParallel(numAttackers)) {
+              featureMatrix.score(weights);
+         } else {
+              parallelLoop.run(numAttackers, (from, to) -> featureMatrix.scoreRows(weights, from, to));
+         }
+    }
+
+    /**
+     * Averages the summed gradient over count transitions, clips it to clipNorm and lets the optimizer
+     * take a step at this episode's rate.
+     * @param count transitions summed into gradient
+     */
+    private void optimizerStep(int count) {
+         double norm = 0;
+         for(int i = 0; i < NUM_FEATURES; i++) {
+              gradient[i] /= count;
+              norm += gradient[i] * gradient[i];
+         }
+         norm = Math.sqrt(norm);
+         if(clipNorm > 0 && norm > clipNorm) {
+              for(int i = 0; i < NUM_FEATURES; i++) {
+                   gradient[i] *= clipNorm / norm;
+              }
+         }
+         optimizer.step(weights, gradient, decay(optimizerRate, lrSchedule, lrDecay));
+    }
+
+    /**
+     * @return value decayed to this episode: unchanged, value * factor^episode or value / (1 + factor * episode)
+     */
+    private double decay(double value, int schedule, double factor) {
+         if(schedule == SCHEDULE_EXPONENTIAL) {
+              return value * Math.pow(factor, numEpisode);
+         } else if(schedule == SCHEDULE_INVERSE) {
+              return value / (1 + factor * numEpisode);
+         }
+         return value;
+    }
+
+    /**
+     * Sets the weights to the average of count summed weight vectors, scaled so the largest magnitude is 1.
+     * @param sums sum of the updated weight vectors
+     * @param count number of vectors in the sum
+     */
+    private void setNormalizedAverage(double[] sums, int count) {
+         double maxweight = Double.NEGATIVE_INFINITY;
+         for(int i = 0; i<weights.length; i++) {
+              sums[i] /= count;
+              if(Math.abs(sums[i])>maxweight) {
+                   maxweight=Math.abs(sums[i]);
+              }
+         }
+         for(int i = 0; i<weights.length; i++) {
+              weights[i]=sums[i]/maxweight;
+         }
+    }
+
+    /**
+     * Stores the footman's last (s,a) in the replay buffer.
+     * @param footmanId footman the transition belongs to
+     * @param reward reward received since the footman's last event
+     * @param row featureMatrix row holding the footman's next candidates, -1 for a terminal transition
+     */
+    private void rememberTransition(int footmanId, double reward, int row) {
+         boolean terminal = row < 0;
+         if(!terminal) {
+              if(candidateScratch.length < featureMatrix.getNumDefenders() * NUM_FEATURES) {
+                   candidateScratch = new double[featureMatrix.getNumDefenders() * NUM_FEATURES];
+              }
+         }
+         int numCandidates = terminal ? 0 : featureMatrix.copyRow(row, candidateScratch);
+         replay.add(takenFeatures, footmanId * NUM_FEATURES, reward, terminal, candidateScratch,
+                   0, numCandidates);
+    }
+
+    /**
+     * Runs replaySteps mini-batch updates from the replay buffer. Each sampled transition is re-scored with the
+     * current weights and moves them along its TD error r + gamma * max Q(s',a') - Q(s,a), the batch is then
+     * averaged and normalized like the online per-footman update, or with an optimizer applied as one step
+     * along the batch's mean gradient. With prioritized sampling each error is scaled by its importance weight
+     * relative to the largest one in the batch. Unlike the online update, whose TD term adds Q(s,a), this is
+     * the textbook error, so enabling replay changes the update rule and not only which transitions it sees.
+     */
+    private void replayWeights() {
+         for(int step = 0; step < replaySteps && replay.size() > 0; step++) {
+              int batch = Math.min(replayBatchSize, replay.size());
+              double maxImportance = 0;
+              for(int b = 0; b < batch; b++) {
+                   replaySlots[b] = replay.sample(random);
+                   replayImportance[b] = replay.getImportanceWeight(replaySlots[b]);
+                   maxImportance = Math.max(maxImportance, replayImportance[b]);
+              }
+              Arrays.fill(avgUpdatedWeights, 0);
+              Arrays.fill(gradient, 0);
+              for(int b = 0; b < batch; b++) {
+                   int slot = replaySlots[b];
+                   replay.copyFeatures(slot, oldFeatureScratch);
+                   double maxNextQ = replay.isTerminal(slot) ? 0 : replay.getMaxCandidateQ(slot, weights);
+                   double tdError = replay.getReward(slot)+gamma*maxNextQ-calcQFromWeightsAndFeatures(weights, oldFeatureScratch);
+                   replay.updatePriority(slot, tdError);
+                   if(telemetry != null) {
+                        telemetry.recordUpdate(tdError);
+                   }
+                   double importance = replayImportance[b]/maxImportance;
+                   double scale = learningRate*tdError*importance;
+                   for(int i = 0; i<weights.length; i++) {
+                        avgUpdatedWeights[i] += weights[i]+scale*oldFeatureScratch[i];
+                        gradient[i] -= tdError*importance*oldFeatureScratch[i];
+                   }
+              }
+              if(optimizer != null) {
+                   optimizerStep(batch);
+              } else {
+                   setNormalizedAverage(avgUpdatedWeights, batch);
+              }
+         }
+         scoreFeatureMatrix();
+    }
+
+    /**
+     * Fills featureMatrix with the features of every (footman, enemy) pair of this event and scores them.
+     * Each unit is looked up once and the combat logs are read through the per-turn index. With a candidates
+     * mode only the candidate pairs are filled, except on check events, which fill and score every pair to
+     * count how often pruning changes a footman's greedy choice.
+     * @param stateView
+     * @param historyView
+     * @param attackers footmen that get a row, every enemy gets a column
+     */
+    private void buildFeatureMatrix(StateView stateView, HistoryView historyView, List<Integer> attackers) {
+         featureMatrix.reset(stateView, historyView, attackers, enemyFootmen);
+         boolean check = false;
+         if(candidateMode != CANDIDATES_ALL && featureMatrix.getNumDefenders() > 0) {
+              selectCandidates(stateView);
+              candidateEvents++;
+              check = candidateCheckEvery > 0 && candidateEvents % candidateCheckEvery == 0;
+         }
+         CombatLogIndex logs = lastTurnLogs(stateView, historyView);
+         int lastTurnNumber = stateView.getTurnNumber() - 1;
+         int numAttackers = featureMatrix.getNumAttackers();
+         if(parallelLoop == null || !parallelLoop.isParallel(numAttackers)) {
+              fillFeatureRows(0, numAttackers, check, logs, lastTurnNumber);
+         } else {
+              boolean all = check;
+              parallelLoop.run(numAttackers, (from, to) -> fillFeatureRows(from, to, all, logs, lastTurnNumber));
+         }
+         if(check) {
+              compareWithExhaustive();
+         }
+         scoreFeatureMatrix();
+    }
+
+    /**
+     * Writes the features of the rows from (inclusive) to to (exclusive) of featureMatrix. A row only writes its
+     * own pairs and the logs are already indexed, so disjoint ranges can be filled by different threads.
+     * @param all fill every pair rather than the row's candidates
+     */
+    private void fillFeatureRows(int from, int to, boolean all, CombatLogIndex logs, int lastTurnNumber) {
+         double[] features = featureMatrix.getFeatures();
+         for(int row = from; row < to; row++) {
+              int count = all ? featureMatrix.getNumDefenders() : featureMatrix.getNumCandidates(row);
+              for(int i = 0; i < count; i++) {
+                   int col = all ? i : featureMatrix.getCandidate(row, i);
+                   if(sparseFeatures != null) {
+                        writeActive(featureMatrix.getActive(), featureMatrix.activeOffset(row, col),
+                                  featureMatrix.isAttackerPresent(row) && featureMatrix.isDefenderPresent(col),
+                                  featureMatrix.getAttackerX(row), featureMatrix.getAttackerY(row), featureMatrix.getAttackerHP(row),
+                                  featureMatrix.getDefenderX(col), featureMatrix.getDefenderY(col), featureMatrix.getDefenderHP(col),
+                                  logs, lastTurnNumber, featureMatrix.getAttackerId(row), featureMatrix.getDefenderId(col));
+                        continue;
+                   }
+                   writeFeatures(features, featureMatrix.offset(row, col), featureMatrix.getStride(),
+                             featureMatrix.isAttackerPresent(row) && featureMatrix.isDefenderPresent(col),
+                             featureMatrix.getAttackerX(row), featureMatrix.getAttackerY(row), featureMatrix.getAttackerHP(row),
+                             featureMatrix.getDefenderX(col), featureMatrix.getDefenderY(col), featureMatrix.getDefenderHP(col),
+                             logs, lastTurnNumber, featureMatrix.getAttackerId(row), featureMatrix.getDefenderId(col));
+              }
+         }
+    }
+
+    /**
+     * Indexes the enemies of this event in the spatial grid and sets each present footman's candidates to
+     * the nearest or within-radius enemies. A footman with no enemy within the radius falls back to its
+     * candidateK nearest, so it always has a target.
+     * @param stateView
+     */
+    private void selectCandidates(StateView stateView) {
+         int numDefenders = featureMatrix.getNumDefenders();
+         if(enemyGrid == null) {
+              enemyGrid = new SpatialGrid(Math.max(1, candidateRadius));
+         }
+         if(candidateIndexes.length < numDefenders) {
+              candidateIndexes = new int[numDefenders];
+         }
+         featureMatrix.indexDefenders(enemyGrid, stateView.getXExtent(), stateView.getYExtent());
+         for(int row = 0; row < featureMatrix.getNumAttackers(); row++) {
+              int count = 0;
+              if(featureMatrix.isAttackerPresent(row)) {
+                   int ax = featureMatrix.getAttackerX(row);
+                   int ay = featureMatrix.getAttackerY(row);
+                   if(candidateMode == CANDIDATES_RADIUS) {
+                        count = enemyGrid.withinRadius(ax, ay, candidateRadius, candidateIndexes);
+                   }
+                   if(count == 0) {
+                        count = enemyGrid.nearest(ax, ay, candidateK, candidateIndexes);
+                   }
+              }
+              featureMatrix.setCandidates(row, candidateIndexes, count);
+         }
+    }
+
+    /**
+     * Scores every pair of the fully filled matrix and counts the present footmen whose exhaustive argmax
+     * differs from the pruned one. The caller rescores with the candidates afterwards.
+     */
+    private void compareWithExhaustive() {
+         int numAttackers = featureMatrix.getNumAttackers();
+         if(exhaustiveBest.length < numAttackers) {
+              exhaustiveBest = new int[numAttackers];
+         }
+         featureMatrix.scoreAll(weights);
+         for(int row = 0; row < numAttackers; row++) {
+              exhaustiveBest[row] = featureMatrix.getBestDefender(row);
+         }
+         scoreFeatureMatrix();
+         int checks = 0;
+         int mismatches = 0;
+         for(int row = 0; row < numAttackers; row++) {
+              if(featureMatrix.isAttackerPresent(row)) {
+                   checks++;
+                   mismatches += exhaustiveBest[row] != featureMatrix.getBestDefender(row) ? 1 : 0;
+              }
+         }
+         candidateChecks += checks;
+         candidateMismatches += mismatches;
+         if(telemetry != null) {
+              telemetry.recordCandidateCheck(checks, mismatches);
+         }
+    }
+
+    /**
+     * @return Fraction of checked footman decisions where the candidates mode picked a different greedy target
+     * than scoring every enemy would have, NaN before the first check
+     */
+    public double getCandidateMismatchRate() {
+         return candidateChecks == 0 ? Double.NaN : (double) candidateMismatches / candidateChecks;
+    }
+
+    /**
+     * Sorts the footmen for replanning=affected. A footman is re-planned if it has no target, its target died,
+     * its command failed, it took damage, an enemy died within replanRadius of it, or its target is still
+     * farther than replanRadius. The last rule keeps approaching footmen re-planning while the enemies around
+     * them move, without it they stay on the target picked on the first turn and lose most fights. An engaged
+     * footman whose attack completed gets the same attack re-issued without rescoring. Everyone else keeps
+     * the attack in progress.
+     * The expensive work, features, Q-values and weight updates, then only runs for the re-planned footmen.
+     * Must run before the feature matrix is rebuilt: positions of dead enemies come from the previous event's
+     * matrix, which has a column for every enemy alive at that event.
+     * @param stateView
+     * @param logs index of the last turn's logs
+     */
+    private void collectAffected(StateView stateView, CombatLogIndex logs) {
+         replanFootmen.clear();
+         reissueFootmen.clear();
+         for(int f = 0; f < myFootmen.size(); f++) {
+              int myFootman = myFootmen.get(f);
+              int target = lastTargets[myFootman];
+              Unit.UnitView footman = stateView.getUnit(myFootman);
+              Unit.UnitView enemy = target == -1 ? null : stateView.getUnit(target);
+              if(footman == null || enemy == null || logs.isCommandFailed(myFootman) || logs.getDamageReceived(myFootman) > 0
+                        || DistanceMetrics.chebyshevDistance(footman.getXPosition(), footman.getYPosition(),
+                                  enemy.getXPosition(), enemy.getYPosition()) > replanRadius
+                        || enemyDiedNear(footman, logs)) {
+                   replanFootmen.add(myFootman);
+              } else if(logs.isCommandCompleted(myFootman)) {
+                   reissueFootmen.add(myFootman);
+              }
+         }
+    }
+
+    /**
+     * @return true if an enemy that died last turn was last seen within replanRadius of the footman
+     */
+    private boolean enemyDiedNear(Unit.UnitView footman, CombatLogIndex logs) {
+         if(logs.getDeaths(ENEMY_PLAYERNUM) == 0) {
+              return false;
+         }
+         for(int d = 0; d < logs.getNumDeadUnits(); d++) {
+              int col = featureMatrix.colOf(logs.getDeadUnit(d));
+              if(col >= 0 && featureMatrix.isDefenderPresent(col)
+                        && DistanceMetrics.chebyshevDistance(footman.getXPosition(), footman.getYPosition(),
+                                  featureMatrix.getDefenderX(col), featureMatrix.getDefenderY(col)) <= replanRadius) {
+                   return true;
+              }
+         }
+         return false;
+    }
+
     /**
      * Checks whether an event that triggers reallocation of friendly units occurs
      * Trigger events: It is the first round
@@ -252,16 +1509,25 @@ public class RLAgent extends Agent {
      * @param historyView
      * @return whether the friendly units should be reassigned
      */
-    private boolean triggerEventOccured(StateView stateView, HistoryView historyView) {
-         if(stateView.getTurnNumber()==0 || !historyView.getDeathLogs(stateView.getTurnNumber()-1).isEmpty() || !historyView.getDamageLogs(stateView.getTurnNumber()-1).isEmpty()) {
+    public boolean triggerEventOccured(StateView stateView, HistoryView historyView) {
+         if(stateView.getTurnNumber()==0) {
               return true;
          }
-         for(ActionResult result : historyView.getCommandFeedback(playernum, stateView.getTurnNumber() - 1).values()) {
-              if(result.getFeedback()!=ActionFeedback.INCOMPLETE) {
-                   return true;
-              }
-         }
-         return false;
+         CombatLogIndex logs = lastTurnLogs(stateView, historyView);
+         return logs.getNumDeadUnits()>0 || logs.getNumDamageLogs()>0 || logs.isCommandFinished();
+    }
+
+    /**
+     * Returns the index of the previous turn's damage, death and feedback logs, building it the first time
+     * the turn is asked for. Every feature and reward reads the logs through this instead of rescanning them.
+     * @param stateView
+     * @param historyView
+     * @return index of the logs of turn stateView.getTurnNumber() - 1
+     */
+    private CombatLogIndex lastTurnLogs(StateView stateView, HistoryView historyView) {
+         //update is a no-op when the turn is already indexed
+         combatLogs.update(historyView, stateView.getTurnNumber() - 1, playernum);
+         return combatLogs;
     }
 
     /**
@@ -274,32 +1540,291 @@ public class RLAgent extends Agent {
     public void terminalStep(State.StateView stateView, History.HistoryView historyView) {
 
         // MAKE SURE YOU CALL printTestData after you finish a test episode.
+         	if(frozen) {
+         		lastEpisodeReward = 0;
+         		for(int i = 0; i<myFootmen.size(); i++) {
+         			lastEpisodeReward += calculateReward(stateView, historyView, myFootmen.get(i));
+         		}
+         		return;
+         	}
          	for(int i = 0; i<myFootmen.size() && testEpisode != 0; i++) {
          		totalReward +=  calculateReward(stateView, historyView, myFootmen.get(i));
          	}
+         	//the surviving footmen's last choices end with the episode
+         	for(int i = 0; i<myFootmen.size() && replay != null && numEpisode % 10 != 0 && numEpisode>1; i++) {
+         		int myFootman = myFootmen.get(i);
+         		if(lastTargets[myFootman] != -1) {
+         			rememberTransition(myFootman, calculateReward(stateView, historyView, myFootman), -1);
+         		}
+         	}
+         	if(traces != null && numEpisode % 10 != 0 && numEpisode>1) {
+         		for(int i = 0; i<myFootmen.size(); i++) {
+         			int myFootman = myFootmen.get(i);
+         			if(lastTargets[myFootman] != -1) {
+         				creditTraces(myFootman, calculateReward(stateView, historyView, myFootman), 0, true);
+         			}
+         		}
+         		applyTraceUpdates();
+         	}
          	
          	if(testEpisode != 0 && testEpisode % 5 == 0) {
-             	testList.add(totalReward/5.0);
-             	boolean bestList = true;
-             	for(int i = 0; i < testList.size(); i++) {
-             		if(totalReward/5.0 < testList.get(i)) {
-             			bestList = false;
-             		}
-             	}
-             	if(bestList) {
-             		//save only the best weights
-             		saveWeights(weights);
-             	}
+             	finishTestSession(totalReward/5.0, Arrays.copyOf(weights, weights.length), numEpisode);
          		totalReward = 0;
+         	} else if(trainingListener == null && testEpisode == 0 && checkpointEvery > 0 && numEpisode % checkpointEvery == 0) {
+         		checkpoint(Double.NaN, false);
          	}
          	
-         	if(numEpisode != 0 && numEpisode % numEpisodes == 0 && testEpisode != 0 && testEpisode % 5 == 0) { 
+         	if(recorder != null) {
+         		for(int i = 0; i<myFootmen.size(); i++) {
+         			int myFootman = myFootmen.get(i);
+         			if(lastTargets[myFootman] != -1) {
+         				recorder.addReward(myFootman, calculateReward(stateView, historyView, myFootman));
+         			}
+         		}
+         		try {
+         			recorder.endEpisode(stateView.getTurnNumber());
+         		} catch(IOException ex) {
+         			stopRecording(ex);
+         		}
+         	}
+         	if(parameterClient != null && testEpisode == 0 && numEpisode % 10 != 0 && numEpisode>1) {
+         		syncParameterServer();
+         	}
+         	
+         	if(telemetry != null) {
+         		double reward = 0;
+         		for(int i = 0; i<myFootmen.size(); i++) {
+         			reward += calculateReward(stateView, historyView, myFootmen.get(i));
+         		}
+         		telemetry.endEpisode(stateView.getTurnNumber(), weights, reward);
+         	}
+         	
+         	if(trainingListener == null && numEpisode != 0 && numEpisode % numEpisodes == 0 && testEpisode != 0 && testEpisode % 5 == 0) { 
          		printTestData(testList);
          	}
              // Save your weights
          	
          	
              //saveWeights(weights);
+         	//after the print above, which only covers sessions this agent played itself
+         	submitTestSessionIfDue();
+    }
+
+    /**
+     * Records a finished test session in testList and hands it to the listener, or without one checkpoints it,
+     * also exporting it if no earlier session scored higher.
+     * @param averageReward average reward of the session's test episodes
+     * @param testedWeights copy of the weights the session was played with
+     * @param episode numEpisode when the session started
+     */
+    private void finishTestSession(double averageReward, double[] testedWeights, int episode) {
+         testList.add(averageReward);
+         boolean bestList = true;
+         for(int i = 0; i < testList.size(); i++) {
+              if(averageReward < testList.get(i)) {
+                   bestList = false;
+              }
+         }
+         if(trainingListener != null) {
+              trainingListener.testSessionFinished(this, testList.size() - 1, averageReward);
+         } else if(parameterClient != null) {
+              try {
+                   parameterClient.reportTest(episode, averageReward);
+              } catch(IOException ex) {
+                   disconnectParameterServer(ex);
+              }
+         } else {
+              checkpoint(testedWeights, episode, averageReward, bestList);
+         }
+    }
+
+    /**
+     * Hands the test session to the TestEvaluator if one is set and the schedule is at the start of a session.
+     * The session then counts as played, so the schedule moves on to the next learning episode.
+     */
+    private void submitTestSessionIfDue() {
+         if(testEvaluator != null && numEpisode % 10 == 0 && testEpisode == 0) {
+              testEvaluator.evaluate(this, Arrays.copyOf(weights, weights.length), numEpisode);
+              testEpisode = 5;
+         }
+    }
+
+    /**
+     * Records the result of a test session played by the TestEvaluator like a session this agent played.
+     * Must be called in the order the sessions were submitted, from the thread running this agent's episodes.
+     * @param averageReward average reward of the session's test episodes
+     * @param testedWeights the weights passed to TestEvaluator.evaluate
+     * @param episode the episode passed to TestEvaluator.evaluate
+     */
+    public void addTestResult(double averageReward, double[] testedWeights, int episode) {
+         finishTestSession(averageReward, testedWeights, episode);
+    }
+
+    /**
+     * Makes the test sessions run through the evaluator instead of this agent's own episodes.
+     * @param testEvaluator evaluator to hand sessions to, null to play them again
+     */
+    public void setTestEvaluator(TestEvaluator testEvaluator) {
+         this.testEvaluator = testEvaluator;
+    }
+
+    /**
+     * Turns this agent into an evaluation copy. Every episode is then a greedy episode with the current
+     * weights, nothing is learned, remembered, checkpointed or recorded by telemetry and the schedule does
+     * not advance. terminalStep only stores the episode's reward for getLastEpisodeReward.
+     */
+    public void freeze() {
+         frozen = true;
+    }
+
+    /**
+     * @return For a frozen agent, the sum of calculateReward over the footmen alive at the end of its last
+     * episode, the reward a test episode contributes to its session
+     */
+    public double getLastEpisodeReward() {
+         return lastEpisodeReward;
+    }
+
+    /**
+     * Queues a binary checkpoint of the current weights and, if they are the best so far and exportText is
+     * set, a text export. Both are written on the checkpointer's thread, so the episode does not wait for disk.
+     * @param testScore average test reward, NaN for a periodic checkpoint
+     * @param best true if no earlier test session scored higher
+     */
+    public void checkpoint(double testScore, boolean best) {
+         checkpoint(Arrays.copyOf(weights, weights.length), numEpisode, testScore, best);
+    }
+
+    /**
+     * Like checkpoint(double, boolean) for weights that may no longer be the current ones.
+     * @param snapshot copy of the weights, not modified afterwards
+     * @param episode episode the weights are from
+     */
+    public void checkpoint(double[] snapshot, int episode, double testScore, boolean best) {
+         getCheckpointer().submit(snapshot, episode, testScore);
+         if(best && exportText) {
+              getCheckpointer().execute(() -> saveWeights(snapshot));
+         }
+    }
+
+    /**
+     * @return The checkpointer configured by this agent's arguments, created on first use
+     */
+    public WeightCheckpointer getCheckpointer() {
+         if(checkpointer == null) {
+              checkpointer = newCheckpointer(Paths.get(CHECKPOINT_DIR), checkpointKeepLast, checkpointKeepBest);
+         }
+         return checkpointer;
+    }
+
+    /**
+     * @return A checkpointer for this agent's weights, dense or sparse, in directory
+     */
+    public WeightCheckpointer newCheckpointer(Path directory, int keepLast, int keepBest) {
+         return new WeightCheckpointer(directory, getNumWeights(), getWeightSchemaHash(), keepLast, keepBest);
+    }
+
+    /**
+     * Registers with the parameter server, which replaces the weights with the canonical ones. A server that
+     * can not be reached turns the worker into a standalone agent.
+     */
+    private void connectParameterServer() {
+         int split = parameterServer.lastIndexOf(':');
+         try {
+              parameterClient = new ParameterClient(parameterServer.substring(0, split),
+                        Integer.parseInt(parameterServer.substring(split + 1)), FEATURE_NAMES, weights);
+         } catch(IOException ex) {
+              System.err.println("Failed to connect to the parameter server at " + parameterServer + ". Reason: " + ex.getMessage());
+              parameterServer = null;
+         }
+    }
+
+    /**
+     * Pushes the weights' change since the last sync and continues from the server's weights.
+     */
+    private void syncParameterServer() {
+         try {
+              parameterClient.sync(weights);
+         } catch(IOException ex) {
+              disconnectParameterServer(ex);
+         }
+    }
+
+    private void disconnectParameterServer(IOException ex) {
+         System.err.println("Lost the parameter server at " + parameterServer + ", training on alone. Reason: " + ex.getMessage());
+         try {
+              parameterClient.close();
+         } catch(IOException closeEx) {
+              //already broken
+         }
+         parameterClient = null;
+         parameterServer = null;
+    }
+
+    /**
+     * Opens the trajectory log on the first episode and starts recording this one.
+     */
+    private void startRecording() {
+         try {
+              if(recorder == null) {
+                   String runId = String.format("p%d-%d-%08x", playernum, System.currentTimeMillis(), System.identityHashCode(this));
+                   recorder = new TrajectoryRecorder(new File(recordDirectory, "trajectories-" + runId + TrajectoryRecorder.SUFFIX), 1 << 18);
+              }
+              recorder.startEpisode(numEpisode, testEpisode != 0);
+         } catch(IOException ex) {
+              System.err.println("Failed to record trajectories in " + recordDirectory + ". Reason: " + ex.getMessage());
+              recordDirectory = null;
+              recorder = null;
+         }
+    }
+
+    private void stopRecording(IOException ex) {
+         System.err.println("Stopped recording trajectories to " + recorder.getFile() + ". Reason: " + ex.getMessage());
+         recorder.close();
+         recorder = null;
+         recordDirectory = null;
+    }
+
+    /**
+     * Creates the telemetry recorder on the first episode and starts recording this one.
+     */
+    private void startTelemetry() {
+         if(telemetry == null) {
+              String runId = String.format("p%d-%d-%08x", playernum, System.currentTimeMillis(), System.identityHashCode(this));
+              try {
+                   telemetry = new TrainingTelemetry(new File(telemetryDirectory), runId, telemetryFormat, telemetryTurns);
+              } catch(IOException ex) {
+                   System.err.println("Failed to open telemetry in " + telemetryDirectory + ". Reason: " + ex.getMessage());
+                   telemetryDirectory = null;
+                   return;
+              }
+         }
+         telemetry.startEpisode(numEpisode, testEpisode != 0);
+    }
+
+    /**
+     * Hands control of test results and termination to a runner. With a listener the agent no longer saves
+     * weights, prints the learning curve or calls System.exit, the runner does those through the listener.
+     * @param trainingListener listener to report to, null to restore the standalone behaviour
+     */
+    public void setTrainingListener(TrainingListener trainingListener) {
+         this.trainingListener = trainingListener;
+    }
+
+    /**
+     * @return true once every learning and test episode of the schedule has run, i.e. the next initialStep
+     * would quit. Mirrors the schedule in initialStep without advancing it.
+     */
+    public boolean isFinished() {
+         boolean nextIsTest = numEpisode % 10 == 0 && (testEpisode == 0 || testEpisode % 5 != 0);
+         return !nextIsTest && numEpisode + 1 > numEpisodes;
+    }
+
+    /**
+     * @return Average rewards of the test sessions run so far, one entry per session
+     */
+    public List<Double> getTestList() {
+         return testList;
     }
 
     /**
@@ -310,14 +1835,18 @@ public class RLAgent extends Agent {
      * @param stateView Current state of the game.
      * @param historyView History of the game up until this point
      * @param footmanId The footman we are updating the weights for
-     * @return The updated weight vector.
+     * @return The updated weight vector. This is a reused buffer, copy it if it has to outlive the next call.
      */
-    public Double[] updateWeights(Double[] oldWeights, double[] oldFeatures, double totalReward, State.StateView stateView, History.HistoryView historyView, int footmanId) {
-         Double[] newWeights=new Double[oldWeights.length];
+    public double[] updateWeights(double[] oldWeights, double[] oldFeatures, double totalReward, State.StateView stateView, History.HistoryView historyView, int footmanId) {
+         //the TD term is the same for every weight, so the enemy scan only runs once per footman
+         double tdTerm=totalReward+gamma*getMaxQ(stateView,historyView,footmanId)+calcQFromWeightsAndFeatures(oldWeights,oldFeatures);
+         if(telemetry != null) {
+              telemetry.recordUpdate(tdTerm);
+         }
          for(int i=0;i<oldWeights.length;i++) {
-              newWeights[i]=oldWeights[i]-learningRate*(totalReward+gamma*getMaxQ(stateView,historyView,footmanId).getQ()+calcQFromWeightsAndFeatures(oldWeights,oldFeatures))*oldFeatures[i];
+              updatedWeights[i]=oldWeights[i]-learningRate*tdTerm*oldFeatures[i];
          }
-        return newWeights;
+        return updatedWeights;
     }
 
     /**
@@ -331,10 +1860,20 @@ public class RLAgent extends Agent {
      */
     public int selectAction(State.StateView stateView, History.HistoryView historyView, int attackerId) {
          //if not a test episode and the random double is <= than epsilon, random action
-         if(numEpisode%10!=0 && random.nextDouble()<=decayedEpsilon) {
-              return enemyFootmen.get(random.nextInt(enemyFootmen.size()));
+         if(!frozen && numEpisode%10!=0 && random.nextDouble()<=decayedEpsilon) {
+              int row=featureMatrix.isBuiltFor(stateView, historyView) ? featureMatrix.rowOf(attackerId) : -1;
+              //explores among the same candidates the greedy choice considers, a pruned row can have none
+              if(row>=0 && featureMatrix.getNumCandidates(row) > 0) {
+                   int col=featureMatrix.getCandidate(row, random.nextInt(featureMatrix.getNumCandidates(row)));
+                   return featureMatrix.getDefenderId(col);
+              }
+              if(featureMatrix.isBuiltFor(stateView, historyView) && featureMatrix.getNumDefenders() > 0) {
+                   return featureMatrix.getDefenderId(random.nextInt(featureMatrix.getNumDefenders()));
+              }
+              return enemyFootmen.isEmpty() ? -1 : enemyFootmen.get(random.nextInt(enemyFootmen.size()));
          } else {
-              return getMaxQ(stateView,historyView,attackerId).getDefender();
+              getMaxQ(stateView,historyView,attackerId);
+              return maxQDefender;
          }
     }
 
@@ -375,22 +1914,13 @@ public class RLAgent extends Agent {
          int turnNumber=stateView.getTurnNumber()-1;
          //-0.1 per turn
          double reward=-0.1*turnNumber;
+         CombatLogIndex logs=lastTurnLogs(stateView, historyView);
          //+d for damage done, -d for damage received
-         for(DamageLog damageLog:historyView.getDamageLogs(turnNumber)) {
-              if(damageLog.getAttackerID()==footmanId) {
-                   reward+=damageLog.getDamage();
-              } else if(damageLog.getDefenderID()==footmanId) {
-                   reward-=damageLog.getDamage();
-              }
-         }
+         reward+=logs.getDamageDealt(footmanId);
+         reward-=logs.getDamageReceived(footmanId);
          //+100 for enemy death, -100 for friendly death
-         for(DeathLog deathLog:historyView.getDeathLogs(turnNumber)) {
-              if(deathLog.getController()==playernum) {
-                   reward-=100;
-              } else if(deathLog.getController()==ENEMY_PLAYERNUM) {
-                   reward+=100;
-              }
-         }
+         reward-=100*logs.getDeaths(playernum);
+         reward+=100*logs.getDeaths(ENEMY_PLAYERNUM);
          return reward;
     }
 
@@ -412,48 +1942,40 @@ public class RLAgent extends Agent {
                              History.HistoryView historyView,
                              int attackerId,
                              int defenderId) {
-         double q=0;
-         double[] features=calculateFeatureVector(stateView,historyView, attackerId, defenderId);
-         for(int i=0;i<weights.length;i++) {
-              q+=weights[i]*features[i];
+         if(sparseFeatures != null) {
+              fillActive(stateView, historyView, attackerId, defenderId, activeScratch, 0);
+              return QKernel.sparseDot(weights, activeScratch, 0, activeScratch.length);
          }
-         return q;
+         fillFeatureVector(stateView,historyView, attackerId, defenderId, featureScratch);
+         return calcQFromWeightsAndFeatures(weights,featureScratch);
     }
     
     /**
-     * Returns the maximum Q-value and the associated action for a given attackerId
+     * Returns the maximum Q-value for a given attackerId. The associated action is left in maxQDefender.
      * @param stateView
      * @param historyView
      * @param attackerId
-     * @return max QValueUnits
-     */
-    private QValueUnits getMaxQ(State.StateView stateView, History.HistoryView historyView, int attackerId) {
-         QValueUnits actionInfo=new QValueUnits(Double.NEGATIVE_INFINITY,-1);
-         for(Integer defender:enemyFootmen) {
-              QValueUnits candidate=new QValueUnits(calcQValue(stateView,historyView,attackerId,defender),defender);
-              if(candidate.getQ()>actionInfo.getQ()) {
-                   actionInfo=candidate;
-              }
-         }
-         return actionInfo;
-    }
-    
-    private class QValueUnits {
-         private double q;
-         private int defender;
-         
-         private QValueUnits(double q, int defender) {
-              this.q=q;
-              this.defender=defender;
-         }
-
-         public double getQ() {
-              return q;
+     * @return max Q-value
+     */
+    public double getMaxQ(State.StateView stateView, History.HistoryView historyView, int attackerId) {
+         //read the precomputed row when this event's matrix covers the footman
+         int row=featureMatrix.isBuiltFor(stateView, historyView) ? featureMatrix.rowOf(attackerId) : -1;
+         if(row>=0) {
+              maxQDefender=featureMatrix.getBestDefender(row);
+              return featureMatrix.getMaxQ(row);
          }
-         
-         public int getDefender() {
-              return defender;
+         double maxQ=Double.NEGATIVE_INFINITY;
+         int maxDefender=-1;
+         for(int e=0;e<enemyFootmen.size();e++) {
+              int defender=enemyFootmen.get(e);
+              double q=calcQValue(stateView,historyView,attackerId,defender);
+              if(q>maxQ) {
+                   maxQ=q;
+                   maxDefender=defender;
+              }
          }
+         maxQDefender=maxDefender;
+         return maxQ;
     }
     
     /**
@@ -462,12 +1984,8 @@ public class RLAgent extends Agent {
      * @param features
      * @return approximate Q-value
      */
-    private double calcQFromWeightsAndFeatures(Double[] weights, double[] features) {
-         double q=0;
-         for(int i=0;i<weights.length;i++) {
-              q+=weights[i]*features[i];
-         }
-         return q;
+    private double calcQFromWeightsAndFeatures(double[] weights, double[] features) {
+         return QKernel.dot(weights, features, 0, weights.length);
     }
 
     /**
@@ -492,69 +2010,104 @@ public class RLAgent extends Agent {
                                            int attackerId,
                                            int defenderId) {
     	double[] vector = new double[NUM_FEATURES];
-    	vector[0] = 1;
-    	vector[1] = getInverseDistance(stateView, attackerId, defenderId); 
-    	vector[2] = getHitpointRatio(stateView, attackerId, defenderId);
-    	vector[3] = getNumFootmenAttacking(stateView, historyView, attackerId, defenderId);
-    	vector[4] = isBeingAttackedBy(stateView, historyView, attackerId, defenderId);
-    	//vector[5] = getDistance(stateView, attackerId, defenderId);
+    	fillFeatureVector(stateView, historyView, attackerId, defenderId, vector);
         return vector;
     }
-   
-    private double isBeingAttackedBy(StateView stateView, HistoryView historyView,  int attackerId, int defenderId) {
-    	int lastTurnNumber = stateView.getTurnNumber() - 1;
-    	if(lastTurnNumber < 1) {
-    		return 0; 
-    	}
-    	for(DamageLog damageLogs : historyView.getDamageLogs(lastTurnNumber)) {
-    	         if(damageLogs.getDefenderID() == attackerId && damageLogs.getAttackerID() == defenderId) {
-    	        	 return 1;
-    	         }
-    	}
-    	return 0;
-	}
-
-	private double getNumFootmenAttacking(StateView stateView, HistoryView historyView, int attackerId, int defenderId) {
-    	int lastTurnNumber = stateView.getTurnNumber() - 1;
-    	if(lastTurnNumber < 1) {
-    		return 0; 
-    	}
-    	int count = 0;
-    	for(DamageLog damageLogs : historyView.getDamageLogs(lastTurnNumber)) {
-    	         if(damageLogs.getDefenderID() == defenderId) {
-    	        	 count++;
-    	         }
-    	}
-		return count/myFootmen.size();
-	}
+
+    /**
+     * Writes the features of calculateFeatureVector into a caller supplied buffer instead of allocating one.
+     * @param vector buffer of at least NUM_FEATURES entries that receives the features
+     */
+    private void fillFeatureVector(State.StateView stateView,
+                                   History.HistoryView historyView,
+                                   int attackerId,
+                                   int defenderId,
+                                   double[] vector) {
+    	Unit.UnitView unitview = stateView.getUnit(attackerId);
+    	Unit.UnitView enemy = stateView.getUnit(defenderId);
+    	boolean present = unitview != null && enemy != null;
+    	writeFeatures(vector, 0, 1, present,
+    			present ? unitview.getXPosition() : 0, present ? unitview.getYPosition() : 0, present ? unitview.getHP() : 0,
+    			present ? enemy.getXPosition() : 0, present ? enemy.getYPosition() : 0, present ? enemy.getHP() : 0,
+    			lastTurnLogs(stateView, historyView), stateView.getTurnNumber() - 1, attackerId, defenderId);
+    }
+
+    /**
+     * The sparse counterpart of fillFeatureVector, writes the pair's table indexes to out[offset] onwards.
+     */
+    private void fillActive(State.StateView stateView,
+                            History.HistoryView historyView,
+                            int attackerId,
+                            int defenderId,
+                            int[] out,
+                            int offset) {
+    	Unit.UnitView unitview = stateView.getUnit(attackerId);
+    	Unit.UnitView enemy = stateView.getUnit(defenderId);
+    	boolean present = unitview != null && enemy != null;
+    	writeActive(out, offset, present,
+    			present ? unitview.getXPosition() : 0, present ? unitview.getYPosition() : 0, present ? unitview.getHP() : 0,
+    			present ? enemy.getXPosition() : 0, present ? enemy.getYPosition() : 0, present ? enemy.getHP() : 0,
+    			lastTurnLogs(stateView, historyView), stateView.getTurnNumber() - 1, attackerId, defenderId);
+    }
+
+    /**
+     * Writes the SparseFeatures table indexes of one (footman, enemy) pair, reading the logs like writeFeatures.
+     */
+    private void writeActive(int[] out, int offset, boolean present,
+                             int x, int y, int hp, int enemyX, int enemyY, int enemyHP,
+                             CombatLogIndex logs, int lastTurnNumber, int attackerId, int defenderId) {
+    	sparseFeatures.write(out, offset, present, x, y, hp, enemyX, enemyY, enemyHP, lastTurnNumber,
+    			logs.getHitsTaken(defenderId), logs.attacked(defenderId, attackerId));
+    }
+
+    /**
+     * Writes the feature vector of one (footman, enemy) pair at out[offset], out[offset + stride], ... Both the
+     * single pair path (stride 1) and the feature-major per-event matrix go through here so they always agree.
+     * @param present false if either unit no longer exists
+     */
+    private void writeFeatures(double[] out, int offset, int stride, boolean present,
+                               int x, int y, int hp, int enemyX, int enemyY, int enemyHP,
+                               CombatLogIndex logs, int lastTurnNumber, int attackerId, int defenderId) {
+    	writeFeatures(out, offset, stride, present, x, y, hp, enemyX, enemyY, enemyHP, lastTurnNumber,
+    			logs.getHitsTaken(defenderId), logs.attacked(defenderId, attackerId), myFootmen.size());
+    }
+
+    /**
+     * The features of one (footman, enemy) pair from plain values, so they can also be computed without SEPIA,
+     * e.g. from recorded trajectories.
+     * @param lastTurnNumber turn the logs are from, the log based features are 0 before turn 1
+     * @param hitsTaken damage logs against the enemy on that turn
+     * @param attackedBy true if the enemy damaged the footman on that turn
+     * @param numFootmen footmen the agent still controls
+     */
+    public static void writeFeatures(double[] out, int offset, int stride, boolean present,
+                                     int x, int y, int hp, int enemyX, int enemyY, int enemyHP,
+                                     int lastTurnNumber, int hitsTaken, boolean attackedBy, int numFootmen) {
+    	out[offset] = 1;
+    	out[offset + stride] = present ? getInverseDistance(x, y, enemyX, enemyY) : -1; //DO NOT WANT IF UNIT OR ENEMY DON'T EXIST
+    	out[offset + 2 * stride] = present ? getHitpointRatio(hp, enemyHP) : -1;
+    	out[offset + 3 * stride] = lastTurnNumber < 1 ? 0 : hitsTaken/numFootmen;
+    	out[offset + 4 * stride] = lastTurnNumber < 1 || !attackedBy ? 0 : 1;
+    	//out[offset + 5 * stride] = getDistance(stateView, attackerId, defenderId);
+    }
 
 	/**
-     * @param stateview
-     * @param unitId- is the id of the attacking unit
-     * @param enemyId - id of defending unit
-     * @return then inverse distance from unit to enemy
+     * @param hp hit points of the attacking unit
+     * @param enemyHP hit points of the defending unit
+     * @return the hitpoint ratio of unit to unit plus enemy
      */
-    private double getHitpointRatio(State.StateView stateview, int unitId, int enemyId) {
-    	Unit.UnitView unitview = stateview.getUnit(unitId); 
-    	Unit.UnitView enemy = stateview.getUnit(enemyId);
-    	if(unitview == null || enemy == null) {
-    		return -1; //DO NOT WANT IF UNIT OR ENEMY DON'T EXIST
-    	}
-    	return unitview.getHP()/(unitview.getHP() + enemy.getHP()); // want to attack enemies with lower health
+    static double getHitpointRatio(int hp, int enemyHP) {
+    	return hp/(hp + enemyHP); // want to attack enemies with lower health
     }
     /**
-     * @param stateview
-     * @param unitId- is the id of the attacking unit
-     * @param enemyId - id of defending unit
+     * @param x position of the attacking unit
+     * @param y position of the attacking unit
+     * @param enemyX position of the defending unit
+     * @param enemyY position of the defending unit
      * @return then inverse distance from unit to enemy
      */
-    private double getInverseDistance(State.StateView stateview, int unitId, int enemyId) {
-    	Unit.UnitView unitview = stateview.getUnit(unitId); 
-    	Unit.UnitView enemy = stateview.getUnit(enemyId);
-    	if(unitview == null || enemy == null) {
-    		return -1; //DO NOT WANT IF UNIT OR ENEMY DON'T EXIST
-    	}
-    	double dist = DistanceMetrics.chebyshevDistance(unitview.getXPosition(), unitview.getYPosition(), enemy.getXPosition(), enemy.getYPosition()); 
+    static double getInverseDistance(int x, int y, int enemyX, int enemyY) {
+    	double dist = DistanceMetrics.chebyshevDistance(x, y, enemyX, enemyY); 
     	return 1.0/dist;
     }
     //DO NOT USE OR EVERYTHING IS BADDDD
@@ -654,6 +2207,40 @@ public class RLAgent extends Agent {
         return null;
     }
 
+    /**
+     * Saves primitive weights in the same format and location as saveWeights(Double[]). This is the text
+     * export, the agent itself checkpoints through WeightCheckpointer.
+     * @param weights Array of weights
+     */
+    public void saveWeights(double[] weights) {
+         saveWeights(boxWeights(weights));
+    }
+
+    /**
+     * Boxes the weights for saveWeights, which is only called for a text export.
+     */
+    private static Double[] boxWeights(double[] weights) {
+         Double[] boxed = new Double[weights.length];
+         for (int i = 0; i < weights.length; i++) {
+              boxed[i] = weights[i];
+         }
+         return boxed;
+    }
+
+    /**
+     * Unboxes the weights returned by loadWeights. Returns null if loading failed.
+     */
+    private static double[] unboxWeights(Double[] boxed) {
+         if (boxed == null) {
+              return null;
+         }
+         double[] weights = new double[boxed.length];
+         for (int i = 0; i < boxed.length; i++) {
+              weights[i] = boxed[i];
+         }
+         return weights;
+    }
+
     @Override
     public void savePlayerData(OutputStream outputStream) {
 
@@ -0,0 +1,230 @@
+package edu.cwru.sepia.agent;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * Fixed capacity ring buffer of footman transitions for experience replay.
+ *
+ * A transition is the feature vector of the (footman, enemy) pair that was chosen, the reward that followed,
+ * whether the footman's episode ended, and the feature rows of every enemy the footman could pick next. The
+ * candidate rows let a sampled transition be re-scored with the current weights instead of the weights it was
+ * recorded under. Every transition occupies one fixed size slot of a direct ByteBuffer, so memory is
+ * capacity * slotBytes no matter how long episodes get and the garbage collector never scans the data.
+ *
+ * Sampling is uniform, or proportional to priority^ALPHA where the priority is the magnitude of the last TD
+ * error seen for the transition. New transitions start at the highest priority so each is replayed at least
+ * once with high probability. Prioritized sampling uses a sum tree, O(log capacity) per sample and update.
+ *
+ * RLAgent re-scores a sampled transition and moves its weights along the TD error r + gamma * max Q(s',a')
+ * - Q(s,a). Its online update uses + Q(s,a) instead, so turning replay on changes the learning rule, not
+ * only the sampling.
+ */
+public class ReplayBuffer {
+
+    /**
+     * How strongly priorities skew sampling, 0 is uniform.
+     */
+    public static final double ALPHA = 0.6;
+    /**
+     * Importance sampling exponent. getImportanceWeight raises (size * P(slot)) to -BETA.
+     */
+    public static final double BETA = 0.4;
+    /**
+     * Added to every priority so transitions with a zero TD error can still be drawn.
+     */
+    public static final double MIN_PRIORITY = 1e-3;
+
+    private static final int REWARD = 0;
+    private static final int NUM_CANDIDATES = 8;
+    private static final int TERMINAL = 12;
+    private static final int FEATURES = 16;
+
+    private final int capacity;
+    private final int numFeatures;
+    private final int maxCandidates;
+    private final int slotBytes;
+    private final ByteBuffer data;
+
+    private final boolean prioritized;
+    /**
+     * Sum tree over slot priorities. Node i has children 2i and 2i+1, slot s is leaf capacity + s.
+     */
+    private final double[] priorityTree;
+    private double maxPriority = 1;
+
+    private int next = 0;
+    private int size = 0;
+
+    /**
+     * @param capacity Number of transitions kept, the oldest is overwritten first
+     * @param numFeatures Length of a feature vector
+     * @param maxCandidates Most next-state candidates stored per transition, extra candidates are dropped
+     * @param prioritized true for prioritized sampling, false for uniform
+     */
+    public ReplayBuffer(int capacity, int numFeatures, int maxCandidates, boolean prioritized) {
+         if(capacity <= 0) {
+              throw new IllegalArgumentException("Replay capacity must be positive, not " + capacity);
+         }
+         this.capacity = capacity;
+         this.numFeatures = numFeatures;
+         this.maxCandidates = maxCandidates;
+         this.prioritized = prioritized;
+         slotBytes = FEATURES + Double.BYTES * numFeatures * (1 + maxCandidates);
+         data = ByteBuffer.allocateDirect(Math.multiplyExact(capacity, slotBytes)).order(ByteOrder.nativeOrder());
+         priorityTree = prioritized ? new double[2 * capacity] : null;
+    }
+
+    /**
+     * Stores a transition, overwriting the oldest one when the buffer is full.
+     *
+     * @param features Buffer holding the features of the chosen pair at featuresOffset
+     * @param reward Reward received after the choice
+     * @param terminal true if the footman died or the episode ended, no candidates are read then
+     * @param candidates Buffer holding the candidate rows back to back at candidatesOffset
+     * @param numCandidates Number of candidate rows
+     * @return The slot the transition was written to
+     */
+    public int add(double[] features, int featuresOffset, double reward, boolean terminal,
+                   double[] candidates, int candidatesOffset, int numCandidates) {
+         int slot = next;
+         int base = slot * slotBytes;
+         int stored = terminal ? 0 : Math.min(numCandidates, maxCandidates);
+         data.putDouble(base + REWARD, reward);
+         data.putInt(base + NUM_CANDIDATES, stored);
+         data.putInt(base + TERMINAL, terminal ? 1 : 0);
+         int position = base + FEATURES;
+         for(int f = 0; f < numFeatures; f++, position += Double.BYTES) {
+              data.putDouble(position, features[featuresOffset + f]);
+         }
+         for(int i = 0; i < stored * numFeatures; i++, position += Double.BYTES) {
+              data.putDouble(position, candidates[candidatesOffset + i]);
+         }
+         if(prioritized) {
+              setPriority(slot, maxPriority);
+         }
+         next = (next + 1) % capacity;
+         size = Math.min(size + 1, capacity);
+         return slot;
+    }
+
+    /**
+     * Draws one stored transition. The buffer must not be empty.
+     *
+     * @return Slot of the transition
+     */
+    public int sample(Random random) {
+         if(!prioritized) {
+              return random.nextInt(size);
+         }
+         double point = random.nextDouble() * priorityTree[1];
+         int node = 1;
+         while(node < capacity) {
+              node *= 2;
+              if(point >= priorityTree[node] && priorityTree[node + 1] > 0) {
+                   point -= priorityTree[node];
+                   node++;
+              }
+         }
+         //rounding in the prefix sums can end on an empty leaf past size, every stored slot has a priority
+         return Math.min(node - capacity, size - 1);
+    }
+
+    /**
+     * @return Probability that sample draws the slot
+     */
+    public double getProbability(int slot) {
+         return prioritized ? priorityTree[capacity + slot] / priorityTree[1] : 1.0 / size;
+    }
+
+    /**
+     * @return Weight that undoes the sampling bias of prioritized replay, 1 for uniform sampling. Callers
+     * usually normalize by the largest weight of a batch. The probability is floored at that of the lowest
+     * priority a stored transition can have, so the weight stays finite.
+     */
+    public double getImportanceWeight(int slot) {
+         if(!prioritized) {
+              return 1;
+         }
+         double probability = Math.max(getProbability(slot), Math.pow(MIN_PRIORITY, ALPHA) / priorityTree[1]);
+         return Math.pow(size * probability, -BETA);
+    }
+
+    /**
+     * Records the TD error last computed for the slot. Ignored for uniform sampling.
+     */
+    public void updatePriority(int slot, double tdError) {
+         if(prioritized) {
+              double priority = Math.pow(Math.abs(tdError) + MIN_PRIORITY, ALPHA);
+              maxPriority = Math.max(maxPriority, priority);
+              setPriority(slot, priority);
+         }
+    }
+
+    public double getReward(int slot) {
+         return data.getDouble(slot * slotBytes + REWARD);
+    }
+
+    public boolean isTerminal(int slot) {
+         return data.getInt(slot * slotBytes + TERMINAL) != 0;
+    }
+
+    public int getNumCandidates(int slot) {
+         return data.getInt(slot * slotBytes + NUM_CANDIDATES);
+    }
+
+    /**
+     * Copies the features of the chosen pair into out.
+     */
+    public void copyFeatures(int slot, double[] out) {
+         int position = slot * slotBytes + FEATURES;
+         for(int f = 0; f < numFeatures; f++, position += Double.BYTES) {
+              out[f] = data.getDouble(position);
+         }
+    }
+
+    /**
+     * @return The largest Q-value over the slot's candidates under the given weights, 0 if there are none
+     */
+    public double getMaxCandidateQ(int slot, double[] weights) {
+         int candidates = getNumCandidates(slot);
+         if(candidates == 0) {
+              return 0;
+         }
+         double maxQ = Double.NEGATIVE_INFINITY;
+         int position = slot * slotBytes + FEATURES + Double.BYTES * numFeatures;
+         for(int c = 0; c < candidates; c++) {
+              double q = 0;
+              for(int f = 0; f < numFeatures; f++, position += Double.BYTES) {
+                   q += weights[f] * data.getDouble(position);
+              }
+              maxQ = Math.max(maxQ, q);
+         }
+         return maxQ;
+    }
+
+    public int size() {
+         return size;
+    }
+
+    public int getCapacity() {
+         return capacity;
+    }
+
+    public int getMaxCandidates() {
+         return maxCandidates;
+    }
+
+    public boolean isPrioritized() {
+         return prioritized;
+    }
+
+    private void setPriority(int slot, double priority) {
+         int node = capacity + slot;
+         double delta = priority - priorityTree[node];
+         for(; node >= 1; node /= 2) {
+              priorityTree[node] += delta;
+         }
+    }
+}
@@ -0,0 +1,127 @@
+package edu.cwru.sepia.agent;
+
+import java.io.Serializable;
+
+/**
+ * Sparse binary features of a (footman, enemy) pair: tile codings and hashed crosses into one weight table.
+ *
+ * Every pair activates exactly {@link #getNumActive()} entries of a table of 2^tableBits weights, its Q-value is
+ * the sum of their weights, so evaluating and updating a pair costs O(active features) whatever the table size.
+ * The active entries are
+ *
+ * bias        - one entry every pair shares
+ * position    - tilings tilings of the enemy's position relative to the footman, tileWidth cells per tile
+ * hitpoints   - tilings tilings of (footman HP, enemy HP), hpTileWidth hit points per tile
+ * engagement  - cross of the Chebyshev distance, capped at MAX_DISTANCE, whether the enemy attacked the footman
+ *               and how often it was hit, capped at MAX_HITS
+ * focus       - cross of the sign of footman HP - enemy HP, how often the enemy was hit and whether it attacked
+ *
+ * Tiling t is shifted by t / tilings of a tile along both axes, the usual uniform offsets, computed in integer
+ * arithmetic so the tiles do not depend on rounding. Every tile or cross is hashed with its group and tiling
+ * into the table, distinct tiles can collide, which the table size trades off against memory. A pair with a
+ * missing unit activates the same absent tile in every group. The log based parts are 0 before turn 1, as in
+ * RLAgent.writeFeatures.
+ */
+public final class SparseFeatures implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int GROUP_BIAS = 0;
+    private static final int GROUP_POSITION = 1;
+    private static final int GROUP_HITPOINTS = 2;
+    private static final int GROUP_ENGAGEMENT = 3;
+    private static final int GROUP_FOCUS = 4;
+    private static final int ABSENT = Integer.MIN_VALUE;
+    private static final int MAX_DISTANCE = 8;
+    private static final int MAX_HITS = 3;
+
+    private final int tilings;
+    private final int tileWidth;
+    private final int hpTileWidth;
+    private final int tableBits;
+
+    /**
+     * @param tilings Tilings of the position and hit point tile codings, at least 1
+     * @param tileWidth Map cells per position tile, at least 1
+     * @param hpTileWidth Hit points per hit point tile, at least 1
+     * @param tableBits log2 of the weight table size, 1 to 30
+     */
+    public SparseFeatures(int tilings, int tileWidth, int hpTileWidth, int tableBits) {
+         if(tilings < 1 || tileWidth < 1 || hpTileWidth < 1) {
+              throw new IllegalArgumentException("tilings, tileWidth and hpTileWidth must be at least 1, got "
+                        + tilings + ", " + tileWidth + " and " + hpTileWidth);
+         }
+         if(tableBits < 1 || tableBits > 30) {
+              throw new IllegalArgumentException("tableBits must be between 1 and 30, got " + tableBits);
+         }
+         this.tilings = tilings;
+         this.tileWidth = tileWidth;
+         this.hpTileWidth = hpTileWidth;
+         this.tableBits = tableBits;
+    }
+
+    /**
+     * @return Entries every pair activates
+     */
+    public int getNumActive() {
+         return 1 + 2 * tilings + 2;
+    }
+
+    /**
+     * @return Weights in the table
+     */
+    public int getTableSize() {
+         return 1 << tableBits;
+    }
+
+    /**
+     * @return Names describing the table layout, the checkpoint schema of weights learned with it
+     */
+    public String[] getSchema() {
+         return new String[]{"sparse-v1", "tilings=" + tilings, "tileWidth=" + tileWidth,
+                   "hpTileWidth=" + hpTileWidth, "tableBits=" + tableBits};
+    }
+
+    /**
+     * Writes the getNumActive() table indexes of one pair to out[offset], out[offset + 1], ... The arguments
+     * are those of RLAgent.writeFeatures.
+     */
+    public void write(int[] out, int offset, boolean present, int x, int y, int hp, int enemyX, int enemyY,
+                      int enemyHP, int lastTurnNumber, int hitsTaken, boolean attackedBy) {
+         int hits = lastTurnNumber < 1 ? 0 : Math.min(hitsTaken, MAX_HITS);
+         int attacked = lastTurnNumber < 1 || !attackedBy ? 0 : 1;
+         int i = offset;
+         out[i++] = index(GROUP_BIAS, 0, 0, 0);
+         for(int t = 0; t < tilings; t++) {
+              out[i++] = present
+                        ? index(GROUP_POSITION, t, tile(enemyX - x, t, tileWidth), tile(enemyY - y, t, tileWidth))
+                        : index(GROUP_POSITION, t, ABSENT, ABSENT);
+              out[i++] = present
+                        ? index(GROUP_HITPOINTS, t, tile(hp, t, hpTileWidth), tile(enemyHP, t, hpTileWidth))
+                        : index(GROUP_HITPOINTS, t, ABSENT, ABSENT);
+         }
+         int distance = present ? Math.min(Math.max(Math.abs(enemyX - x), Math.abs(enemyY - y)), MAX_DISTANCE) : ABSENT;
+         out[i++] = index(GROUP_ENGAGEMENT, distance, attacked, hits);
+         int advantage = present ? Integer.signum(hp - enemyHP) : ABSENT;
+         out[i] = index(GROUP_FOCUS, advantage, hits, attacked);
+    }
+
+    /**
+     * @return floor((value + t * width / tilings) / width), the tile of value in tiling t
+     */
+    private int tile(int value, int t, int width) {
+         return Math.floorDiv(value * tilings + t * width, width * tilings);
+    }
+
+    /**
+     * Hashes a group and three coordinates into the table with the SplitMix64 finalizer.
+     */
+    private int index(int group, int a, int b, int c) {
+         long h = ((long) group << 48) ^ ((long) a * 0x9E3779B97F4A7C15L) ^ ((long) b * 0xC2B2AE3D27D4EB4FL)
+                   ^ ((long) c * 0x165667B19E3779F9L);
+         h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+         h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+         h ^= h >>> 31;
+         return (int) (h >>> (64 - tableBits));
+    }
+}
@@ -0,0 +1,193 @@
+package edu.cwru.sepia.agent;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Uniform grid over a set of points, answering nearest and within-radius queries by Chebyshev distance.
+ *
+ * Points are identified by their index in the arrays passed to rebuild, e.g. the defender columns of a
+ * FeatureMatrix. A rebuild is a counting sort of the points into square cells, O(points + cells), and
+ * reuses its arrays, so rebuilding on every event does not allocate once the grid has grown. A query only
+ * visits cells in rings around the query point until no unvisited cell can hold a closer point.
+ * Ties in distance are broken by the lower index, so results do not depend on the cell layout.
+ */
+public class SpatialGrid implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int cellSize;
+    private int columns;
+    private int rows;
+    private int[] cellStart = new int[1];
+    private int[] cellPoints = new int[0];
+    private int[] pointX = new int[0];
+    private int[] pointY = new int[0];
+    private int[] pointCell = new int[0];
+
+    private int[] bestIndex = new int[0];
+    private int[] bestDistance = new int[0];
+
+    /**
+     * @param cellSize Side of a cell in tiles. Around the typical query radius works well.
+     */
+    public SpatialGrid(int cellSize) {
+         if(cellSize <= 0) {
+              throw new IllegalArgumentException("Cell size must be positive, not " + cellSize);
+         }
+         this.cellSize = cellSize;
+    }
+
+    /**
+     * Replaces the indexed points.
+     *
+     * @param xExtent Width of the map, every x is below it
+     * @param yExtent Height of the map, every y is below it
+     * @param x Point x positions
+     * @param y Point y positions
+     * @param present Points to index, absent ones are skipped
+     * @param count Number of points
+     */
+    public void rebuild(int xExtent, int yExtent, int[] x, int[] y, boolean[] present, int count) {
+         columns = Math.max(1, (xExtent + cellSize - 1) / cellSize);
+         rows = Math.max(1, (yExtent + cellSize - 1) / cellSize);
+         int cells = columns * rows;
+         if(cellStart.length < cells + 1) {
+              cellStart = new int[cells + 1];
+         } else {
+              Arrays.fill(cellStart, 0, cells + 1, 0);
+         }
+         if(pointCell.length < count) {
+              pointX = new int[count];
+              pointY = new int[count];
+              pointCell = new int[count];
+              cellPoints = new int[count];
+         }
+         int indexed = 0;
+         for(int i = 0; i < count; i++) {
+              if(!present[i]) {
+                   pointCell[i] = -1;
+                   continue;
+              }
+              pointX[i] = x[i];
+              pointY[i] = y[i];
+              int cell = cellOf(x[i], y[i]);
+              pointCell[i] = cell;
+              cellStart[cell + 1]++;
+              indexed++;
+         }
+         for(int cell = 0; cell < cells; cell++) {
+              cellStart[cell + 1] += cellStart[cell];
+         }
+         // cellStart[cell] is the write position while filling, shifted back afterwards
+         for(int i = 0; i < count; i++) {
+              if(pointCell[i] >= 0) {
+                   cellPoints[cellStart[pointCell[i]]++] = i;
+              }
+         }
+         for(int cell = cells; cell > 0; cell--) {
+              cellStart[cell] = cellStart[cell - 1];
+         }
+         cellStart[0] = 0;
+         if(cellStart[cells] != indexed) {
+              throw new IllegalStateException("Grid lost points: " + cellStart[cells] + " of " + indexed);
+         }
+    }
+
+    /**
+     * Finds the k points nearest to (x, y).
+     *
+     * @param out Receives the indexes of the nearest points, nearest first
+     * @return Number of points written, less than k if fewer are indexed
+     */
+    public int nearest(int x, int y, int k, int[] out) {
+         return search(x, y, k, Integer.MAX_VALUE, out);
+    }
+
+    /**
+     * Finds every point within radius of (x, y).
+     *
+     * @param out Receives the indexes of the points, nearest first. Must hold every indexed point.
+     * @return Number of points written
+     */
+    public int withinRadius(int x, int y, int radius, int[] out) {
+         return search(x, y, Integer.MAX_VALUE, radius, out);
+    }
+
+    /**
+     * Ring search around the query cell. After ring r every unvisited point is more than r * cellSize away,
+     * so the search stops once k points at most that far are known or the radius is covered.
+     */
+    private int search(int x, int y, int k, int radius, int[] out) {
+         int limit = Math.min(k, cellPoints.length);
+         if(limit <= 0) {
+              return 0;
+         }
+         if(bestIndex.length < limit + 1) {
+              bestIndex = new int[limit + 1];
+              bestDistance = new int[limit + 1];
+         }
+         int found = 0;
+         int column = clamp(x / cellSize, columns);
+         int row = clamp(y / cellSize, rows);
+         int maxRing = Math.max(Math.max(column, columns - 1 - column), Math.max(row, rows - 1 - row));
+         for(int ring = 0; ring <= maxRing; ring++) {
+              for(int cy = row - ring; cy <= row + ring; cy++) {
+                   if(cy < 0 || cy >= rows) {
+                        continue;
+                   }
+                   boolean edgeRow = cy == row - ring || cy == row + ring;
+                   for(int cx = column - ring; cx <= column + ring; cx += edgeRow ? 1 : 2 * ring) {
+                        if(cx >= 0 && cx < columns) {
+                             found = visitCell(cx + cy * columns, x, y, limit, radius, found);
+                        }
+                        if(ring == 0) {
+                             break;
+                        }
+                   }
+              }
+              long reach = (long) ring * cellSize;
+              if((found == limit && bestDistance[found - 1] <= reach) || reach >= radius) {
+                   break;
+              }
+         }
+         System.arraycopy(bestIndex, 0, out, 0, found);
+         return found;
+    }
+
+    /**
+     * Inserts the cell's points into the sorted best list.
+     */
+    private int visitCell(int cell, int x, int y, int limit, int radius, int found) {
+         for(int p = cellStart[cell]; p < cellStart[cell + 1]; p++) {
+              int index = cellPoints[p];
+              int distance = Math.max(Math.abs(pointX[index] - x), Math.abs(pointY[index] - y));
+              if(distance > radius) {
+                   continue;
+              }
+              int position = found;
+              while(position > 0 && (bestDistance[position - 1] > distance
+                        || (bestDistance[position - 1] == distance && bestIndex[position - 1] > index))) {
+                   position--;
+              }
+              if(position >= limit) {
+                   continue;
+              }
+              int end = Math.min(found, limit - 1);
+              System.arraycopy(bestIndex, position, bestIndex, position + 1, end - position);
+              System.arraycopy(bestDistance, position, bestDistance, position + 1, end - position);
+              bestIndex[position] = index;
+              bestDistance[position] = distance;
+              found = Math.min(found + 1, limit);
+         }
+         return found;
+    }
+
+    private int cellOf(int x, int y) {
+         return clamp(x / cellSize, columns) + clamp(y / cellSize, rows) * columns;
+    }
+
+    private static int clamp(int value, int size) {
+         return Math.max(0, Math.min(size - 1, value));
+    }
+}
@@ -0,0 +1,22 @@
+package edu.cwru.sepia.agent;
+
+/**
+ * Runs an RLAgent's test sessions outside of its own episodes.
+ *
+ * When an RLAgent has an evaluator it no longer plays the greedy test episodes of its schedule. At the point
+ * where a test session would start it hands a snapshot of its weights to the evaluator and goes on learning.
+ * The evaluator plays the session with those weights, e.g. concurrently on frozen copies of the agent, and
+ * reports the result back through {@link RLAgent#addTestResult(double, double[], int)}, which records it in
+ * the test list and checkpoints it like a session the agent played itself.
+ */
+public interface TestEvaluator {
+
+    /**
+     * Called from the agent's initialStep or terminalStep when a test session is due.
+     *
+     * @param agent The agent whose session is due, its state is the state the session starts from
+     * @param weights Copy of the agent's weights, not modified afterwards
+     * @param episode The agent's numEpisode when the session was due, to be passed back with the result
+     */
+    void evaluate(RLAgent agent, double[] weights, int episode);
+}
@@ -0,0 +1,196 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+
+/**
+ * Per-footman credit assignment over several events, TD(lambda) eligibility traces or n-step returns.
+ *
+ * A footman's step runs from one of its events to the next, the action is the target chosen at the first and
+ * the reward is calculateReward at the second. The one-step update credits that reward to the last action
+ * only, so a kill worth 100 reaches the choices that set it up one event at a time. Both modes here pass it
+ * further back:
+ *
+ * TD(lambda) - every footman has a trace vector e = gamma * lambda * e + phi(s,a), summed as it takes actions.
+ *              The TD error r + gamma * max Q(s',a') - Q(s,a) of its last action moves the weights along e,
+ *              so earlier actions share it, decayed by gamma * lambda per step.
+ * n-step     - every footman keeps its last n actions with their discounted reward sums. Once the oldest has
+ *              n rewards its return r1 + gamma r2 + ... + gamma^(n-1) rn + gamma^n max Q(s_n,a') replaces the
+ *              one-step target and it leaves the buffer.
+ *
+ * phi(s,a) is the features of the pair when the action was chosen. A terminal step, the footman died or the
+ * episode ended, bootstraps from 0, credits every action n-step still holds and clears the footman. The
+ * epsilon the agent explores with decays within a few dozen episodes, so traces are not cut at exploratory
+ * actions as in Watkins's Q(lambda) and n-step returns are not corrected for them.
+ *
+ * All state is in flat arrays indexed by unit id, like the agent's lastTargets, and credit adds the
+ * update directions to a caller's vector, so an event allocates nothing.
+ */
+public class TraceBuffer {
+
+    private final int numFeatures;
+    private final double gamma;
+    private final double lambda;
+    private final int n;
+    /**
+     * Updates credit can produce at once, n for n-step, 1 for traces
+     */
+    private final double[] errors;
+
+    /**
+     * TD(lambda): trace of unit u at u * numFeatures, features of its last action at the same offset
+     */
+    private double[] traces = new double[0];
+    private double[] last = new double[0];
+    private boolean[] pending = new boolean[0];
+
+    /**
+     * n-step: slot k of unit u at u * n + k, its features at (u * n + k) * numFeatures
+     */
+    private double[] slotFeatures = new double[0];
+    private double[] slotReturns = new double[0];
+    private double[] slotDiscounts = new double[0];
+    private int[] slotAges = new int[0];
+    private int[] heads = new int[0];
+    private int[] sizes = new int[0];
+
+    /**
+     * @param numFeatures Length of a feature vector
+     * @param gamma Discount factor
+     * @param lambda Trace decay in (0, 1], used when n is 0
+     * @param n Steps of an n-step return, 0 for TD(lambda)
+     */
+    public TraceBuffer(int numFeatures, double gamma, double lambda, int n) {
+         if(n < 0 || (n == 0 && (lambda <= 0 || lambda > 1))) {
+              throw new IllegalArgumentException("Expected n >= 1 or lambda in (0, 1], got n=" + n + " lambda=" + lambda);
+         }
+         this.numFeatures = numFeatures;
+         this.gamma = gamma;
+         this.lambda = lambda;
+         this.n = n;
+         errors = new double[Math.max(1, n)];
+    }
+
+    /**
+     * Grows the buffers to hold units with ids below units.
+     */
+    public void ensureUnits(int units) {
+         if(n == 0 && pending.length < units) {
+              traces = Arrays.copyOf(traces, units * numFeatures);
+              last = Arrays.copyOf(last, units * numFeatures);
+              pending = Arrays.copyOf(pending, units);
+         } else if(n > 0 && sizes.length < units) {
+              slotFeatures = Arrays.copyOf(slotFeatures, units * n * numFeatures);
+              slotReturns = Arrays.copyOf(slotReturns, units * n);
+              slotDiscounts = Arrays.copyOf(slotDiscounts, units * n);
+              slotAges = Arrays.copyOf(slotAges, units * n);
+              heads = Arrays.copyOf(heads, units);
+              sizes = Arrays.copyOf(sizes, units);
+         }
+    }
+
+    /**
+     * Forgets every unit's actions, unit ids are reused between episodes.
+     */
+    public void clear() {
+         Arrays.fill(traces, 0);
+         Arrays.fill(pending, false);
+         Arrays.fill(sizes, 0);
+    }
+
+    /**
+     * Forgets the unit's actions, e.g. once it died.
+     */
+    public void clear(int unit) {
+         if(n == 0) {
+              Arrays.fill(traces, unit * numFeatures, (unit + 1) * numFeatures, 0);
+              pending[unit] = false;
+         } else {
+              sizes[unit] = 0;
+         }
+    }
+
+    /**
+     * Records the unit's new action.
+     * @param unit unit id
+     * @param features phi(s,a) of the chosen pair, numFeatures values
+     */
+    public void push(int unit, double[] features) {
+         if(n == 0) {
+              int base = unit * numFeatures;
+              for(int i = 0; i < numFeatures; i++) {
+                   traces[base + i] = gamma * lambda * traces[base + i] + features[i];
+              }
+              System.arraycopy(features, 0, last, base, numFeatures);
+              pending[unit] = true;
+              return;
+         }
+         if(sizes[unit] == n) {
+              //the unit went uncredited since its last action, drop the oldest rather than overwrite a younger one
+              heads[unit] = (heads[unit] + 1) % n;
+              sizes[unit]--;
+         }
+         int slot = unit * n + (heads[unit] + sizes[unit]) % n;
+         System.arraycopy(features, 0, slotFeatures, slot * numFeatures, numFeatures);
+         slotReturns[slot] = 0;
+         slotDiscounts[slot] = 1;
+         slotAges[slot] = 0;
+         sizes[unit]++;
+    }
+
+    /**
+     * Credits the reward of the unit's last step and adds the resulting updates, each TD error times the
+     * vector it moves the weights along, to direction. A terminal step also clears the unit.
+     * @param unit unit id
+     * @param reward reward of the step
+     * @param maxNextQ max Q(s',a') of the state the step ended in, ignored when terminal
+     * @param terminal whether the unit's episode ended with the step
+     * @param weights current weights, Q(s,a) of the credited actions
+     * @param direction receives the sum of the updates, numFeatures values
+     * @return Number of updates added, their TD errors are getError(0) and on
+     */
+    public int credit(int unit, double reward, double maxNextQ, boolean terminal, double[] weights, double[] direction) {
+         double bootstrap = terminal ? 0 : maxNextQ;
+         if(n == 0) {
+              if(!pending[unit]) {
+                   return 0;
+              }
+              int base = unit * numFeatures;
+              errors[0] = reward + gamma * bootstrap - QKernel.dot(weights, last, base, numFeatures);
+              for(int i = 0; i < numFeatures; i++) {
+                   direction[i] += errors[0] * traces[base + i];
+              }
+              if(terminal) {
+                   clear(unit);
+              }
+              return 1;
+         }
+         for(int k = 0; k < sizes[unit]; k++) {
+              int slot = unit * n + (heads[unit] + k) % n;
+              slotReturns[slot] += slotDiscounts[slot] * reward;
+              slotDiscounts[slot] *= gamma;
+              slotAges[slot]++;
+         }
+         int updates = 0;
+         //the oldest action is the only one that can be complete, the others are younger
+         while(sizes[unit] > 0 && (terminal || slotAges[unit * n + heads[unit]] >= n)) {
+              int slot = unit * n + heads[unit];
+              int offset = slot * numFeatures;
+              errors[updates] = slotReturns[slot] + slotDiscounts[slot] * bootstrap
+                        - QKernel.dot(weights, slotFeatures, offset, numFeatures);
+              for(int i = 0; i < numFeatures; i++) {
+                   direction[i] += errors[updates] * slotFeatures[offset + i];
+              }
+              updates++;
+              heads[unit] = (heads[unit] + 1) % n;
+              sizes[unit]--;
+         }
+         return updates;
+    }
+
+    /**
+     * @return TD error of the k-th update of the last credit call
+     */
+    public double getError(int k) {
+         return errors[k];
+    }
+}
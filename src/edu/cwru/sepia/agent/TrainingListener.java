@@ -0,0 +1,20 @@
+package edu.cwru.sepia.agent;
+
+/**
+ * Callback for runners that drive one or more RLAgents themselves.
+ *
+ * When an RLAgent has a listener it hands every finished test session to it instead of saving weights,
+ * printing the learning curve and exiting the JVM on its own. This lets a runner aggregate several agents
+ * and decide what to persist.
+ */
+public interface TrainingListener {
+
+    /**
+     * Called from the agent's terminalStep after the last episode of a test session.
+     *
+     * @param agent The agent that finished the session
+     * @param session Zero based index of the session, the position of the result in the agent's test list
+     * @param averageReward Average cumulative reward of the session's test episodes
+     */
+    void testSessionFinished(RLAgent agent, int session, double averageReward);
+}
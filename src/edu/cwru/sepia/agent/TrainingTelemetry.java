@@ -0,0 +1,245 @@
+package edu.cwru.sepia.agent;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Per-episode and per-turn metrics of an RLAgent, streamed to CSV or JSON-lines files.
+ *
+ * The agent holds a null telemetry unless it was configured, and every hook is behind that null check, so a
+ * run without telemetry pays one branch per hook. With telemetry the hooks only add to counters and the
+ * latency histogram. One row per episode is written when the episode ends, and with turns enabled one row per
+ * middleStep as well. Files are flushed after every episode so a dashboard can tail them during a run.
+ *
+ * episodes file columns:
+ * episode, test          - the agent's episode number and whether it was a test episode
+ * turns, wallMillis      - last turn number and wall time from initialStep to terminalStep
+ * events                 - middleSteps that fired an event, firstTurn/death/damage/feedback count the causes,
+ *                          an event with several causes counts towards each
+ * weightUpdates          - TD updates applied, one per footman online or one per sampled transition with replay
+ * updatesPerSecond       - weightUpdates over the wall time
+ * meanAbsTdError, maxAbsTdError - magnitude of the TD terms of those updates
+ * weightNorm             - L2 norm of the weights at the end of the episode
+ * reward                 - sum of calculateReward over the surviving footmen at the end of the episode
+ * middleStepMeanMicros, middleStepP50Micros, P90, P99, MaxMicros - middleStep latency
+ * candidateChecks, candidateMismatches - footman decisions compared to exhaustive scoring with a candidates
+ *                          mode, and how many of them picked a different target
+ *
+ * turns file columns: episode, turn, event, firstTurn, death, damage, feedback, weightUpdates, nanos
+ */
+public class TrainingTelemetry {
+
+    private static final String[] EPISODE_COLUMNS = {"episode", "test", "turns", "wallMillis", "events",
+              "firstTurnEvents", "deathEvents", "damageEvents", "feedbackEvents", "weightUpdates", "updatesPerSecond",
+              "meanAbsTdError", "maxAbsTdError", "weightNorm", "reward", "middleStepMeanMicros", "middleStepP50Micros",
+              "middleStepP90Micros", "middleStepP99Micros", "middleStepMaxMicros", "candidateChecks",
+              "candidateMismatches"};
+    private static final String[] TURN_COLUMNS = {"episode", "turn", "event", "firstTurn", "death", "damage",
+              "feedback", "weightUpdates", "nanos"};
+
+    private final boolean json;
+    private final BufferedWriter episodeWriter;
+    private final BufferedWriter turnWriter;
+    private final Object[] episodeRow = new Object[EPISODE_COLUMNS.length];
+    private final Object[] turnRow = new Object[TURN_COLUMNS.length];
+
+    private final LatencyHistogram middleStepNanos = new LatencyHistogram();
+    private int episode;
+    private boolean test;
+    private long episodeStart;
+    private int events;
+    private final int[] causes = new int[4];
+    private long weightUpdates;
+    private double sumAbsTdError;
+    private double maxAbsTdError;
+    private long turnUpdatesStart;
+    private int candidateChecks;
+    private int candidateMismatches;
+
+    /**
+     * Opens telemetry-&lt;runId&gt;-episodes and, if turns is set, telemetry-&lt;runId&gt;-turns in the directory.
+     *
+     * @param directory Created if missing
+     * @param runId Distinguishes the files of agents writing to the same directory
+     * @param format csv or jsonl
+     * @param turns true to write a row per middleStep
+     * @throws IOException if the files can not be created
+     */
+    public TrainingTelemetry(File directory, String runId, String format, boolean turns) throws IOException {
+         if(!format.equals("csv") && !format.equals("jsonl")) {
+              throw new IllegalArgumentException("Telemetry format must be csv or jsonl, not " + format);
+         }
+         json = format.equals("jsonl");
+         directory.mkdirs();
+         episodeWriter = open(new File(directory, "telemetry-" + runId + "-episodes." + format), EPISODE_COLUMNS);
+         turnWriter = turns ? open(new File(directory, "telemetry-" + runId + "-turns." + format), TURN_COLUMNS) : null;
+    }
+
+    public void startEpisode(int episode, boolean test) {
+         this.episode = episode;
+         this.test = test;
+         episodeStart = System.nanoTime();
+         events = 0;
+         Arrays.fill(causes, 0);
+         weightUpdates = 0;
+         sumAbsTdError = 0;
+         maxAbsTdError = 0;
+         candidateChecks = 0;
+         candidateMismatches = 0;
+         middleStepNanos.reset();
+    }
+
+    /**
+     * Marks the start of a middleStep, the updates recorded until endTurn are attributed to it.
+     */
+    public void startTurn() {
+         turnUpdatesStart = weightUpdates;
+    }
+
+    /**
+     * Records one TD update.
+     * @param tdError TD term the weights moved along
+     */
+    public void recordUpdate(double tdError) {
+         double magnitude = Math.abs(tdError);
+         weightUpdates++;
+         sumAbsTdError += magnitude;
+         maxAbsTdError = Math.max(maxAbsTdError, magnitude);
+    }
+
+    /**
+     * Records a comparison of pruned and exhaustive target selection.
+     * @param checks footman decisions compared
+     * @param mismatches decisions where pruning picked a different target
+     */
+    public void recordCandidateCheck(int checks, int mismatches) {
+         candidateChecks += checks;
+         candidateMismatches += mismatches;
+    }
+
+    /**
+     * Records a finished middleStep.
+     * @param turn turn number of the step
+     * @param event whether an event fired, the cause flags are ignored otherwise
+     * @param nanos wall time of the step
+     */
+    public void endTurn(int turn, boolean event, boolean firstTurn, boolean death, boolean damage, boolean feedback, long nanos) {
+         middleStepNanos.record(nanos);
+         if(event) {
+              events++;
+              causes[0] += firstTurn ? 1 : 0;
+              causes[1] += death ? 1 : 0;
+              causes[2] += damage ? 1 : 0;
+              causes[3] += feedback ? 1 : 0;
+         }
+         if(turnWriter != null) {
+              turnRow[0] = episode;
+              turnRow[1] = turn;
+              turnRow[2] = event;
+              turnRow[3] = event && firstTurn;
+              turnRow[4] = event && death;
+              turnRow[5] = event && damage;
+              turnRow[6] = event && feedback;
+              turnRow[7] = weightUpdates - turnUpdatesStart;
+              turnRow[8] = nanos;
+              write(turnWriter, TURN_COLUMNS, turnRow);
+         }
+    }
+
+    /**
+     * Writes the episode's row and flushes both files.
+     * @param turns last turn number of the episode
+     * @param weights weights at the end of the episode
+     * @param reward reward of the episode
+     */
+    public void endEpisode(int turns, double[] weights, double reward) {
+         double seconds = (System.nanoTime() - episodeStart) / 1e9;
+         double norm = 0;
+         for(double weight : weights) {
+              norm += weight * weight;
+         }
+         episodeRow[0] = episode;
+         episodeRow[1] = test;
+         episodeRow[2] = turns;
+         episodeRow[3] = seconds * 1e3;
+         episodeRow[4] = events;
+         episodeRow[5] = causes[0];
+         episodeRow[6] = causes[1];
+         episodeRow[7] = causes[2];
+         episodeRow[8] = causes[3];
+         episodeRow[9] = weightUpdates;
+         episodeRow[10] = seconds > 0 ? weightUpdates / seconds : 0;
+         episodeRow[11] = weightUpdates > 0 ? sumAbsTdError / weightUpdates : 0;
+         episodeRow[12] = maxAbsTdError;
+         episodeRow[13] = Math.sqrt(norm);
+         episodeRow[14] = reward;
+         episodeRow[15] = middleStepNanos.getMean() / 1e3;
+         episodeRow[16] = middleStepNanos.getValueAtPercentile(50) / 1e3;
+         episodeRow[17] = middleStepNanos.getValueAtPercentile(90) / 1e3;
+         episodeRow[18] = middleStepNanos.getValueAtPercentile(99) / 1e3;
+         episodeRow[19] = middleStepNanos.getMax() / 1e3;
+         episodeRow[20] = candidateChecks;
+         episodeRow[21] = candidateMismatches;
+         write(episodeWriter, EPISODE_COLUMNS, episodeRow);
+         try {
+              episodeWriter.flush();
+              if(turnWriter != null) {
+                   turnWriter.flush();
+              }
+         } catch(IOException ex) {
+              System.err.println("Failed to flush telemetry. Reason: " + ex.getMessage());
+         }
+    }
+
+    public void close() {
+         try {
+              episodeWriter.close();
+              if(turnWriter != null) {
+                   turnWriter.close();
+              }
+         } catch(IOException ex) {
+              System.err.println("Failed to close telemetry. Reason: " + ex.getMessage());
+         }
+    }
+
+    private BufferedWriter open(File file, String[] columns) throws IOException {
+         BufferedWriter writer = new BufferedWriter(new FileWriter(file, false));
+         if(!json) {
+              writer.write(String.join(",", columns));
+              writer.newLine();
+         }
+         return writer;
+    }
+
+    private void write(BufferedWriter writer, String[] columns, Object[] row) {
+         StringBuilder line = new StringBuilder(json ? "{" : "");
+         for(int i = 0; i < columns.length; i++) {
+              if(i > 0) {
+                   line.append(',');
+              }
+              if(json) {
+                   line.append('"').append(columns[i]).append("\":");
+              }
+              Object value = row[i];
+              if(value instanceof Double) {
+                   double d = (Double) value;
+                   line.append(Double.isFinite(d) ? String.format(Locale.ROOT, "%.6g", d) : (json ? "null" : ""));
+              } else {
+                   line.append(value);
+              }
+         }
+         if(json) {
+              line.append('}');
+         }
+         try {
+              writer.write(line.toString());
+              writer.newLine();
+         } catch(IOException ex) {
+              System.err.println("Failed to write telemetry. Reason: " + ex.getMessage());
+         }
+    }
+}
@@ -0,0 +1,299 @@
+package edu.cwru.sepia.agent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the trajectory logs written by TrajectoryRecorder.
+ *
+ * Opening a log only reads the block headers. readBlock maps the block's bytes read-only, inflates them and
+ * decodes its episodes, so blocks can be decoded by several threads at once and the file is never copied
+ * through the heap as a whole. A block cut off by a crash while it was appended ends the log, a block whose
+ * CRC does not match fails to read.
+ */
+public class TrajectoryLog implements Closeable {
+
+    private static final int HEADER_BYTES = 8;
+    private static final int BLOCK_HEADER_BYTES = 12;
+
+    private final Path file;
+    private final FileChannel channel;
+    private long[] blockOffsets = new long[16];
+    private int numBlocks = 0;
+
+    /**
+     * Opens a log and indexes its blocks.
+     *
+     * @throws IOException if the file can not be read or is not a trajectory log
+     */
+    public TrajectoryLog(Path file) throws IOException {
+         this.file = file;
+         checkHeader(file);
+         channel = FileChannel.open(file, StandardOpenOption.READ);
+         long size = channel.size();
+         ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_BYTES);
+         for(long offset = HEADER_BYTES; offset + BLOCK_HEADER_BYTES <= size; ) {
+              header.clear();
+              channel.read(header, offset);
+              int compressedLength = header.getInt(0);
+              if(compressedLength < 0 || offset + BLOCK_HEADER_BYTES + compressedLength > size) {
+                   break;
+              }
+              if(numBlocks == blockOffsets.length) {
+                   blockOffsets = Arrays.copyOf(blockOffsets, numBlocks * 2);
+              }
+              blockOffsets[numBlocks++] = offset;
+              offset += BLOCK_HEADER_BYTES + compressedLength;
+         }
+    }
+
+    /**
+     * @throws IOException if the file does not start with TrajectoryRecorder's magic and version
+     */
+    static void checkHeader(Path file) throws IOException {
+         try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+              ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+              while(header.hasRemaining() && channel.read(header) >= 0) {
+                   //read until full or end of file
+              }
+              if(header.position() < HEADER_BYTES || header.getInt(0) != TrajectoryRecorder.MAGIC) {
+                   throw new IOException(file + " is not a trajectory log");
+              }
+              if(header.getInt(4) != TrajectoryRecorder.VERSION) {
+                   throw new IOException(file + " has unsupported trajectory log version " + header.getInt(4));
+              }
+         }
+    }
+
+    public Path getFile() {
+         return file;
+    }
+
+    public int getNumBlocks() {
+         return numBlocks;
+    }
+
+    /**
+     * Decodes one block. Safe to call from several threads.
+     *
+     * @return The block's episodes in recorded order
+     * @throws IOException if the block is damaged
+     */
+    public List<Episode> readBlock(int block) throws IOException {
+         long offset = blockOffsets[block];
+         ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_BYTES);
+         channel.read(header, offset);
+         int compressedLength = header.getInt(0);
+         int rawLength = header.getInt(4);
+         int crc = header.getInt(8);
+         ByteBuffer compressed = channel.map(FileChannel.MapMode.READ_ONLY, offset + BLOCK_HEADER_BYTES, compressedLength);
+         byte[] raw = new byte[rawLength];
+         Inflater inflater = new Inflater();
+         try {
+              inflater.setInput(compressed);
+              int length = 0;
+              while(length < rawLength && !inflater.finished()) {
+                   int inflated = inflater.inflate(raw, length, rawLength - length);
+                   if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                   }
+                   length += inflated;
+              }
+              if(length != rawLength) {
+                   throw new IOException("Block " + block + " of " + file + " is truncated");
+              }
+         } catch(DataFormatException ex) {
+              throw new IOException("Block " + block + " of " + file + " is damaged", ex);
+         } finally {
+              inflater.end();
+         }
+         CRC32 check = new CRC32();
+         check.update(raw);
+         if((int) check.getValue() != crc) {
+              throw new IOException("Block " + block + " of " + file + " fails its CRC");
+         }
+         return decode(ByteBuffer.wrap(raw));
+    }
+
+    @Override
+    public void close() throws IOException {
+         channel.close();
+    }
+
+    private static List<Episode> decode(ByteBuffer in) throws IOException {
+         List<Episode> episodes = new ArrayList<>();
+         Episode episode = null;
+         while(in.hasRemaining()) {
+              byte type = in.get();
+              if(type == TrajectoryRecorder.EPISODE) {
+                   episode = new Episode(in.getInt(), in.get() != 0);
+              } else if(type == TrajectoryRecorder.EVENT && episode != null) {
+                   Event event = new Event();
+                   event.turn = in.getInt();
+                   event.mine = Units.read(in);
+                   event.enemies = Units.read(in);
+                   int numDamage = in.getInt();
+                   event.damageAttackers = new int[numDamage];
+                   event.damageDefenders = new int[numDamage];
+                   event.damageAmounts = new int[numDamage];
+                   for(int i = 0; i < numDamage; i++) {
+                        event.damageAttackers[i] = in.getInt();
+                        event.damageDefenders[i] = in.getInt();
+                        event.damageAmounts[i] = in.getInt();
+                   }
+                   int numDeaths = in.getInt();
+                   event.deadUnits = new int[numDeaths];
+                   event.deadControllers = new int[numDeaths];
+                   for(int i = 0; i < numDeaths; i++) {
+                        event.deadUnits[i] = in.getInt();
+                        event.deadControllers[i] = in.getInt();
+                   }
+                   int numRewards = in.getInt();
+                   event.rewardFootmen = new int[numRewards];
+                   event.rewards = new double[numRewards];
+                   for(int i = 0; i < numRewards; i++) {
+                        event.rewardFootmen[i] = in.getInt();
+                        event.rewards[i] = in.getDouble();
+                   }
+                   int numActions = in.getInt();
+                   event.actionFootmen = new int[numActions];
+                   event.actionTargets = new int[numActions];
+                   for(int i = 0; i < numActions; i++) {
+                        event.actionFootmen[i] = in.getInt();
+                        event.actionTargets[i] = in.getInt();
+                   }
+                   episode.events.add(event);
+              } else if(type == TrajectoryRecorder.END && episode != null) {
+                   episode.endTurn = in.getInt();
+                   int numRewards = in.getInt();
+                   episode.endFootmen = new int[numRewards];
+                   episode.endRewards = new double[numRewards];
+                   for(int i = 0; i < numRewards; i++) {
+                        episode.endFootmen[i] = in.getInt();
+                        episode.endRewards[i] = in.getDouble();
+                   }
+                   episodes.add(episode);
+                   episode = null;
+              } else {
+                   throw new IOException("Unexpected trajectory record " + type);
+              }
+         }
+         return episodes;
+    }
+
+    /**
+     * One recorded episode. Its last footmen's choices end with endRewards.
+     */
+    public static class Episode {
+         public final int episode;
+         public final boolean test;
+         public final List<Event> events = new ArrayList<>();
+         public int endTurn;
+         public int[] endFootmen;
+         public double[] endRewards;
+
+         Episode(int episode, boolean test) {
+              this.episode = episode;
+              this.test = test;
+         }
+    }
+
+    /**
+     * One recorded event, the state the agent decided in and what it decided.
+     */
+    public static class Event {
+         public int turn;
+         public Units mine;
+         public Units enemies;
+         public int[] damageAttackers;
+         public int[] damageDefenders;
+         public int[] damageAmounts;
+         public int[] deadUnits;
+         public int[] deadControllers;
+         /**
+          * Footmen whose previous choice this event concludes, and the reward of each.
+          */
+         public int[] rewardFootmen;
+         public double[] rewards;
+         public int[] actionFootmen;
+         public int[] actionTargets;
+
+         /**
+          * @return Damage logs of the previous turn with unitId as the defender, as CombatLogIndex counts them
+          */
+         public int getHitsTaken(int unitId) {
+              int hits = 0;
+              for(int defender : damageDefenders) {
+                   hits += defender == unitId ? 1 : 0;
+              }
+              return hits;
+         }
+
+         /**
+          * @return true if attackerId damaged defenderId on the previous turn
+          */
+         public boolean attacked(int attackerId, int defenderId) {
+              for(int i = 0; i < damageAttackers.length; i++) {
+                   if(damageAttackers[i] == attackerId && damageDefenders[i] == defenderId) {
+                        return true;
+                   }
+              }
+              return false;
+         }
+    }
+
+    /**
+     * One side's units at an event, in the agent's list order.
+     */
+    public static class Units {
+         public int[] ids;
+         public boolean[] present;
+         public int[] x;
+         public int[] y;
+         public int[] hp;
+
+         public int size() {
+              return ids.length;
+         }
+
+         /**
+          * @return Position of unitId in the list, -1 if it is not in it
+          */
+         public int indexOf(int unitId) {
+              for(int i = 0; i < ids.length; i++) {
+                   if(ids[i] == unitId) {
+                        return i;
+                   }
+              }
+              return -1;
+         }
+
+         static Units read(ByteBuffer in) {
+              int count = in.getInt();
+              Units units = new Units();
+              units.ids = new int[count];
+              units.present = new boolean[count];
+              units.x = new int[count];
+              units.y = new int[count];
+              units.hp = new int[count];
+              for(int i = 0; i < count; i++) {
+                   units.ids[i] = in.getInt();
+                   units.present[i] = in.get() != 0;
+                   units.x[i] = in.getInt();
+                   units.y[i] = in.getInt();
+                   units.hp[i] = in.getInt();
+              }
+              return units;
+         }
+    }
+}
@@ -0,0 +1,262 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.environment.model.history.DamageLog;
+import edu.cwru.sepia.environment.model.history.DeathLog;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Unit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Streams an RLAgent's events to an append-only, block-compressed trajectory log, read back by TrajectoryLog.
+ *
+ * Each event records what the agent saw and did: its footmen and the enemies with their position and hit
+ * points, the previous turn's damage and death logs, the reward of every footman whose last choice the event
+ * concludes and the targets chosen. That is enough to recompute any feature of the state and replay the
+ * episodes without SEPIA, e.g. with OfflineTrainer.
+ *
+ * The file is, big endian, an int MAGIC and int VERSION followed by blocks of
+ * int compressedLength, int rawLength, int CRC32 of the raw bytes, compressedLength bytes deflated data.
+ * Blocks only end between episodes, so every block can be decoded and replayed on its own. The raw data is a
+ * sequence of records, each a type byte followed by:
+ * EPISODE  int episode, byte 1 for a test episode
+ * EVENT    int turn, units mine, units enemies, int damage logs (attacker, defender, damage),
+ *          int death logs (unit, controller), int rewards (footman, double reward), int actions (footman, target)
+ * END      int turn, int rewards (footman, double reward) of the footmen alive at the end
+ * where units is an int count followed by (int id, byte present, int x, int y, int hp) per unit, the
+ * agent's unit lists in their order, with absent units kept so features divide by the same army size.
+ *
+ * Records are buffered and a block is compressed and appended when an episode ends with at least blockBytes
+ * buffered, and on close, which a shutdown hook calls for runs that end without closing the recorder.
+ */
+public class TrajectoryRecorder {
+
+    public static final int MAGIC = 0x51545248;
+    public static final int VERSION = 1;
+    public static final String SUFFIX = ".qtr";
+
+    public static final byte EPISODE = 1;
+    public static final byte EVENT = 2;
+    public static final byte END = 3;
+
+    private final File file;
+    private final int blockBytes;
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(buffer);
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private byte[] compressed = new byte[0];
+    private FileOutputStream stream;
+    /**
+     * Buffered bytes up to the end of the last finished episode.
+     */
+    private int finishedBytes = 0;
+
+    private int numRewards = 0;
+    private int[] rewardFootmen = new int[8];
+    private double[] rewards = new double[8];
+    private int numActions = 0;
+    private int[] actionFootmen = new int[8];
+    private int[] actionTargets = new int[8];
+
+    /**
+     * Opens the log, appending to it if it exists.
+     *
+     * @param file The log file, its directory is created if missing
+     * @param blockBytes Raw bytes buffered before a block is written at the end of an episode
+     * @throws IOException if the file can not be opened or is not a trajectory log
+     */
+    public TrajectoryRecorder(File file, int blockBytes) throws IOException {
+         this.file = file;
+         this.blockBytes = blockBytes;
+         if(file.getParentFile() != null) {
+              file.getParentFile().mkdirs();
+         }
+         boolean append = file.length() > 0;
+         if(append) {
+              TrajectoryLog.checkHeader(file.toPath());
+         }
+         stream = new FileOutputStream(file, append);
+         if(!append) {
+              DataOutputStream header = new DataOutputStream(stream);
+              header.writeInt(MAGIC);
+              header.writeInt(VERSION);
+              header.flush();
+         }
+         Runtime.getRuntime().addShutdownHook(new Thread(this::close, "trajectory-recorder-flush"));
+    }
+
+    public File getFile() {
+         return file;
+    }
+
+    /**
+     * Starts an episode, dropping the records of an episode that did not end.
+     */
+    public void startEpisode(int episode, boolean test) throws IOException {
+         if(buffer.size() > finishedBytes) {
+              byte[] raw = buffer.toByteArray();
+              buffer.reset();
+              buffer.write(raw, 0, finishedBytes);
+         }
+         numRewards = 0;
+         numActions = 0;
+         out.writeByte(EPISODE);
+         out.writeInt(episode);
+         out.writeByte(test ? 1 : 0);
+    }
+
+    /**
+     * Adds the reward concluding a footman's last choice to the current event or episode end.
+     */
+    public void addReward(int footmanId, double reward) {
+         if(numRewards == rewardFootmen.length) {
+              rewardFootmen = Arrays.copyOf(rewardFootmen, numRewards * 2);
+              rewards = Arrays.copyOf(rewards, numRewards * 2);
+         }
+         rewardFootmen[numRewards] = footmanId;
+         rewards[numRewards++] = reward;
+    }
+
+    /**
+     * Adds a target chosen at the current event.
+     */
+    public void addAction(int footmanId, int targetId) {
+         if(numActions == actionFootmen.length) {
+              actionFootmen = Arrays.copyOf(actionFootmen, numActions * 2);
+              actionTargets = Arrays.copyOf(actionTargets, numActions * 2);
+         }
+         actionFootmen[numActions] = footmanId;
+         actionTargets[numActions++] = targetId;
+    }
+
+    /**
+     * Writes the event with the rewards and actions added since the last one.
+     *
+     * @param myFootmen The agent's footmen after removing this event's dead
+     * @param enemyFootmen The enemies after removing this event's dead
+     */
+    public void recordEvent(State.StateView stateView, History.HistoryView historyView,
+                            List<Integer> myFootmen, List<Integer> enemyFootmen) throws IOException {
+         int lastTurn = stateView.getTurnNumber() - 1;
+         out.writeByte(EVENT);
+         out.writeInt(stateView.getTurnNumber());
+         writeUnits(stateView, myFootmen);
+         writeUnits(stateView, enemyFootmen);
+         List<DamageLog> damageLogs = lastTurn < 0 ? null : historyView.getDamageLogs(lastTurn);
+         out.writeInt(damageLogs == null ? 0 : damageLogs.size());
+         for(int i = 0; damageLogs != null && i < damageLogs.size(); i++) {
+              DamageLog damageLog = damageLogs.get(i);
+              out.writeInt(damageLog.getAttackerID());
+              out.writeInt(damageLog.getDefenderID());
+              out.writeInt(damageLog.getDamage());
+         }
+         List<DeathLog> deathLogs = lastTurn < 0 ? null : historyView.getDeathLogs(lastTurn);
+         out.writeInt(deathLogs == null ? 0 : deathLogs.size());
+         for(int i = 0; deathLogs != null && i < deathLogs.size(); i++) {
+              out.writeInt(deathLogs.get(i).getDeadUnitID());
+              out.writeInt(deathLogs.get(i).getController());
+         }
+         writeRewards();
+         out.writeInt(numActions);
+         for(int i = 0; i < numActions; i++) {
+              out.writeInt(actionFootmen[i]);
+              out.writeInt(actionTargets[i]);
+         }
+         numActions = 0;
+    }
+
+    /**
+     * Writes the end of the episode with the rewards added since the last event, and a block if enough is
+     * buffered.
+     */
+    public void endEpisode(int turn) throws IOException {
+         out.writeByte(END);
+         out.writeInt(turn);
+         writeRewards();
+         numActions = 0;
+         finishedBytes = buffer.size();
+         if(finishedBytes >= blockBytes) {
+              writeBlock();
+         }
+    }
+
+    /**
+     * Writes what is buffered and closes the file. Records of an unfinished episode are dropped.
+     */
+    public synchronized void close() {
+         if(stream == null) {
+              return;
+         }
+         try {
+              writeBlock();
+              stream.close();
+         } catch(IOException ex) {
+              System.err.println("Failed to write trajectories to " + file + ". Reason: " + ex.getMessage());
+         }
+         stream = null;
+         deflater.end();
+    }
+
+    private synchronized void writeBlock() throws IOException {
+         int length = finishedBytes;
+         if(length == 0 || stream == null) {
+              return;
+         }
+         byte[] raw = buffer.toByteArray();
+         deflater.reset();
+         deflater.setInput(raw, 0, length);
+         deflater.finish();
+         if(compressed.length < length + 64) {
+              compressed = new byte[length + length / 8 + 64];
+         }
+         int compressedLength = 0;
+         while(!deflater.finished()) {
+              if(compressedLength == compressed.length) {
+                   compressed = Arrays.copyOf(compressed, compressed.length * 2);
+              }
+              compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+         }
+         CRC32 crc = new CRC32();
+         crc.update(raw, 0, length);
+         DataOutputStream block = new DataOutputStream(stream);
+         block.writeInt(compressedLength);
+         block.writeInt(length);
+         block.writeInt((int) crc.getValue());
+         block.write(compressed, 0, compressedLength);
+         block.flush();
+         buffer.reset();
+         buffer.write(raw, length, raw.length - length);
+         finishedBytes = 0;
+    }
+
+    private void writeRewards() throws IOException {
+         out.writeInt(numRewards);
+         for(int i = 0; i < numRewards; i++) {
+              out.writeInt(rewardFootmen[i]);
+              out.writeDouble(rewards[i]);
+         }
+         numRewards = 0;
+    }
+
+    private void writeUnits(State.StateView stateView, List<Integer> units) throws IOException {
+         out.writeInt(units.size());
+         for(int i = 0; i < units.size(); i++) {
+              int unitId = units.get(i);
+              Unit.UnitView unit = stateView.getUnit(unitId);
+              out.writeInt(unitId);
+              out.writeByte(unit != null ? 1 : 0);
+              out.writeInt(unit != null ? unit.getXPosition() : 0);
+              out.writeInt(unit != null ? unit.getYPosition() : 0);
+              out.writeInt(unit != null ? unit.getHP() : 0);
+         }
+    }
+}
@@ -0,0 +1,18 @@
+package edu.cwru.sepia.agent;
+
+/**
+ * An agent that can be told the units of an episode instead of finding them in the initial state.
+ *
+ * Runners that reset episodes from a pre-parsed map, such as the CombatSimulator or a SimpleModel fed by a
+ * ScenarioStateCreator, already know which units belong to whom. They call setUnitRoster right before
+ * initialStep and the agent uses the roster for that one initialStep, rather than walking the state view and
+ * classifying every unit by its template name.
+ */
+public interface UnitRosterAware {
+
+    /**
+     * @param friendlyUnits Ids of the agent's units at the start of the next episode, shared read-only
+     * @param enemyUnits Ids of the enemy units at the start of the next episode, shared read-only
+     */
+    void setUnitRoster(int[] friendlyUnits, int[] enemyUnits);
+}
@@ -0,0 +1,376 @@
+package edu.cwru.sepia.agent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Binary weight checkpoints written in the background.
+ *
+ * A checkpoint file is, big endian:
+ * int    MAGIC
+ * int    VERSION
+ * int    number of features
+ * long   hash of the feature names, so weights are never loaded into a different feature set
+ * int    episode the weights were saved at
+ * double average reward of the test session, NaN for periodic checkpoints
+ * long   wall clock time of the save in milliseconds
+ * double weights, one per feature
+ * long   CRC32 of everything before it
+ *
+ * submit copies nothing and returns immediately. The file is written on a single shared daemon thread to a
+ * temporary name and renamed into place atomically, so a reader never sees half a checkpoint. The name holds
+ * the episode, the time, the process id and a sequence number, so writers sharing a directory, e.g. the
+ * workers of a ParallelTrainingRunner or several processes, never pick the same one, and the rename does not
+ * replace existing files. After every write the directory is pruned to the keepLast most recent and the
+ * keepBest highest scoring checkpoints. Both sets are kept in memory, the directory is read once, on the
+ * first write, to pick up the checkpoints of earlier runs.
+ * Writes go through a FileChannel rather than a memory mapping: the files are a few hundred bytes, and a
+ * mapped file can not be renamed or deleted on Windows until the mapping is garbage collected.
+ *
+ * Pending writes are flushed by a shutdown hook, so System.exit after a submit does not lose the checkpoint.
+ */
+public class WeightCheckpointer {
+
+    public static final int MAGIC = 0x51574348;
+    public static final int VERSION = 1;
+    public static final String SUFFIX = ".qwc";
+
+    private static final int HEADER_BYTES = 4 + 4 + 4 + 8 + 4 + 8 + 8;
+
+    private static final long PROCESS_ID = ProcessHandle.current().pid();
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(runnable -> {
+         Thread thread = new Thread(runnable, "weight-checkpointer");
+         thread.setDaemon(true);
+         return thread;
+    });
+
+    static {
+         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+              WRITER.shutdown();
+              try {
+                   WRITER.awaitTermination(30, TimeUnit.SECONDS);
+              } catch (InterruptedException ex) {
+                   Thread.currentThread().interrupt();
+              }
+         }, "weight-checkpointer-flush"));
+    }
+
+    private final Path directory;
+    private final int numFeatures;
+    private final long schemaHash;
+    private final int keepLast;
+    private final int keepBest;
+
+    /**
+     * Checkpoints kept because they are among the keepLast most recent or the keepBest highest scoring, only
+     * touched on the writer thread. scanned is set once the directory's existing checkpoints were added.
+     */
+    private final List<Entry> kept = new ArrayList<>();
+    private boolean scanned;
+
+    /**
+     * @param directory Directory holding the checkpoints, created on the first write
+     * @param featureNames Names of the features in weight order
+     * @param keepLast Number of most recent checkpoints kept
+     * @param keepBest Number of highest scoring checkpoints kept in addition
+     */
+    public WeightCheckpointer(Path directory, String[] featureNames, int keepLast, int keepBest) {
+         this(directory, featureNames.length, schemaHash(featureNames), keepLast, keepBest);
+    }
+
+    /**
+     * For feature sets that are not named one by one, e.g. a SparseFeatures table.
+     *
+     * @param numFeatures Number of weights
+     * @param schemaHash Hash identifying the feature set, see schemaHash
+     */
+    public WeightCheckpointer(Path directory, int numFeatures, long schemaHash, int keepLast, int keepBest) {
+         this.directory = directory;
+         this.numFeatures = numFeatures;
+         this.schemaHash = schemaHash;
+         this.keepLast = keepLast;
+         this.keepBest = keepBest;
+    }
+
+    /**
+     * Queues a checkpoint. The array is written as it is when the writer gets to it, so pass a copy if the
+     * caller keeps updating it.
+     *
+     * @param weights Weights to save, numFeatures long
+     * @param episode Episode number stored with the weights
+     * @param testScore Average test reward, NaN if the checkpoint is not the result of a test session
+     */
+    public void submit(double[] weights, int episode, double testScore) {
+         if(weights.length != numFeatures) {
+              throw new IllegalArgumentException("Expected " + numFeatures + " weights, got " + weights.length);
+         }
+         long time = System.currentTimeMillis();
+         WRITER.execute(() -> write(weights, episode, testScore, time));
+    }
+
+    /**
+     * Runs a task on the writer thread after every checkpoint submitted so far, e.g. a text export.
+     */
+    public void execute(Runnable task) {
+         WRITER.execute(task);
+    }
+
+    /**
+     * Blocks until every write submitted so far is on disk.
+     */
+    public void flush() {
+         try {
+              WRITER.submit(() -> { }).get();
+         } catch (InterruptedException ex) {
+              Thread.currentThread().interrupt();
+         } catch (ExecutionException ex) {
+              throw new IllegalStateException(ex.getCause());
+         }
+    }
+
+    /**
+     * @return The highest scoring readable checkpoint in the directory, null if there is none
+     */
+    public static Checkpoint loadBest(Path directory, String[] featureNames) {
+         return loadBest(directory, featureNames.length, schemaHash(featureNames));
+    }
+
+    /**
+     * @return The highest scoring readable checkpoint of numFeatures weights with the schema hash, null if
+     * there is none
+     */
+    public static Checkpoint loadBest(Path directory, int numFeatures, long schemaHash) {
+         Checkpoint best = null;
+         for(Checkpoint checkpoint : list(directory, numFeatures, schemaHash)) {
+              if(best == null || checkpoint.testScore > best.testScore
+                        || (Double.isNaN(best.testScore) && !Double.isNaN(checkpoint.testScore))) {
+                   best = checkpoint;
+              }
+         }
+         return best;
+    }
+
+    /**
+     * @return The most recently written readable checkpoint in the directory, null if there is none
+     */
+    public static Checkpoint loadLatest(Path directory, String[] featureNames) {
+         Checkpoint latest = null;
+         for(Checkpoint checkpoint : list(directory, featureNames.length, schemaHash(featureNames))) {
+              if(latest == null || checkpoint.time > latest.time) {
+                   latest = checkpoint;
+              }
+         }
+         return latest;
+    }
+
+    /**
+     * Reads and verifies one checkpoint file.
+     *
+     * @throws IOException if the file can not be read, is corrupt or was written for other features
+     */
+    public static Checkpoint load(Path file, String[] featureNames) throws IOException {
+         return read(file, featureNames.length, schemaHash(featureNames));
+    }
+
+    /**
+     * FNV-1a over the feature names, each followed by a zero byte.
+     */
+    public static long schemaHash(String[] featureNames) {
+         long hash = 0xcbf29ce484222325L;
+         for(String name : featureNames) {
+              for(byte b : name.getBytes(StandardCharsets.UTF_8)) {
+                   hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+              }
+              hash *= 0x100000001b3L;
+         }
+         return hash;
+    }
+
+    private void write(double[] weights, int episode, double testScore, long time) {
+         ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + Double.BYTES * numFeatures + Long.BYTES);
+         buffer.putInt(MAGIC).putInt(VERSION).putInt(numFeatures).putLong(schemaHash)
+                   .putInt(episode).putDouble(testScore).putLong(time);
+         for(double weight : weights) {
+              buffer.putDouble(weight);
+         }
+         CRC32 crc = new CRC32();
+         crc.update(buffer.array(), 0, buffer.position());
+         buffer.putLong(crc.getValue());
+         buffer.flip();
+
+         long sequence = SEQUENCE.incrementAndGet();
+         String name = String.format("checkpoint-%010d-%d-%d-%d", episode, time, PROCESS_ID, sequence);
+         Path target = directory.resolve(name + SUFFIX);
+         Path temporary = directory.resolve(name + ".tmp");
+         try {
+              Files.createDirectories(directory);
+              try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                   while(buffer.hasRemaining()) {
+                        channel.write(buffer);
+                   }
+                   channel.force(true);
+              }
+              Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+              prune(new Entry(target, testScore, time, sequence));
+         } catch(IOException ex) {
+              System.err.println("Failed to write checkpoint " + target + ". Reason: " + ex.getMessage());
+         }
+    }
+
+    /**
+     * Adds the checkpoint just written to the kept ones and deletes every checkpoint that is neither among the
+     * keepLast most recent nor the keepBest highest scoring. The first call also adds the checkpoints already
+     * in the directory, which include the new one.
+     */
+    private void prune(Entry written) throws IOException {
+         List<Entry> candidates = new ArrayList<>(kept);
+         candidates.add(written);
+         if(!scanned) {
+              for(Checkpoint checkpoint : list(directory, numFeatures, schemaHash)) {
+                   if(!checkpoint.file.equals(written.file)) {
+                        candidates.add(new Entry(checkpoint.file, checkpoint.testScore, checkpoint.time, 0));
+                   }
+              }
+              scanned = true;
+         }
+         kept.clear();
+         candidates.sort(Comparator.comparingLong((Entry e) -> e.time).thenComparingLong(e -> e.sequence));
+         for(int i = Math.max(0, candidates.size() - keepLast); i < candidates.size(); i++) {
+              kept.add(candidates.get(i));
+         }
+         List<Entry> scored = new ArrayList<>();
+         for(Entry entry : candidates) {
+              if(!Double.isNaN(entry.testScore)) {
+                   scored.add(entry);
+              }
+         }
+         scored.sort(Comparator.comparingDouble((Entry e) -> e.testScore).reversed());
+         for(int i = 0; i < Math.min(keepBest, scored.size()); i++) {
+              if(!kept.contains(scored.get(i))) {
+                   kept.add(scored.get(i));
+              }
+         }
+         for(Entry entry : candidates) {
+              if(!kept.contains(entry)) {
+                   Files.deleteIfExists(entry.file);
+              }
+         }
+    }
+
+    /**
+     * @return Every readable checkpoint of the given schema in the directory, unreadable files are skipped
+     */
+    private static List<Checkpoint> list(Path directory, int numFeatures, long schemaHash) {
+         List<Checkpoint> checkpoints = new ArrayList<>();
+         if(!Files.isDirectory(directory)) {
+              return checkpoints;
+         }
+         try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+              for(Path file : files) {
+                   try {
+                        checkpoints.add(read(file, numFeatures, schemaHash));
+                   } catch(IOException ex) {
+                        // another schema or a damaged file, neither is ours to load or prune
+                   }
+              }
+         } catch(IOException ex) {
+              System.err.println("Failed to list checkpoints in " + directory + ". Reason: " + ex.getMessage());
+         }
+         return checkpoints;
+    }
+
+    private static Checkpoint read(Path file, int numFeatures, long schemaHash) throws IOException {
+         ByteBuffer buffer;
+         try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+              long size = channel.size();
+              if(size != HEADER_BYTES + Double.BYTES * (long) numFeatures + Long.BYTES) {
+                   throw new IOException(file + " has " + size + " bytes, not a checkpoint of " + numFeatures + " features");
+              }
+              buffer = ByteBuffer.allocate((int) size);
+              while(buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                   // read until full
+              }
+         }
+         buffer.flip();
+         CRC32 crc = new CRC32();
+         crc.update(buffer.array(), 0, buffer.limit() - Long.BYTES);
+         if(buffer.getLong(buffer.limit() - Long.BYTES) != crc.getValue()) {
+              throw new IOException(file + " is corrupt");
+         }
+         if(buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+              throw new IOException(file + " is not a version " + VERSION + " checkpoint");
+         }
+         if(buffer.getInt() != numFeatures || buffer.getLong() != schemaHash) {
+              throw new IOException(file + " was written for different features");
+         }
+         int episode = buffer.getInt();
+         double testScore = buffer.getDouble();
+         long time = buffer.getLong();
+         double[] weights = new double[numFeatures];
+         for(int i = 0; i < numFeatures; i++) {
+              weights[i] = buffer.getDouble();
+         }
+         return new Checkpoint(file, weights, episode, testScore, time);
+    }
+
+    /**
+     * What pruning needs to know of a checkpoint on disk.
+     */
+    private static final class Entry {
+         final Path file;
+         final double testScore;
+         final long time;
+         /**
+          * Orders checkpoints written in the same millisecond, 0 for those of earlier runs
+          */
+         final long sequence;
+
+         Entry(Path file, double testScore, long time, long sequence) {
+              this.file = file;
+              this.testScore = testScore;
+              this.time = time;
+              this.sequence = sequence;
+         }
+    }
+
+    /**
+     * One checkpoint read from disk.
+     */
+    public static final class Checkpoint {
+         public final Path file;
+         public final double[] weights;
+         public final int episode;
+         /**
+          * Average test reward, NaN for periodic checkpoints
+          */
+         public final double testScore;
+         public final long time;
+
+         Checkpoint(Path file, double[] weights, int episode, double testScore, long time) {
+              this.file = file;
+              this.weights = weights;
+              this.episode = episode;
+              this.testScore = testScore;
+              this.time = time;
+         }
+    }
+}
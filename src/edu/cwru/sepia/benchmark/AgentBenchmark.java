@@ -0,0 +1,137 @@
+package edu.cwru.sepia.benchmark;
+
+import edu.cwru.sepia.agent.PolicyAgent;
+import edu.cwru.sepia.agent.RLAgent;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.simulation.ScenarioMap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Latency and allocation of RLAgent's hot paths on mid-battle fixtures.
+ *
+ * Fixtures are built from data/rl_5fv5f.xml, data/rl_10fv10f.xml and synthetic maps that scale the 5v5 armies
+ * up (ScenarioMap.withArmySize), see BattleFixture. For every fixture the benchmark measures one call of
+ *
+ * calculateFeatureVector  - one (footman, enemy) pair, cycling through all pairs
+ * calculateReward         - one footman, cycling through all footmen
+ * getMaxQ                 - one footman, computed from scratch as when no feature matrix is built
+ * getMaxQ/matrix          - one footman, read from the feature matrix built for the fixture's views
+ * triggerEventOccured     - one check
+ * middleStep              - a full learning event: weight update, feature matrix and target selection
+ * middleStep/nearest      - the same with candidates=nearest, features only for each footman's nearest enemies
+ * middleStep/frozen       - a greedy event of a frozen RLAgent, the path test episodes take
+ * middleStep/policy       - the same event played by a PolicyAgent with the same weights and no budget
+ *
+ * Each benchmark gets a fresh learning agent so state left behind by one does not favour another.
+ *
+ * java edu.cwru.sepia.benchmark.AgentBenchmark [warmupMillis] [measureMillis] [armySize ...]
+ * Defaults are 1000ms, 2000ms and synthetic armies of 25, 50 and 100 per side. Run from the project root.
+ */
+public class AgentBenchmark {
+
+    private static final long SEED = 12345;
+
+    public static void main(String[] args) throws IOException {
+        long warmupMillis = args.length >= 1 ? Long.parseLong(args[0]) : 1000;
+        long measureMillis = args.length >= 2 ? Long.parseLong(args[1]) : 2000;
+        List<Integer> armySizes = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            armySizes.add(Integer.parseInt(args[i]));
+        }
+        if (armySizes.isEmpty()) {
+            armySizes.add(25);
+            armySizes.add(50);
+            armySizes.add(100);
+        }
+
+        ScenarioMap small = ScenarioMap.load("data/rl_5fv5f.xml");
+        List<BattleFixture> fixtures = new ArrayList<>();
+        fixtures.add(BattleFixture.midBattle("5v5", small, SEED));
+        fixtures.add(BattleFixture.midBattle("10v10", ScenarioMap.load("data/rl_10fv10f.xml"), SEED));
+        for (int size : armySizes) {
+            fixtures.add(BattleFixture.midBattle(size + "v" + size, small.withArmySize(size), SEED));
+        }
+
+        Microbenchmark harness = new Microbenchmark(warmupMillis, measureMillis);
+        System.out.println(Microbenchmark.Result.header());
+        for (BattleFixture fixture : fixtures) {
+            System.out.println(String.format("# %s at turn %d: %d footmen, %d enemies", fixture.name,
+                    fixture.stateView.getTurnNumber(), fixture.myFootmen.size(), fixture.enemyFootmen.size()));
+            for (Microbenchmark.Result result : run(harness, fixture)) {
+                System.out.println(result);
+            }
+        }
+        System.out.println("# sink " + harness.getSink());
+        // same as SimulationValidator, never wait on threads SEPIA's classes may have started
+        System.exit(0);
+    }
+
+    /**
+     * Measures every benchmark on one fixture.
+     */
+    static List<Microbenchmark.Result> run(Microbenchmark harness, BattleFixture fixture) {
+        List<Microbenchmark.Result> results = new ArrayList<>();
+        String prefix = fixture.name + " ";
+        int footmen = fixture.myFootmen.size();
+        int enemies = fixture.enemyFootmen.size();
+
+        RLAgent features = fixture.learningAgent(SEED);
+        int[] pair = {0};
+        results.add(harness.measure(prefix + "calculateFeatureVector", () -> {
+            int p = pair[0];
+            pair[0] = (p + 1) % fixture.getNumPairs();
+            double[] vector = features.calculateFeatureVector(fixture.stateView, fixture.historyView,
+                    fixture.myFootmen.get(p / enemies), fixture.enemyFootmen.get(p % enemies));
+            return vector[1];
+        }));
+
+        RLAgent reward = fixture.learningAgent(SEED);
+        int[] footman = {0};
+        results.add(harness.measure(prefix + "calculateReward", () -> {
+            int f = footman[0];
+            footman[0] = (f + 1) % footmen;
+            return reward.calculateReward(fixture.stateView, fixture.historyView, fixture.myFootmen.get(f));
+        }));
+
+        RLAgent scratch = fixture.learningAgent(SEED);
+        History.HistoryView otherView = fixture.newHistoryView();
+        results.add(harness.measure(prefix + "getMaxQ", () -> {
+            int f = footman[0];
+            footman[0] = (f + 1) % footmen;
+            return scratch.getMaxQ(fixture.stateView, otherView, fixture.myFootmen.get(f));
+        }));
+
+        RLAgent matrix = fixture.learningAgent(SEED);
+        results.add(harness.measure(prefix + "getMaxQ/matrix", () -> {
+            int f = footman[0];
+            footman[0] = (f + 1) % footmen;
+            return matrix.getMaxQ(fixture.stateView, fixture.historyView, fixture.myFootmen.get(f));
+        }));
+
+        RLAgent trigger = fixture.learningAgent(SEED);
+        results.add(harness.measure(prefix + "triggerEventOccured",
+                () -> trigger.triggerEventOccured(fixture.stateView, fixture.historyView) ? 1 : 0));
+
+        RLAgent step = fixture.learningAgent(SEED);
+        results.add(harness.measure(prefix + "middleStep",
+                () -> step.middleStep(fixture.stateView, fixture.historyView).size()));
+
+        RLAgent nearest = fixture.learningAgent(SEED, "candidates=nearest", "candidateCheckEvery=0");
+        results.add(harness.measure(prefix + "middleStep/nearest",
+                () -> nearest.middleStep(fixture.stateView, fixture.historyView).size()));
+
+        RLAgent frozen = fixture.learningAgent(SEED);
+        frozen.freeze();
+        results.add(harness.measure(prefix + "middleStep/frozen",
+                () -> frozen.middleStep(fixture.stateView, fixture.historyView).size()));
+
+        PolicyAgent policy = new PolicyAgent(0, frozen.weights.clone(), Long.MAX_VALUE);
+        policy.initialStep(fixture.stateView, fixture.historyView);
+        results.add(harness.measure(prefix + "middleStep/policy",
+                () -> policy.middleStep(fixture.stateView, fixture.historyView).size()));
+        return results;
+    }
+}
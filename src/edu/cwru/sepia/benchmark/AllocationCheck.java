@@ -0,0 +1,172 @@
+package edu.cwru.sepia.benchmark;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.action.TargetedAction;
+import edu.cwru.sepia.agent.RLAgent;
+import edu.cwru.sepia.simulation.ScenarioMap;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks that a steady-state RLAgent.middleStep allocates nothing beyond the action map it returns.
+ *
+ * For every fixture and agent configuration the check measures the bytes per call of middleStep and of
+ * building the same action map, a HashMap from every footman to a compound attack on the target middleStep
+ * chose. Both are counted by the HotSpot ThreadMXBean, as in Microbenchmark, so any array, boxed value or
+ * view the decision path allocates shows up as a difference, the excess. The fixtures are the 5v5 and 10v10 maps and a
+ * synthetic 50v50 army, whose unit ids are too large for the Integer cache, so the map's boxed keys are
+ * counted on both sides. The configurations are
+ *
+ * learning          - a learning event: weight update, feature matrix and target selection
+ * frozen            - the greedy event of a frozen agent, the path test episodes take
+ * nearest           - learning with candidates=nearest and no exhaustive checks
+ * adam              - learning through the adam optimizer
+ * replay            - learning from a replay buffer
+ * lambda, nstep     - learning with eligibility traces or n-step returns
+ * sparse            - learning on the sparse feature table
+ * affected          - learning with replanning=affected
+ *
+ * parallelism above 1 is not checked, the ForkJoinPool allocates its tasks.
+ *
+ * The claim is about JIT-compiled code: interpreted, middleStep boxes and allocates iterators that escape
+ * analysis removes once C2 has compiled it. The verdict therefore counts calls, not time. Each configuration
+ * first runs warmupCalls calls, then rounds of roundCalls calls each, measuring both sides per round, until
+ * a round is clean or maxRounds rounds ran. The JIT compiles in the background, so a round measured while it
+ * catches up may still allocate, and the configuration passes if any round's excess is under 1 byte per
+ * call. An object per call would be at least 16 bytes. A path that allocates on every call fails every round
+ * however long it runs. The report gives the bytes per call of the best round and the rounds it took.
+ * The exit status is 1 if any configuration allocates.
+ *
+ * java edu.cwru.sepia.benchmark.AllocationCheck [warmupCalls] [roundCalls] [maxRounds]
+ * Defaults are 20000, 2000 and 50. Run from the project root.
+ */
+public class AllocationCheck {
+
+    private static final long SEED = 12345;
+    private static final double TOLERANCE_BYTES = 1;
+
+    private static final String[] NAMES = {"learning", "frozen", "nearest", "adam", "replay", "lambda", "nstep",
+            "sparse", "affected"};
+    private static final String[][] OPTIONS = {
+            {},
+            {},
+            {"candidates=nearest", "candidateCheckEvery=0"},
+            {"optimizer=adam"},
+            {"replayCapacity=1000"},
+            {"lambda=0.8"},
+            {"nstep=3"},
+            {"features=sparse"},
+            {"replanning=affected"}
+    };
+
+    public static void main(String[] args) throws IOException {
+        int warmupCalls = args.length >= 1 ? Integer.parseInt(args[0]) : 20000;
+        int roundCalls = args.length >= 2 ? Integer.parseInt(args[1]) : 2000;
+        int maxRounds = args.length >= 3 ? Integer.parseInt(args[2]) : 50;
+        com.sun.management.ThreadMXBean threads = allocationCounter();
+        if (threads == null) {
+            System.out.println("The JVM does not count allocated bytes, nothing can be checked");
+            System.exit(1);
+        }
+
+        ScenarioMap small = ScenarioMap.load("data/rl_5fv5f.xml");
+        List<BattleFixture> fixtures = new ArrayList<>();
+        fixtures.add(BattleFixture.midBattle("5v5", small, SEED));
+        fixtures.add(BattleFixture.midBattle("10v10", ScenarioMap.load("data/rl_10fv10f.xml"), SEED));
+        fixtures.add(BattleFixture.midBattle("50v50", small.withArmySize(50), SEED));
+
+        System.out.println(String.format("%-24s %14s %14s %10s %7s  %s", "check", "middleStep B", "action map B",
+                "excess", "rounds", "status"));
+        int failures = 0;
+        double sink = 0;
+        for (BattleFixture fixture : fixtures) {
+            for (int c = 0; c < NAMES.length; c++) {
+                RLAgent agent = fixture.learningAgent(SEED, OPTIONS[c]);
+                if (NAMES[c].equals("frozen")) {
+                    agent.freeze();
+                }
+                ActionMapBuilder map = new ActionMapBuilder(agent.middleStep(fixture.stateView, fixture.historyView));
+                for (int i = 0; i < warmupCalls; i++) {
+                    sink += agent.middleStep(fixture.stateView, fixture.historyView).size() + map.build();
+                }
+                double bestStep = Double.NaN;
+                double bestMap = Double.NaN;
+                int rounds = 0;
+                while (rounds < maxRounds && !(bestStep - bestMap < TOLERANCE_BYTES)) {
+                    long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+                    for (int i = 0; i < roundCalls; i++) {
+                        sink += agent.middleStep(fixture.stateView, fixture.historyView).size();
+                    }
+                    long between = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+                    for (int i = 0; i < roundCalls; i++) {
+                        sink += map.build();
+                    }
+                    long after = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+                    double step = (double) (between - before) / roundCalls;
+                    double built = (double) (after - between) / roundCalls;
+                    if (rounds == 0 || step - built < bestStep - bestMap) {
+                        bestStep = step;
+                        bestMap = built;
+                    }
+                    rounds++;
+                }
+                double excess = bestStep - bestMap;
+                boolean ok = excess < TOLERANCE_BYTES;
+                failures += ok ? 0 : 1;
+                System.out.println(String.format("%-24s %14.1f %14.1f %10.1f %7d  %s", fixture.name + " " + NAMES[c],
+                        bestStep, bestMap, excess, rounds, ok ? "ok" : "ALLOCATES"));
+            }
+        }
+        System.out.println("# sink " + sink);
+        System.out.println(failures == 0 ? "middleStep allocates nothing beyond its action map"
+                : failures + " configuration(s) allocate beyond the action map");
+        // same as AgentBenchmark, never wait on threads SEPIA's classes may have started
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * @return The HotSpot ThreadMXBean with allocation counting enabled, null if the JVM has none
+     */
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        ((com.sun.management.ThreadMXBean) threads).setThreadAllocatedMemoryEnabled(true);
+        return (com.sun.management.ThreadMXBean) threads;
+    }
+
+    /**
+     * Builds a map like the one middleStep returned, the same footmen attacking the same targets.
+     */
+    private static class ActionMapBuilder {
+        private final int[] units;
+        private final int[] targets;
+
+        ActionMapBuilder(Map<Integer, Action> actions) {
+            units = new int[actions.size()];
+            targets = new int[actions.size()];
+            int i = 0;
+            for (Map.Entry<Integer, Action> entry : actions.entrySet()) {
+                units[i] = entry.getKey();
+                targets[i] = ((TargetedAction) entry.getValue()).getTargetId();
+                i++;
+            }
+        }
+
+        int build() {
+            Map<Integer, Action> map = new HashMap<Integer, Action>();
+            for (int u = 0; u < units.length; u++) {
+                map.put(units[u], Action.createCompoundAttack(units[u], targets[u]));
+            }
+            return map.size();
+        }
+    }
+}
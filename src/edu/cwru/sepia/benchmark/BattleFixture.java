@@ -0,0 +1,105 @@
+package edu.cwru.sepia.benchmark;
+
+import edu.cwru.sepia.agent.Agent;
+import edu.cwru.sepia.agent.RLAgent;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.simulation.CombatSimulator;
+import edu.cwru.sepia.simulation.ScenarioMap;
+import edu.cwru.sepia.simulation.SeededCombatAgent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A state and history stopped in the middle of a battle, for benchmarking agent code on realistic views.
+ *
+ * The map is played in the CombatSimulator by an RLAgent against a SeededCombatAgent until at least one unit
+ * has died and the last turn logged damage, i.e. the views an RLAgent sees when an event fires mid-battle.
+ * The simulator is not advanced afterwards, so the views stay valid for as long as the fixture is used.
+ */
+public class BattleFixture {
+
+    private static final int TIME_LIMIT = 100000;
+    private static final int MAX_ATTEMPTS = 20;
+
+    public final String name;
+    public final State.StateView stateView;
+    public final History.HistoryView historyView;
+    public final List<Integer> myFootmen;
+    public final List<Integer> enemyFootmen;
+    private final History history;
+
+    private BattleFixture(String name, State.StateView stateView, History history) {
+        this.name = name;
+        this.history = history;
+        this.stateView = stateView;
+        this.historyView = history.getView(0);
+        this.myFootmen = new ArrayList<>(stateView.getUnitIds(0));
+        this.enemyFootmen = new ArrayList<>(stateView.getUnitIds(RLAgent.ENEMY_PLAYERNUM));
+    }
+
+    /**
+     * Plays the map until the first turn with a death so far and damage in the previous turn.
+     *
+     * @param name Name of the fixture in reports
+     * @param map Map to play
+     * @param seed Seed of the battle, later attempts use seed + 1, seed + 2, ... if a battle never qualifies
+     */
+    public static BattleFixture midBattle(String name, ScenarioMap map, long seed) {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            CombatSimulator simulator = new CombatSimulator(map, TIME_LIMIT, seed + attempt);
+            Agent[] agents = {newAgent(seed + attempt), new SeededCombatAgent(RLAgent.ENEMY_PLAYERNUM, seed + attempt)};
+            simulator.startEpisode(agents);
+            boolean anyDeath = false;
+            while (simulator.playTurn(agents)) {
+                History.HistoryView history = simulator.getHistory().getView(0);
+                int lastTurn = simulator.getState().getTurnNumber() - 1;
+                anyDeath |= !history.getDeathLogs(lastTurn).isEmpty();
+                // both armies must still be standing so every pair has work to do
+                State.StateView state = simulator.getState().getView(0);
+                if (anyDeath && !history.getDamageLogs(lastTurn).isEmpty()
+                        && !state.getUnitIds(0).isEmpty() && !state.getUnitIds(RLAgent.ENEMY_PLAYERNUM).isEmpty()) {
+                    return new BattleFixture(name, state, simulator.getHistory());
+                }
+            }
+        }
+        throw new IllegalStateException("No battle on " + name + " reached a mid-battle turn in " + MAX_ATTEMPTS + " attempts");
+    }
+
+    /**
+     * @return An RLAgent in a learning episode that knows this fixture's armies, so middleStep updates the
+     * weights the way it does during training
+     * @param options key=value agent arguments, see RLAgent
+     */
+    public RLAgent learningAgent(long seed, String... options) {
+        RLAgent agent = newAgent(seed, options);
+        // initialStep advances to episode 2, the first learning episode
+        agent.numEpisode = 1;
+        agent.initialStep(stateView, historyView);
+        return agent;
+    }
+
+    /**
+     * @return A view of the same history that is a different object from historyView. Agent caches keyed on
+     * the view, such as the feature matrix, miss for it.
+     */
+    public History.HistoryView newHistoryView() {
+        return history.getView(0);
+    }
+
+    public int getNumPairs() {
+        return myFootmen.size() * enemyFootmen.size();
+    }
+
+    private static RLAgent newAgent(long seed, String... options) {
+        String[] args = new String[2 + options.length];
+        args[0] = Integer.toString(Integer.MAX_VALUE / 2);
+        args[1] = "false";
+        System.arraycopy(options, 0, args, 2, options.length);
+        RLAgent agent = new RLAgent(0, args);
+        agent.random.setSeed(seed);
+        agent.setTrainingListener((learner, session, averageReward) -> { });
+        return agent;
+    }
+}
@@ -0,0 +1,139 @@
+package edu.cwru.sepia.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Minimal single-threaded microbenchmark harness.
+ *
+ * An operation is run for a warmup period so the JIT compiles it, then in batches until the measurement period
+ * is over. Latency is wall time per operation over the measured batches, with the fastest and slowest batch
+ * reported next to the mean so noisy runs are visible. Allocation is the calling thread's allocated bytes per
+ * operation as reported by the HotSpot ThreadMXBean, 0 bytes/op means the path does not allocate once warm.
+ * Every operation returns a double that is folded into a sink, so the JIT can not drop the work.
+ */
+public class Microbenchmark {
+
+    /**
+     * Work being measured. The returned value is consumed by the harness.
+     */
+    public interface Operation {
+        double run();
+    }
+
+    private final long warmupNanos;
+    private final long measureNanos;
+    private final com.sun.management.ThreadMXBean allocation;
+    private double sink;
+
+    /**
+     * @param warmupMillis Time each operation runs before measuring
+     * @param measureMillis Time each operation is measured for
+     */
+    public Microbenchmark(long warmupMillis, long measureMillis) {
+        this.warmupNanos = warmupMillis * 1_000_000L;
+        this.measureNanos = measureMillis * 1_000_000L;
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+            allocation = (com.sun.management.ThreadMXBean) threads;
+            allocation.setThreadAllocatedMemoryEnabled(true);
+        } else {
+            allocation = null;
+        }
+    }
+
+    /**
+     * Warms up and measures one operation.
+     *
+     * @param name Name printed in the report
+     * @param operation Work of one call
+     * @return The measurement
+     */
+    public Result measure(String name, Operation operation) {
+        int batch = 1;
+        long end = System.nanoTime() + warmupNanos;
+        while (System.nanoTime() < end) {
+            long start = System.nanoTime();
+            runBatch(operation, batch);
+            // grow batches until one takes about a millisecond so timer overhead does not count
+            if (System.nanoTime() - start < 1_000_000L && batch < 1 << 24) {
+                batch *= 2;
+            }
+        }
+
+        long operations = 0;
+        long elapsed = 0;
+        double fastest = Double.POSITIVE_INFINITY;
+        double slowest = 0;
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = allocatedBytes(threadId);
+        while (elapsed < measureNanos) {
+            long start = System.nanoTime();
+            runBatch(operation, batch);
+            long nanos = System.nanoTime() - start;
+            elapsed += nanos;
+            operations += batch;
+            fastest = Math.min(fastest, (double) nanos / batch);
+            slowest = Math.max(slowest, (double) nanos / batch);
+        }
+        long allocated = allocatedBytes(threadId) - allocatedBefore;
+        return new Result(name, operations, (double) elapsed / operations, fastest, slowest,
+                allocation == null ? Double.NaN : (double) allocated / operations);
+    }
+
+    /**
+     * @return Sum of every operation's result, print it so the work is observably used
+     */
+    public double getSink() {
+        return sink;
+    }
+
+    private void runBatch(Operation operation, int batch) {
+        double sum = 0;
+        for (int i = 0; i < batch; i++) {
+            sum += operation.run();
+        }
+        sink += sum;
+    }
+
+    private long allocatedBytes(long threadId) {
+        return allocation == null ? 0 : allocation.getThreadAllocatedBytes(threadId);
+    }
+
+    /**
+     * Measurement of one operation.
+     */
+    public static final class Result {
+        public final String name;
+        public final long operations;
+        public final double nanosPerOp;
+        public final double fastestNanosPerOp;
+        public final double slowestNanosPerOp;
+        /**
+         * NaN when the JVM can not count allocations
+         */
+        public final double bytesPerOp;
+
+        Result(String name, long operations, double nanosPerOp, double fastestNanosPerOp,
+               double slowestNanosPerOp, double bytesPerOp) {
+            this.name = name;
+            this.operations = operations;
+            this.nanosPerOp = nanosPerOp;
+            this.fastestNanosPerOp = fastestNanosPerOp;
+            this.slowestNanosPerOp = slowestNanosPerOp;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        public static String header() {
+            return String.format("%-40s %12s %12s %12s %12s %12s", "benchmark", "ops", "ns/op", "min ns/op",
+                    "max ns/op", "bytes/op");
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-40s %12d %12.1f %12.1f %12.1f %12.1f", name, operations, nanosPerOp,
+                    fastestNanosPerOp, slowestNanosPerOp, bytesPerOp);
+        }
+    }
+}
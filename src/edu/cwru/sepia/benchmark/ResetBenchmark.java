@@ -0,0 +1,149 @@
+package edu.cwru.sepia.benchmark;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.agent.Agent;
+import edu.cwru.sepia.agent.RLAgent;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.StateCreator;
+import edu.cwru.sepia.simulation.CombatSimulator;
+import edu.cwru.sepia.simulation.ScenarioMap;
+import edu.cwru.sepia.simulation.ScenarioStateCreator;
+import edu.cwru.sepia.simulation.SeededCombatAgent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Latency of starting an episode, from the initial state to the first actions.
+ *
+ * For every map the benchmark measures
+ *
+ * load                  - parsing the map file, what a runner that re-reads its map pays per episode
+ * createState/serialized - SEPIA's RawStateCreator from State.getStateCreator, deserializing the initial state
+ * createState/scenario  - ScenarioStateCreator, building the state from the pre-parsed ScenarioMap
+ * startEpisode/scan     - CombatSimulator.startEpisode with a frozen RLAgent that classifies its units itself
+ * startEpisode/roster   - the same with the agent handed the map's unit rosters through UnitRosterAware
+ *
+ * The startEpisode numbers include both agents' initialStep, i.e. the RLAgent's first greedy decision.
+ *
+ * java edu.cwru.sepia.benchmark.ResetBenchmark [warmupMillis] [measureMillis] [armySize ...]
+ * Defaults are 1000ms, 2000ms and a synthetic army of 100 per side. Run from the project root.
+ */
+public class ResetBenchmark {
+
+    private static final long SEED = 12345;
+
+    public static void main(String[] args) throws IOException {
+        long warmupMillis = args.length >= 1 ? Long.parseLong(args[0]) : 1000;
+        long measureMillis = args.length >= 2 ? Long.parseLong(args[1]) : 2000;
+        List<Integer> armySizes = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            armySizes.add(Integer.parseInt(args[i]));
+        }
+        if (armySizes.isEmpty()) {
+            armySizes.add(100);
+        }
+
+        Microbenchmark harness = new Microbenchmark(warmupMillis, measureMillis);
+        System.out.println(Microbenchmark.Result.header());
+        ScenarioMap small = ScenarioMap.load("data/rl_5fv5f.xml");
+        run(harness, "5v5", "data/rl_5fv5f.xml", small);
+        run(harness, "10v10", "data/rl_10fv10f.xml", ScenarioMap.load("data/rl_10fv10f.xml"));
+        for (int size : armySizes) {
+            run(harness, size + "v" + size, null, small.withArmySize(size));
+        }
+        System.out.println("# sink " + harness.getSink());
+        // same as SimulationValidator, never wait on threads SEPIA's classes may have started
+        System.exit(0);
+    }
+
+    /**
+     * Measures and prints every benchmark on one map.
+     *
+     * @param path The map's file, null for synthetic maps, which skip the load benchmark
+     */
+    static void run(Microbenchmark harness, String name, String path, ScenarioMap map) throws IOException {
+        String prefix = name + " ";
+        if (path != null) {
+            print(harness.measure(prefix + "load", () -> {
+                try {
+                    return ScenarioMap.load(path).getNumUnits();
+                } catch (IOException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }));
+        }
+        StateCreator serialized = map.createState().getStateCreator();
+        print(harness.measure(prefix + "createState/serialized", () -> serialized.createState().getTurnNumber()));
+        StateCreator scenario = new ScenarioStateCreator(map);
+        print(harness.measure(prefix + "createState/scenario", () -> scenario.createState().getTurnNumber()));
+
+        CombatSimulator scan = new CombatSimulator(map, 100000, SEED);
+        Agent[] scanning = {new ScanningAgent(frozenAgent()), new SeededCombatAgent(RLAgent.ENEMY_PLAYERNUM, SEED)};
+        print(harness.measure(prefix + "startEpisode/scan", () -> {
+            scan.startEpisode(scanning);
+            return scan.getState().getTurnNumber();
+        }));
+        CombatSimulator roster = new CombatSimulator(map, 100000, SEED);
+        Agent[] rostered = {frozenAgent(), new SeededCombatAgent(RLAgent.ENEMY_PLAYERNUM, SEED)};
+        print(harness.measure(prefix + "startEpisode/roster", () -> {
+            roster.startEpisode(rostered);
+            return roster.getState().getTurnNumber();
+        }));
+    }
+
+    private static RLAgent frozenAgent() {
+        RLAgent agent = new RLAgent(0, new String[]{Integer.toString(Integer.MAX_VALUE / 2), "false"});
+        agent.random.setSeed(SEED);
+        agent.freeze();
+        return agent;
+    }
+
+    private static void print(Microbenchmark.Result result) {
+        System.out.println(result);
+    }
+
+    /**
+     * Passes everything to an RLAgent but is not UnitRosterAware, so the agent has to find its units in the
+     * initial state the way it does under SEPIA's own runners.
+     */
+    private static class ScanningAgent extends Agent {
+        private static final long serialVersionUID = 1L;
+        private final RLAgent agent;
+
+        ScanningAgent(RLAgent agent) {
+            super(agent.getPlayerNumber());
+            this.agent = agent;
+        }
+
+        @Override
+        public Map<Integer, Action> initialStep(State.StateView stateView, History.HistoryView historyView) {
+            return agent.initialStep(stateView, historyView);
+        }
+
+        @Override
+        public Map<Integer, Action> middleStep(State.StateView stateView, History.HistoryView historyView) {
+            return agent.middleStep(stateView, historyView);
+        }
+
+        @Override
+        public void terminalStep(State.StateView stateView, History.HistoryView historyView) {
+            agent.terminalStep(stateView, historyView);
+        }
+
+        @Override
+        public void savePlayerData(OutputStream os) {
+            agent.savePlayerData(os);
+        }
+
+        @Override
+        public void loadPlayerData(InputStream is) {
+            agent.loadPlayerData(is);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package edu.cwru.sepia.benchmark;
+
+import edu.cwru.sepia.agent.QKernel;
+
+import java.util.Random;
+
+/**
+ * Q scoring of a whole army, per-pair dot products against the feature-major QKernel.score.
+ *
+ * For every feature count the same random features are laid out both ways:
+ *
+ * pairMajor    - features of a pair are contiguous and each pair's Q-value is one dot product, the layout
+ *                and loop FeatureMatrix used before it went feature-major
+ * featureMajor - each feature is a contiguous column over all pairs and QKernel.scoreScalar makes one pass
+ *                per column, which the JIT vectorizes
+ * vector       - the same columns scored by the Vector API kernel, only when QKernel.isVectorized, which
+ *                needs src-vector compiled, see VectorQKernel
+ *
+ * java [--add-modules jdk.incubator.vector] edu.cwru.sepia.benchmark.ScoringBenchmark [warmupMillis]
+ *      [measureMillis] [footmen] [enemies]
+ * Defaults are 1000ms, 2000ms and a 100v100 army, scored with 5, 32 and 256 features.
+ */
+public class ScoringBenchmark {
+
+    private static final int[] FEATURE_COUNTS = {5, 32, 256};
+
+    public static void main(String[] args) {
+        long warmupMillis = args.length >= 1 ? Long.parseLong(args[0]) : 1000;
+        long measureMillis = args.length >= 2 ? Long.parseLong(args[1]) : 2000;
+        int footmen = args.length >= 3 ? Integer.parseInt(args[2]) : 100;
+        int enemies = args.length >= 4 ? Integer.parseInt(args[3]) : 100;
+        int pairs = footmen * enemies;
+
+        Microbenchmark harness = new Microbenchmark(warmupMillis, measureMillis);
+        if (!QKernel.isVectorized()) {
+            System.out.println("# the Vector API kernel is not available, only the scalar kernel is measured");
+        }
+        System.out.println(Microbenchmark.Result.header() + String.format(" %12s", "ns/pair"));
+        Random random = new Random(12345);
+        for (int numFeatures : FEATURE_COUNTS) {
+            double[] weights = new double[numFeatures];
+            for (int f = 0; f < numFeatures; f++) {
+                weights[f] = random.nextDouble() * 2 - 1;
+            }
+            double[] pairMajor = new double[pairs * numFeatures];
+            double[] featureMajor = new double[pairs * numFeatures];
+            for (int pair = 0; pair < pairs; pair++) {
+                for (int f = 0; f < numFeatures; f++) {
+                    double value = random.nextDouble();
+                    pairMajor[pair * numFeatures + f] = value;
+                    featureMajor[f * pairs + pair] = value;
+                }
+            }
+            double[] qValues = new double[pairs];
+
+            String prefix = footmen + "x" + enemies + " f=" + numFeatures + " ";
+            print(harness.measure(prefix + "pairMajor", () -> {
+                for (int pair = 0; pair < pairs; pair++) {
+                    qValues[pair] = QKernel.dot(weights, pairMajor, pair * numFeatures, numFeatures);
+                }
+                return qValues[pairs - 1];
+            }), pairs);
+            print(harness.measure(prefix + "featureMajor", () -> {
+                QKernel.scoreScalar(weights, numFeatures, featureMajor, pairs, 0, pairs, qValues);
+                return qValues[pairs - 1];
+            }), pairs);
+            if (QKernel.isVectorized()) {
+                print(harness.measure(prefix + "vector", () -> {
+                    QKernel.score(weights, numFeatures, featureMajor, pairs, pairs, qValues);
+                    return qValues[pairs - 1];
+                }), pairs);
+            }
+        }
+        System.out.println("# sink " + harness.getSink());
+    }
+
+    private static void print(Microbenchmark.Result result, int pairs) {
+        System.out.println(result + String.format(" %12.2f", result.nanosPerOp / pairs));
+    }
+}
@@ -0,0 +1,394 @@
+package edu.cwru.sepia.benchmark;
+
+import edu.cwru.sepia.agent.Agent;
+import edu.cwru.sepia.agent.RLAgent;
+import edu.cwru.sepia.simulation.CombatSimulator;
+import edu.cwru.sepia.simulation.ScenarioMap;
+import edu.cwru.sepia.simulation.SeededCombatAgent;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * End-to-end training runs on the CombatSimulator: throughput, GC, heap and the learning curve, against a baseline.
+ *
+ * Every scenario is trained from scratch with a fixed seed, first once to warm up the JIT and then repetitions
+ * times measured. The RLAgent reports to a TrainingListener, so it never saves weights or calls System.exit and
+ * the runs can follow each other in one JVM. The metrics of a scenario are
+ *
+ * episodesPerSecond  - training and test episodes per second of wall time, median over the repetitions
+ * turnsPerSecond     - simulated turns per second, median over the repetitions
+ * gcMillisPerEpisode - collection time of all garbage collectors per episode, median over the repetitions
+ * peakHeapMB         - sum of the heap pools' peak usage, the largest over the repetitions
+ * finalReward        - mean reward of the last FINAL_SESSIONS test sessions
+ * meanReward         - mean reward of all test sessions, the area under the learning curve
+ *
+ * The runs are seeded, so the learning curve is the same in every repetition and on every machine; a
+ * repetition that differs is reported as nondeterministic. The curve is printed with the wall time each test
+ * session finished at, the reward over wall clock. Throughput, GC and heap depend on the machine, a baseline
+ * recorded on one machine only means something on that machine.
+ *
+ * In compare mode every metric is checked against the baseline file and a metric that got worse by more than
+ * its tolerance, relative to the baseline, and by more than its absolute noise floor is a regression. The
+ * tolerances default to those of Metric below and can be overridden in the baseline file with
+ * tolerance.metric=fraction. The curve itself is compared
+ * too, a curve that differs from the baseline's means the learner changed, which is reported but only a
+ * regression if finalReward or meanReward dropped. The exit status is 1 if anything regressed.
+ * In record mode the baseline file is overwritten with this run.
+ *
+ * java edu.cwru.sepia.benchmark.TrainingBenchmark [numEpisodes] [repetitions] [baseline] [compare|record] [key=value...]
+ * Defaults are 1000 episodes, 3 repetitions, data/training-baseline.properties and compare, the trailing
+ * key=value arguments are passed to the RLAgent as options. Run from the project root.
+ */
+public class TrainingBenchmark {
+
+    public static final String[] SCENARIOS = {"data/rl_5fv5f.xml", "data/rl_10fv10f.xml"};
+    public static final String DEFAULT_BASELINE = "data/training-baseline.properties";
+
+    private static final long SEED = 12345;
+    private static final int TIME_LIMIT = 100000;
+    private static final int FINAL_SESSIONS = 5;
+
+    /**
+     * The compared metrics, whether larger is better, the default tolerated relative change and the smallest
+     * absolute change that counts at all, so a run with next to no GC is not a 100% change.
+     */
+    private enum Metric {
+        episodesPerSecond(true, 0.2, 0),
+        turnsPerSecond(true, 0.2, 0),
+        gcMillisPerEpisode(false, 0.5, 0.05),
+        peakHeapMB(false, 0.5, 16),
+        finalReward(true, 0.1, 1),
+        meanReward(true, 0.1, 1);
+
+        final boolean higherIsBetter;
+        final double tolerance;
+        final double noise;
+
+        Metric(boolean higherIsBetter, double tolerance, double noise) {
+            this.higherIsBetter = higherIsBetter;
+            this.tolerance = tolerance;
+            this.noise = noise;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int numEpisodes = args.length >= 1 ? Integer.parseInt(args[0]) : 1000;
+        int repetitions = args.length >= 2 ? Integer.parseInt(args[1]) : 3;
+        Path baselineFile = Paths.get(args.length >= 3 ? args[2] : DEFAULT_BASELINE);
+        String mode = args.length >= 4 ? args[3] : "compare";
+        if (repetitions < 1 || (!mode.equals("compare") && !mode.equals("record"))) {
+            System.err.println("Usage: TrainingBenchmark [numEpisodes] [repetitions] [baseline] [compare|record] [key=value...]");
+            System.exit(1);
+        }
+        String[] options = args.length > 4 ? Arrays.copyOfRange(args, 4, args.length) : new String[0];
+
+        Map<String, String> current = new TreeMap<>();
+        current.put("numEpisodes", Integer.toString(numEpisodes));
+        current.put("options", String.join(" ", options));
+        for (String scenario : SCENARIOS) {
+            String name = scenarioName(scenario);
+            Summary summary = measure(ScenarioMap.load(scenario), numEpisodes, repetitions, options);
+            summary.print(name);
+            summary.putInto(name, current);
+        }
+
+        if (mode.equals("record")) {
+            write(baselineFile, current);
+            System.out.println("Recorded baseline " + baselineFile);
+            System.exit(0);
+        }
+        if (!Files.exists(baselineFile)) {
+            System.out.println("No baseline " + baselineFile + ", run with record to create one");
+            System.exit(0);
+        }
+        int regressions = compare(read(baselineFile), current);
+        System.out.println(regressions == 0 ? "No regressions" : regressions + " regression(s)");
+        System.exit(regressions == 0 ? 0 : 1);
+    }
+
+    /**
+     * One warmup run and repetitions measured runs of a fresh learner on map.
+     */
+    public static Summary measure(ScenarioMap map, int numEpisodes, int repetitions, String... options) {
+        train(map, numEpisodes, SEED, options);
+        List<Run> runs = new ArrayList<>();
+        for (int i = 0; i < repetitions; i++) {
+            runs.add(train(map, numEpisodes, SEED, options));
+        }
+        return new Summary(runs);
+    }
+
+    /**
+     * Trains a fresh RLAgent against a SeededCombatAgent until its schedule is finished.
+     *
+     * @param options RLAgent options, key=value
+     */
+    public static Run train(ScenarioMap map, int numEpisodes, long seed, String... options) {
+        String[] agentArgs = new String[2 + options.length];
+        agentArgs[0] = Integer.toString(numEpisodes);
+        agentArgs[1] = "false";
+        System.arraycopy(options, 0, agentArgs, 2, options.length);
+        RLAgent learner = new RLAgent(0, agentArgs);
+        learner.random.setSeed(seed);
+        Agent[] agents = {learner, new SeededCombatAgent(1, seed)};
+        CombatSimulator simulator = new CombatSimulator(map, TIME_LIMIT, seed);
+
+        // leave the garbage of the previous run to the previous run
+        System.gc();
+        List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+        long[] gcBefore = gcTotals();
+
+        Run run = new Run();
+        long start = System.nanoTime();
+        learner.setTrainingListener((agent, session, averageReward) -> run.sessionNanos.add(System.nanoTime() - start));
+        while (!learner.isFinished()) {
+            CombatSimulator.Outcome outcome = simulator.runEpisode(agents);
+            run.episodes++;
+            run.turns += outcome.turns;
+        }
+        run.nanos = System.nanoTime() - start;
+
+        long[] gcAfter = gcTotals();
+        run.gcCount = gcAfter[0] - gcBefore[0];
+        run.gcMillis = gcAfter[1] - gcBefore[1];
+        for (MemoryPoolMXBean pool : heapPools) {
+            run.peakHeapBytes += pool.getPeakUsage().getUsed();
+        }
+        run.rewards.addAll(learner.getTestList());
+        return run;
+    }
+
+    /**
+     * @return Collections and collection milliseconds of all collectors so far
+     */
+    private static long[] gcTotals() {
+        long count = 0;
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return new long[]{count, millis};
+    }
+
+    /**
+     * Prints every metric next to its baseline and counts the regressions.
+     */
+    static int compare(Map<String, String> baseline, Map<String, String> current) {
+        for (String setting : new String[]{"numEpisodes", "options"}) {
+            if (!current.get(setting).equals(baseline.getOrDefault(setting, ""))) {
+                System.out.println("Warning: baseline " + setting + " is '" + baseline.get(setting) + "', this run's '"
+                        + current.get(setting) + "', the numbers are not comparable");
+            }
+        }
+        System.out.println(String.format("%-12s %-20s %14s %14s %9s  %s", "scenario", "metric", "baseline", "current",
+                "change", "status"));
+        int regressions = 0;
+        for (String scenario : SCENARIOS) {
+            String name = scenarioName(scenario);
+            for (Metric metric : Metric.values()) {
+                String key = name + "." + metric.name();
+                if (!baseline.containsKey(key)) {
+                    System.out.println(String.format("%-12s %-20s %14s %14s", name, metric.name(), "-", current.get(key)));
+                    continue;
+                }
+                double before = Double.parseDouble(baseline.get(key));
+                double now = Double.parseDouble(current.get(key));
+                double tolerance = Double.parseDouble(baseline.getOrDefault("tolerance." + metric.name(),
+                        Double.toString(metric.tolerance)));
+                // relative to the magnitude, rewards can be negative
+                double change = (now - before) / Math.max(Math.abs(before), 1e-9);
+                double worse = metric.higherIsBetter ? -change : change;
+                boolean significant = Math.abs(now - before) > metric.noise;
+                String status = "ok";
+                if (significant && worse > tolerance) {
+                    status = "REGRESSION";
+                    regressions++;
+                } else if (significant && -worse > tolerance) {
+                    status = "improved";
+                }
+                System.out.println(String.format("%-12s %-20s %14.3f %14.3f %+8.1f%%  %s", name, metric.name(), before,
+                        now, 100 * change, status));
+            }
+            String curveKey = name + ".curve";
+            if (baseline.containsKey(curveKey) && !baseline.get(curveKey).equals(current.get(curveKey))) {
+                System.out.println(String.format("%-12s learning curve differs from the baseline at session %d",
+                        name, firstDifference(baseline.get(curveKey), current.get(curveKey))));
+            }
+        }
+        return regressions;
+    }
+
+    private static int firstDifference(String baselineCurve, String currentCurve) {
+        String[] before = baselineCurve.split(",");
+        String[] now = currentCurve.split(",");
+        int session = 0;
+        while (session < before.length && session < now.length && before[session].equals(now[session])) {
+            session++;
+        }
+        return session;
+    }
+
+    private static String scenarioName(String scenario) {
+        String file = Paths.get(scenario).getFileName().toString();
+        return file.endsWith(".xml") ? file.substring(0, file.length() - 4) : file;
+    }
+
+    static Map<String, String> read(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        Map<String, String> values = new TreeMap<>();
+        for (String key : properties.stringPropertyNames()) {
+            values.put(key, properties.getProperty(key));
+        }
+        return values;
+    }
+
+    /**
+     * Writes the values sorted by key, unlike Properties.store, so re-recording gives a readable diff.
+     */
+    static void write(Path file, Map<String, String> values) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("# TrainingBenchmark baseline, re-record with: java edu.cwru.sepia.benchmark.TrainingBenchmark"
+                    + " [numEpisodes] [repetitions] [baseline] record\n");
+            writer.write("# Throughput, GC and heap were measured on " + Runtime.getRuntime().availableProcessors()
+                    + " CPUs with Java " + System.getProperty("java.version") + ", the rewards hold anywhere\n");
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                writer.write(entry.getKey() + "=" + entry.getValue() + "\n");
+            }
+        }
+    }
+
+    /**
+     * One training run.
+     */
+    public static final class Run {
+        public int episodes;
+        public long turns;
+        public long nanos;
+        public long gcCount;
+        public long gcMillis;
+        public long peakHeapBytes;
+        /**
+         * Average reward of every test session, the agent's test list
+         */
+        public final List<Double> rewards = new ArrayList<>();
+        /**
+         * Nanoseconds from the start of the run to the end of every test session
+         */
+        public final List<Long> sessionNanos = new ArrayList<>();
+    }
+
+    /**
+     * The measured runs of one scenario.
+     */
+    public static final class Summary {
+        public final List<Run> runs;
+        public final double episodesPerSecond;
+        public final double turnsPerSecond;
+        public final double gcMillisPerEpisode;
+        public final double peakHeapMB;
+        public final double finalReward;
+        public final double meanReward;
+        /**
+         * false if a repetition learned a different curve than the first
+         */
+        public final boolean deterministic;
+
+        Summary(List<Run> runs) {
+            this.runs = runs;
+            double[] episodeRates = new double[runs.size()];
+            double[] turnRates = new double[runs.size()];
+            double[] gcRates = new double[runs.size()];
+            long peak = 0;
+            boolean same = true;
+            for (int i = 0; i < runs.size(); i++) {
+                Run run = runs.get(i);
+                double seconds = run.nanos / 1e9;
+                episodeRates[i] = run.episodes / seconds;
+                turnRates[i] = run.turns / seconds;
+                gcRates[i] = (double) run.gcMillis / run.episodes;
+                peak = Math.max(peak, run.peakHeapBytes);
+                same &= run.rewards.equals(runs.get(0).rewards);
+            }
+            episodesPerSecond = median(episodeRates);
+            turnsPerSecond = median(turnRates);
+            gcMillisPerEpisode = median(gcRates);
+            peakHeapMB = peak / (1024.0 * 1024.0);
+            deterministic = same;
+
+            List<Double> rewards = runs.get(0).rewards;
+            int from = Math.max(0, rewards.size() - FINAL_SESSIONS);
+            finalReward = mean(rewards.subList(from, rewards.size()));
+            meanReward = mean(rewards);
+        }
+
+        void putInto(String name, Map<String, String> values) {
+            values.put(name + "." + Metric.episodesPerSecond.name(), Double.toString(episodesPerSecond));
+            values.put(name + "." + Metric.turnsPerSecond.name(), Double.toString(turnsPerSecond));
+            values.put(name + "." + Metric.gcMillisPerEpisode.name(), Double.toString(gcMillisPerEpisode));
+            values.put(name + "." + Metric.peakHeapMB.name(), Double.toString(peakHeapMB));
+            values.put(name + "." + Metric.finalReward.name(), Double.toString(finalReward));
+            values.put(name + "." + Metric.meanReward.name(), Double.toString(meanReward));
+            StringBuilder curve = new StringBuilder();
+            for (double reward : runs.get(0).rewards) {
+                curve.append(curve.length() == 0 ? "" : ",").append(reward);
+            }
+            values.put(name + ".curve", curve.toString());
+        }
+
+        void print(String name) {
+            Run first = runs.get(0);
+            System.out.println(String.format("%s: %d episodes, %d turns, %d test sessions, %d repetitions%s", name,
+                    first.episodes, first.turns, first.rewards.size(), runs.size(),
+                    deterministic ? "" : ", NONDETERMINISTIC: the repetitions learned different curves"));
+            System.out.println(String.format("  %.1f episodes/s, %.0f turns/s, %.3f GC ms/episode, %.1f MB peak heap",
+                    episodesPerSecond, turnsPerSecond, gcMillisPerEpisode, peakHeapMB));
+            System.out.println(String.format("  final reward %.2f, mean reward %.2f", finalReward, meanReward));
+            System.out.println(String.format("  %8s %10s %12s", "session", "seconds", "reward"));
+            for (int session = 0; session < first.rewards.size(); session++) {
+                System.out.println(String.format("  %8d %10.3f %12.2f", session, first.sessionNanos.get(session) / 1e9,
+                        first.rewards.get(session)));
+            }
+        }
+    }
+
+    private static double median(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int middle = sorted.length / 2;
+        return sorted.length % 2 == 1 ? sorted[middle] : (sorted[middle - 1] + sorted[middle]) / 2;
+    }
+
+    private static double mean(List<Double> values) {
+        double sum = 0;
+        for (double value : values) {
+            sum += value;
+        }
+        return values.isEmpty() ? 0 : sum / values.size();
+    }
+}
@@ -0,0 +1,396 @@
+package edu.cwru.sepia.experiment;
+
+import edu.cwru.sepia.agent.Agent;
+import edu.cwru.sepia.agent.RLAgent;
+import edu.cwru.sepia.agent.TrainingListener;
+import edu.cwru.sepia.agent.WeightCheckpointer;
+import edu.cwru.sepia.simulation.CombatSimulator;
+import edu.cwru.sepia.simulation.ScenarioMap;
+import edu.cwru.sepia.simulation.SeededCombatAgent;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Trains one RLAgent per hyperparameter configuration on the CombatSimulator and ranks the configurations.
+ *
+ * A configuration is a list of RLAgent key=value arguments, so anything the agent can be configured with can
+ * be swept, typically gamma, learningRate, epsilon, epsilonSchedule and epsilonDecay. The search space gives
+ * every key a list of values, a,b,c, or for random search also a range, lo..hi sampled uniformly or
+ * log:lo..hi sampled log-uniformly. Grid search runs every combination of the lists, random search draws
+ * the given number of configurations from a Random seeded with the sweep's seed.
+ *
+ * Trials run on a ForkJoinPool of the given parallelism, each with its own agent, simulator and opponent.
+ * They all share the sweep's seed, so every trial starts from the same weights and meets the same damage
+ * rolls as long as it plays the same, and differences come from the hyperparameters rather than the luck of
+ * the draw. Trials report their test sessions through TrainingListener. With the median stopping rule a trial
+ * whose mean test reward so far falls below the median of the other trials' means at the same session is
+ * stopped at its next episode, once it is past graceSessions and at least minPeers others got there. Which
+ * trials that stops depends on which reached a session first, with one thread the sweep is reproducible.
+ *
+ * For every trial the weights of its best test session are checkpointed into outputDirectory/trial-NNN, where
+ * WeightCheckpointer.loadBest finds them, and the ranked table is printed and written to results.csv.
+ *
+ * java edu.cwru.sepia.experiment.HyperparameterSweep &lt;map.xml&gt; [numEpisodes] [threads] [grid|random:N] [seed] [key=values...]
+ * e.g. data/rl_5fv5f.xml 100 4 random:20 12345 gamma=0.8..0.99 learningRate=log:0.00001..0.01 epsilonSchedule=exponential,inverse
+ * Without key=values the default space is gamma=0.8,0.9,0.99 learningRate=0.0001,0.001 epsilon=0.02,0.1
+ * epsilonSchedule=exponential,inverse.
+ */
+public class HyperparameterSweep {
+
+    public static final String OUTPUT_DIR = "agent_weights/sweep";
+
+    private final ScenarioMap map;
+    private final int timeLimit;
+    private final int numEpisodes;
+    private final long seed;
+    private final int threads;
+    private final Path outputDirectory;
+    private int graceSessions = 3;
+    private int minPeers = 3;
+
+    /**
+     * Running mean test reward of every trial that reached each session, indexed by session.
+     */
+    private final List<List<Double>> sessionMeans = new ArrayList<>();
+
+    /**
+     * @param map Map every trial trains on
+     * @param timeLimit Last turn of an episode
+     * @param numEpisodes Learning episodes per trial, the agents' numEpisodes argument
+     * @param seed Seed of every trial's agent, opponent and simulator
+     * @param threads Trials run at the same time
+     * @param outputDirectory Where the trials' best weights and results.csv go, null to write nothing
+     */
+    public HyperparameterSweep(ScenarioMap map, int timeLimit, int numEpisodes, long seed, int threads, Path outputDirectory) {
+        this.map = map;
+        this.timeLimit = timeLimit;
+        this.numEpisodes = numEpisodes;
+        this.seed = seed;
+        this.threads = threads;
+        this.outputDirectory = outputDirectory;
+    }
+
+    /**
+     * Sets the median stopping rule.
+     *
+     * @param graceSessions Test sessions every trial plays before it can be stopped, Integer.MAX_VALUE never stops
+     * @param minPeers Other trials that must have reached a session before it is used to stop one
+     */
+    public void setEarlyStopping(int graceSessions, int minPeers) {
+        this.graceSessions = graceSessions;
+        this.minPeers = minPeers;
+    }
+
+    /**
+     * Runs one trial per configuration and waits for all of them.
+     *
+     * @param configurations RLAgent key=value arguments of each trial
+     * @return The trials, ranked best first
+     */
+    public List<Trial> run(List<String[]> configurations) {
+        List<Trial> trials = new ArrayList<>();
+        for (int i = 0; i < configurations.size(); i++) {
+            trials.add(new Trial(i, configurations.get(i)));
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (Trial trial : trials) {
+                tasks.add(pool.submit(trial::train));
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+            for (Trial trial : trials) {
+                if (trial.checkpointer != null) {
+                    trial.checkpointer.flush();
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        List<Trial> ranked = new ArrayList<>(trials);
+        ranked.sort(RANKING);
+        return ranked;
+    }
+
+    /**
+     * Completed trials before stopped ones, then by best test session.
+     */
+    public static final Comparator<Trial> RANKING = Comparator.comparing((Trial trial) -> trial.stoppedAt >= 0)
+            .thenComparing(Comparator.comparingDouble((Trial trial) -> trial.bestReward).reversed())
+            .thenComparingInt(trial -> trial.index);
+
+    /**
+     * Records a trial's running mean at a session and decides whether the trial goes on.
+     *
+     * @return true if the mean is below the median of the other trials' means at the session
+     */
+    private synchronized boolean reportSession(int session, double runningMean) {
+        while (sessionMeans.size() <= session) {
+            sessionMeans.add(new ArrayList<>());
+        }
+        List<Double> peers = sessionMeans.get(session);
+        boolean stop = false;
+        if (session >= graceSessions && peers.size() >= minPeers) {
+            List<Double> sorted = new ArrayList<>(peers);
+            Collections.sort(sorted);
+            int middle = sorted.size() / 2;
+            double median = sorted.size() % 2 == 1 ? sorted.get(middle) : (sorted.get(middle - 1) + sorted.get(middle)) / 2;
+            stop = runningMean < median;
+        }
+        peers.add(runningMean);
+        return stop;
+    }
+
+    /**
+     * @return Every combination of the parameters' values, the first parameter varying slowest
+     */
+    public static List<String[]> grid(List<Parameter> space) {
+        List<String[]> configurations = new ArrayList<>();
+        configurations.add(new String[0]);
+        for (Parameter parameter : space) {
+            if (parameter.values == null) {
+                throw new IllegalArgumentException("Grid search needs a list of values for " + parameter.key);
+            }
+            List<String[]> extended = new ArrayList<>();
+            for (String[] configuration : configurations) {
+                for (String value : parameter.values) {
+                    String[] options = Arrays.copyOf(configuration, configuration.length + 1);
+                    options[configuration.length] = parameter.key + "=" + value;
+                    extended.add(options);
+                }
+            }
+            configurations = extended;
+        }
+        return configurations;
+    }
+
+    /**
+     * @return count configurations, each parameter drawn independently
+     */
+    public static List<String[]> random(List<Parameter> space, int count, Random random) {
+        List<String[]> configurations = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String[] options = new String[space.size()];
+            for (int p = 0; p < space.size(); p++) {
+                options[p] = space.get(p).key + "=" + space.get(p).sample(random);
+            }
+            configurations.add(options);
+        }
+        return configurations;
+    }
+
+    /**
+     * Prints the ranked trials as a table.
+     */
+    public static void printTable(List<Trial> ranked, PrintStream out) {
+        out.println(String.format("%-5s %-6s %10s %8s %10s %9s %-12s %s",
+                "Rank", "Trial", "Best", "Session", "Last", "Episodes", "Status", "Configuration"));
+        for (int i = 0; i < ranked.size(); i++) {
+            Trial trial = ranked.get(i);
+            out.println(String.format("%-5d %-6d %10.2f %8d %10.2f %9d %-12s %s",
+                    i + 1, trial.index, trial.bestReward, trial.bestSession, trial.lastReward(), trial.episodes,
+                    trial.status(), String.join(" ", trial.options)));
+        }
+    }
+
+    private void writeResults(List<Trial> ranked) throws IOException {
+        Files.createDirectories(outputDirectory);
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(outputDirectory.resolve("results.csv")))) {
+            out.println("rank,trial,bestReward,bestSession,lastReward,episodes,status,configuration");
+            for (int i = 0; i < ranked.size(); i++) {
+                Trial trial = ranked.get(i);
+                out.println((i + 1) + "," + trial.index + "," + trial.bestReward + "," + trial.bestSession + ","
+                        + trial.lastReward() + "," + trial.episodes + "," + trial.status() + ","
+                        + String.join(" ", trial.options));
+            }
+        }
+    }
+
+    /**
+     * One configuration, its agent and what it reached.
+     */
+    public class Trial implements TrainingListener {
+        public final int index;
+        public final String[] options;
+        public final List<Double> testList = new ArrayList<>();
+        public double bestReward = Double.NEGATIVE_INFINITY;
+        public int bestSession = -1;
+        public double[] bestWeights;
+        /**
+         * Session after which the median rule stopped the trial, -1 if it ran its full schedule.
+         */
+        public int stoppedAt = -1;
+        public int episodes = 0;
+        private double rewardSum = 0;
+        private WeightCheckpointer checkpointer;
+
+        Trial(int index, String[] options) {
+            this.index = index;
+            this.options = options;
+        }
+
+        void train() {
+            String[] args = new String[options.length + 2];
+            args[0] = Integer.toString(numEpisodes);
+            args[1] = "false";
+            System.arraycopy(options, 0, args, 2, options.length);
+            RLAgent learner = new RLAgent(0, args);
+            learner.random.setSeed(seed);
+            learner.setTrainingListener(this);
+            if (outputDirectory != null) {
+                checkpointer = learner.newCheckpointer(outputDirectory.resolve(String.format("trial-%03d", index)), 0, 1);
+            }
+            Agent[] players = {learner, new SeededCombatAgent(RLAgent.ENEMY_PLAYERNUM, seed)};
+            CombatSimulator simulator = new CombatSimulator(map, timeLimit, seed);
+            while (!learner.isFinished() && stoppedAt < 0) {
+                simulator.runEpisode(players);
+                episodes++;
+            }
+        }
+
+        @Override
+        public void testSessionFinished(RLAgent agent, int session, double averageReward) {
+            testList.add(averageReward);
+            rewardSum += averageReward;
+            if (averageReward > bestReward) {
+                bestReward = averageReward;
+                bestSession = session;
+                bestWeights = Arrays.copyOf(agent.weights, agent.weights.length);
+                if (checkpointer != null) {
+                    checkpointer.submit(bestWeights, agent.numEpisode, averageReward);
+                }
+            }
+            if (reportSession(session, rewardSum / testList.size())) {
+                stoppedAt = session;
+            }
+        }
+
+        public double lastReward() {
+            return testList.isEmpty() ? Double.NaN : testList.get(testList.size() - 1);
+        }
+
+        String status() {
+            return stoppedAt < 0 ? "done" : "stopped@" + stoppedAt;
+        }
+    }
+
+    /**
+     * One RLAgent argument of the search space.
+     */
+    public static class Parameter {
+        public final String key;
+        /**
+         * The values to choose from, null for a range.
+         */
+        final String[] values;
+        final double low;
+        final double high;
+        final boolean logScale;
+
+        private Parameter(String key, String[] values, double low, double high, boolean logScale) {
+            this.key = key;
+            this.values = values;
+            this.low = low;
+            this.high = high;
+            this.logScale = logScale;
+        }
+
+        /**
+         * @param definition key=a,b,c, key=lo..hi or key=log:lo..hi
+         */
+        public static Parameter parse(String definition) {
+            int split = definition.indexOf('=');
+            if (split <= 0) {
+                throw new IllegalArgumentException("Expected key=values, got " + definition);
+            }
+            String key = definition.substring(0, split);
+            String value = definition.substring(split + 1);
+            boolean logScale = value.startsWith("log:");
+            if (logScale) {
+                value = value.substring(4);
+            }
+            int range = value.indexOf("..");
+            if (range < 0) {
+                if (logScale) {
+                    throw new IllegalArgumentException("log: needs a range lo..hi, got " + definition);
+                }
+                return new Parameter(key, value.split(","), 0, 0, false);
+            }
+            double low = Double.parseDouble(value.substring(0, range));
+            double high = Double.parseDouble(value.substring(range + 2));
+            if (high < low || (logScale && low <= 0)) {
+                throw new IllegalArgumentException("Invalid range for " + key + ": " + value);
+            }
+            return new Parameter(key, null, low, high, logScale);
+        }
+
+        String sample(Random random) {
+            if (values != null) {
+                return values[random.nextInt(values.length)];
+            }
+            if (logScale) {
+                return Double.toString(Math.exp(Math.log(low) + random.nextDouble() * (Math.log(high) - Math.log(low))));
+            }
+            return Double.toString(low + random.nextDouble() * (high - low));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: HyperparameterSweep <map.xml> [numEpisodes] [threads] [grid|random:N] [seed] [key=values...]");
+            System.exit(1);
+        }
+        int positional = 1;
+        while (positional < args.length && args[positional].indexOf('=') < 0) {
+            positional++;
+        }
+        ScenarioMap map = ScenarioMap.load(args[0]);
+        int numEpisodes = positional >= 2 ? Integer.parseInt(args[1]) : 100;
+        int threads = positional >= 3 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        String search = positional >= 4 ? args[3] : "grid";
+        long seed = positional >= 5 ? Long.parseLong(args[4]) : 12345;
+
+        List<Parameter> space = new ArrayList<>();
+        for (int i = positional; i < args.length; i++) {
+            space.add(Parameter.parse(args[i]));
+        }
+        if (space.isEmpty()) {
+            for (String definition : new String[]{"gamma=0.8,0.9,0.99", "learningRate=0.0001,0.001",
+                    "epsilon=0.02,0.1", "epsilonSchedule=exponential,inverse"}) {
+                space.add(Parameter.parse(definition));
+            }
+        }
+        List<String[]> configurations;
+        if (search.equals("grid")) {
+            configurations = grid(space);
+        } else if (search.startsWith("random:")) {
+            configurations = random(space, Integer.parseInt(search.substring(7)), new Random(seed));
+        } else {
+            throw new IllegalArgumentException("Search must be grid or random:N, not " + search);
+        }
+
+        Path outputDirectory = Paths.get(OUTPUT_DIR);
+        HyperparameterSweep sweep = new HyperparameterSweep(map, 100000, numEpisodes, seed, threads, outputDirectory);
+        long start = System.nanoTime();
+        List<Trial> ranked = sweep.run(configurations);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        sweep.writeResults(ranked);
+        printTable(ranked, System.out);
+        System.out.println(String.format("%d trials in %.1fs, best weights in %s", ranked.size(), seconds, outputDirectory));
+    }
+}
@@ -0,0 +1,436 @@
+package edu.cwru.sepia.experiment;
+
+import edu.cwru.sepia.agent.RLAgent;
+import edu.cwru.sepia.agent.TrajectoryLog;
+import edu.cwru.sepia.agent.TrajectoryRecorder;
+import edu.cwru.sepia.agent.WeightCheckpointer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Fits Q-function weights to recorded trajectories with fitted-Q iteration, without SEPIA or the simulator.
+ *
+ * load decodes the blocks of TrajectoryRecorder logs on a ForkJoinPool and turns every footman's choice into
+ * a transition: the features of the chosen (footman, enemy) pair, the reward the agent recorded when the
+ * choice ended, and the features of the footman against every enemy of the next event it re-planned at, none
+ * if it died or the episode ended. The features are computed from the recorded units and logs by a Features
+ * function, by default the agent's own, so other features can be tried on the same data.
+ *
+ * fit then repeats: target y = r + gamma * max over the next candidates of w . features, 0 for terminal
+ * transitions, and w = argmin sum (w . features - y)^2 + ridge * |w|^2. The normal matrix does not change
+ * between iterations and is factored once, so an iteration is one parallel pass over the transitions to
+ * compute the targets plus a back substitution, and replays the whole log at memory speed.
+ *
+ * java edu.cwru.sepia.experiment.OfflineTrainer &lt;log or directory&gt;... [iterations=N] [threads=N] [gamma=X] [ridge=X]
+ * fits the agent's features to every log given and checkpoints the weights into OUTPUT_DIR.
+ */
+public class OfflineTrainer {
+
+    public static final String OUTPUT_DIR = "agent_weights/offline";
+
+    /**
+     * Features of a (footman, enemy) pair at a recorded event.
+     */
+    public interface Features {
+        String[] names();
+
+        /**
+         * @param footman Index of the footman in event.mine
+         * @param enemy Index of the enemy in event.enemies
+         * @param out Receives names().length values from offset
+         */
+        void write(TrajectoryLog.Event event, int footman, int enemy, double[] out, int offset);
+    }
+
+    /**
+     * The features RLAgent computes, from the same inputs it uses.
+     */
+    public static final Features AGENT_FEATURES = new Features() {
+        @Override
+        public String[] names() {
+            return RLAgent.FEATURE_NAMES;
+        }
+
+        @Override
+        public void write(TrajectoryLog.Event event, int footman, int enemy, double[] out, int offset) {
+            TrajectoryLog.Units mine = event.mine;
+            TrajectoryLog.Units enemies = event.enemies;
+            RLAgent.writeFeatures(out, offset, 1, mine.present[footman] && enemies.present[enemy],
+                    mine.x[footman], mine.y[footman], mine.hp[footman],
+                    enemies.x[enemy], enemies.y[enemy], enemies.hp[enemy], event.turn - 1,
+                    event.getHitsTaken(enemies.ids[enemy]), event.attacked(enemies.ids[enemy], mine.ids[footman]),
+                    mine.size());
+        }
+    };
+
+    private final Features features;
+    private final int numFeatures;
+    private final ForkJoinPool pool;
+    private final List<Batch> batches = new ArrayList<>();
+    private long numTransitions = 0;
+
+    /**
+     * @param features Features to fit
+     * @param threads Parallelism of the decoding and fitting
+     */
+    public OfflineTrainer(Features features, int threads) {
+        this.features = features;
+        this.numFeatures = features.names().length;
+        this.pool = new ForkJoinPool(threads);
+    }
+
+    /**
+     * Decodes every block of the logs into transitions, in parallel.
+     *
+     * @throws IOException if a log can not be opened or a block is damaged
+     */
+    public void load(List<Path> files) throws IOException {
+        List<TrajectoryLog> logs = new ArrayList<>();
+        try {
+            List<ForkJoinTask<Batch>> tasks = new ArrayList<>();
+            for (Path file : files) {
+                TrajectoryLog log = new TrajectoryLog(file);
+                logs.add(log);
+                for (int block = 0; block < log.getNumBlocks(); block++) {
+                    int index = block;
+                    tasks.add(pool.submit(() -> {
+                        try {
+                            return toBatch(log.readBlock(index));
+                        } catch (IOException ex) {
+                            throw new UncheckedIOException(ex);
+                        }
+                    }));
+                }
+            }
+            for (ForkJoinTask<Batch> task : tasks) {
+                Batch batch = task.join();
+                batches.add(batch);
+                numTransitions += batch.count;
+            }
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        } finally {
+            for (TrajectoryLog log : logs) {
+                log.close();
+            }
+        }
+    }
+
+    public long getNumTransitions() {
+        return numTransitions;
+    }
+
+    /**
+     * Runs fitted-Q iteration from zero weights.
+     *
+     * @param iterations Largest number of iterations
+     * @param gamma Discount of the next state's value
+     * @param ridge L2 regularization, keeps the fit defined for features that never vary
+     * @param tolerance Stops once no weight moves by more than this in an iteration
+     * @return The fitted weights
+     */
+    public double[] fit(int iterations, double gamma, double ridge, double tolerance) {
+        double[] normal = new double[numFeatures * numFeatures];
+        for (double[] partial : parallel(batch -> batch.normalMatrix())) {
+            for (int i = 0; i < normal.length; i++) {
+                normal[i] += partial[i];
+            }
+        }
+        for (int i = 0; i < numFeatures; i++) {
+            normal[i * numFeatures + i] += ridge;
+        }
+        double[] cholesky = cholesky(normal, numFeatures);
+
+        double[] weights = new double[numFeatures];
+        for (int iteration = 1; iteration <= iterations; iteration++) {
+            double[] current = weights;
+            double[] rhs = new double[numFeatures + 1];
+            for (double[] partial : parallel(batch -> batch.targets(current, gamma))) {
+                for (int i = 0; i < rhs.length; i++) {
+                    rhs[i] += partial[i];
+                }
+            }
+            double[] next = solve(cholesky, numFeatures, rhs);
+            double change = 0;
+            for (int i = 0; i < numFeatures; i++) {
+                change = Math.max(change, Math.abs(next[i] - weights[i]));
+            }
+            weights = next;
+            System.out.println(String.format("Iteration %d: Bellman residual %.4f, largest weight change %.6f",
+                    iteration, Math.sqrt(rhs[numFeatures] / Math.max(1, numTransitions)), change));
+            if (change <= tolerance) {
+                break;
+            }
+        }
+        return weights;
+    }
+
+    private interface BatchFunction {
+        double[] apply(Batch batch);
+    }
+
+    private List<double[]> parallel(BatchFunction function) {
+        List<ForkJoinTask<double[]>> tasks = new ArrayList<>();
+        for (Batch batch : batches) {
+            tasks.add(pool.submit(() -> function.apply(batch)));
+        }
+        List<double[]> results = new ArrayList<>();
+        for (ForkJoinTask<double[]> task : tasks) {
+            results.add(task.join());
+        }
+        return results;
+    }
+
+    /**
+     * Turns a block's episodes into transitions.
+     */
+    private Batch toBatch(List<TrajectoryLog.Episode> episodes) {
+        Batch batch = new Batch(numFeatures);
+        Map<Integer, double[]> pending = new HashMap<>();
+        for (TrajectoryLog.Episode episode : episodes) {
+            pending.clear();
+            for (TrajectoryLog.Event event : episode.events) {
+                for (int r = 0; r < event.rewardFootmen.length; r++) {
+                    double[] taken = pending.remove(event.rewardFootmen[r]);
+                    if (taken != null) {
+                        int footman = event.mine.indexOf(event.rewardFootmen[r]);
+                        batch.add(taken, event.rewards[r], footman < 0 ? null : event, footman, features);
+                    }
+                }
+                for (int a = 0; a < event.actionFootmen.length; a++) {
+                    int footman = event.mine.indexOf(event.actionFootmen[a]);
+                    int enemy = event.enemies.indexOf(event.actionTargets[a]);
+                    if (footman >= 0 && enemy >= 0) {
+                        double[] taken = new double[numFeatures];
+                        features.write(event, footman, enemy, taken, 0);
+                        pending.put(event.actionFootmen[a], taken);
+                    }
+                }
+            }
+            for (int r = 0; r < episode.endFootmen.length; r++) {
+                double[] taken = pending.remove(episode.endFootmen[r]);
+                if (taken != null) {
+                    batch.add(taken, episode.endRewards[r], null, -1, features);
+                }
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * @return Lower triangular L with L * L^T = matrix, row major
+     */
+    static double[] cholesky(double[] matrix, int n) {
+        double[] lower = new double[n * n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j <= i; j++) {
+                double sum = matrix[i * n + j];
+                for (int k = 0; k < j; k++) {
+                    sum -= lower[i * n + k] * lower[j * n + k];
+                }
+                if (i == j) {
+                    if (sum <= 0) {
+                        throw new IllegalStateException("Normal matrix is singular, increase the ridge");
+                    }
+                    lower[i * n + i] = Math.sqrt(sum);
+                } else {
+                    lower[i * n + j] = sum / lower[j * n + j];
+                }
+            }
+        }
+        return lower;
+    }
+
+    /**
+     * @return x with L * L^T * x = rhs, reading the first n entries of rhs
+     */
+    static double[] solve(double[] lower, int n, double[] rhs) {
+        double[] y = new double[n];
+        for (int i = 0; i < n; i++) {
+            double sum = rhs[i];
+            for (int k = 0; k < i; k++) {
+                sum -= lower[i * n + k] * y[k];
+            }
+            y[i] = sum / lower[i * n + i];
+        }
+        double[] x = new double[n];
+        for (int i = n - 1; i >= 0; i--) {
+            double sum = y[i];
+            for (int k = i + 1; k < n; k++) {
+                sum -= lower[k * n + i] * x[k];
+            }
+            x[i] = sum / lower[i * n + i];
+        }
+        return x;
+    }
+
+    /**
+     * The transitions of one block, stored flat.
+     */
+    private static class Batch {
+        final int numFeatures;
+        int count = 0;
+        double[] taken = new double[0];
+        double[] rewards = new double[0];
+        /**
+         * Transition i's next candidates are rows candidateStart[i] to candidateStart[i + 1] of candidates.
+         */
+        int[] candidateStart = new int[1];
+        double[] candidates = new double[0];
+        int numCandidates = 0;
+
+        Batch(int numFeatures) {
+            this.numFeatures = numFeatures;
+        }
+
+        /**
+         * @param next Event the footman re-planned at, null for a terminal transition
+         * @param footman Index of the footman in next.mine
+         */
+        void add(double[] features, double reward, TrajectoryLog.Event next, int footman, Features function) {
+            if (count == rewards.length) {
+                int capacity = Math.max(64, count * 2);
+                taken = Arrays.copyOf(taken, capacity * numFeatures);
+                rewards = Arrays.copyOf(rewards, capacity);
+                candidateStart = Arrays.copyOf(candidateStart, capacity + 1);
+            }
+            System.arraycopy(features, 0, taken, count * numFeatures, numFeatures);
+            rewards[count] = reward;
+            int enemies = next == null ? 0 : next.enemies.size();
+            if ((numCandidates + enemies) * numFeatures > candidates.length) {
+                candidates = Arrays.copyOf(candidates, Math.max(candidates.length * 2, (numCandidates + enemies) * numFeatures));
+            }
+            for (int e = 0; e < enemies; e++) {
+                function.write(next, footman, e, candidates, (numCandidates + e) * numFeatures);
+            }
+            numCandidates += enemies;
+            count++;
+            candidateStart[count] = numCandidates;
+        }
+
+        /**
+         * @return Sum over the transitions of features * features^T, row major
+         */
+        double[] normalMatrix() {
+            double[] normal = new double[numFeatures * numFeatures];
+            for (int t = 0; t < count; t++) {
+                int base = t * numFeatures;
+                for (int i = 0; i < numFeatures; i++) {
+                    double fi = taken[base + i];
+                    for (int j = 0; j < numFeatures; j++) {
+                        normal[i * numFeatures + j] += fi * taken[base + j];
+                    }
+                }
+            }
+            return normal;
+        }
+
+        /**
+         * @return Sum over the transitions of features * target, followed by the sum of squared Bellman residuals
+         */
+        double[] targets(double[] weights, double gamma) {
+            double[] rhs = new double[numFeatures + 1];
+            for (int t = 0; t < count; t++) {
+                double maxNext = 0;
+                if (candidateStart[t + 1] > candidateStart[t]) {
+                    maxNext = Double.NEGATIVE_INFINITY;
+                    for (int c = candidateStart[t]; c < candidateStart[t + 1]; c++) {
+                        maxNext = Math.max(maxNext, dot(weights, candidates, c * numFeatures));
+                    }
+                }
+                double target = rewards[t] + gamma * maxNext;
+                int base = t * numFeatures;
+                for (int i = 0; i < numFeatures; i++) {
+                    rhs[i] += taken[base + i] * target;
+                }
+                double residual = target - dot(weights, taken, base);
+                rhs[numFeatures] += residual * residual;
+            }
+            return rhs;
+        }
+
+        private double dot(double[] weights, double[] values, int offset) {
+            double sum = 0;
+            for (int i = 0; i < numFeatures; i++) {
+                sum += weights[i] * values[offset + i];
+            }
+            return sum;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<Path> files = new ArrayList<>();
+        int iterations = 50;
+        int threads = Runtime.getRuntime().availableProcessors();
+        double gamma = 0.9;
+        double ridge = 1e-3;
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split < 0) {
+                addLogs(Paths.get(arg), files);
+                continue;
+            }
+            String value = arg.substring(split + 1);
+            switch (arg.substring(0, split)) {
+                case "iterations":
+                    iterations = Integer.parseInt(value);
+                    break;
+                case "threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "gamma":
+                    gamma = Double.parseDouble(value);
+                    break;
+                case "ridge":
+                    ridge = Double.parseDouble(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument " + arg);
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println("Usage: OfflineTrainer <log or directory>... [iterations=N] [threads=N] [gamma=X] [ridge=X]");
+            System.exit(1);
+        }
+
+        OfflineTrainer trainer = new OfflineTrainer(AGENT_FEATURES, threads);
+        long start = System.nanoTime();
+        trainer.load(files);
+        double loadSeconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("Loaded %d transitions from %d logs in %.2fs",
+                trainer.getNumTransitions(), files.size(), loadSeconds));
+        start = System.nanoTime();
+        double[] weights = trainer.fit(iterations, gamma, ridge, 1e-6);
+        double fitSeconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("Fitted in %.2fs: %s", fitSeconds, Arrays.toString(weights)));
+
+        WeightCheckpointer checkpointer = new WeightCheckpointer(Paths.get(OUTPUT_DIR), RLAgent.FEATURE_NAMES, 3, 0);
+        checkpointer.submit(weights, 0, Double.NaN);
+        checkpointer.flush();
+        trainer.pool.shutdown();
+    }
+
+    private static void addLogs(Path path, List<Path> files) throws IOException {
+        if (!Files.isDirectory(path)) {
+            files.add(path);
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(path, "*" + TrajectoryRecorder.SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+    }
+}
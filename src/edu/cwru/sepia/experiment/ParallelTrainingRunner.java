@@ -0,0 +1,329 @@
+package edu.cwru.sepia.experiment;
+
+import edu.cwru.sepia.agent.Agent;
+import edu.cwru.sepia.agent.RLAgent;
+import edu.cwru.sepia.agent.TrainingListener;
+import edu.cwru.sepia.agent.UnitRosterAware;
+import edu.cwru.sepia.agent.WeightCheckpointer;
+import edu.cwru.sepia.agent.visual.VisualAgent;
+import edu.cwru.sepia.environment.Environment;
+import edu.cwru.sepia.environment.model.Model;
+import edu.cwru.sepia.environment.model.SimpleModel;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.StateCreator;
+import edu.cwru.sepia.simulation.ScenarioMap;
+import edu.cwru.sepia.simulation.ScenarioStateCreator;
+
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Trains RLAgents in several independent SEPIA environments at once, one thread per environment.
+ *
+ * Every worker gets its own copy of the configured agents (the RLAgent and the enemy combatAgent), its own
+ * SimpleModel and a per-worker seed for both the model and the RLAgent's exploration RNG. Each worker runs the
+ * RLAgent's full learning/test schedule. The workers learn into one weight vector in one of two ways:
+ *
+ * hogwild  - every worker's RLAgent holds the same double[] and updates it without locking.
+ * average  - every worker learns into a private copy and all copies are replaced by their mean every
+ *            experiment.parallel.AverageInterval episodes.
+ *
+ * Test sessions are reported back through TrainingListener. The learning curve printed at the end is the
+ * per-session mean over all workers. Every test session is checkpointed through the RLAgent's
+ * WeightCheckpointer and the best weights seen at the end of any test session are also exported as text.
+ *
+ * Configured with the Runner parameters of the XML configuration:
+ * experiment.NumEpisodes                 - upper bound on episodes per worker
+ * experiment.parallel.Workers            - number of environments, defaults to the number of cores
+ * experiment.parallel.WeightSharing      - hogwild or average, defaults to hogwild
+ * experiment.parallel.AverageInterval    - episodes between averaging rounds, defaults to 10
+ * experiment.parallel.Seed               - base seed, worker i uses Seed + i
+ * experiment.parallel.CachedState        - reset every episode from a ScenarioMap parsed once instead of the
+ *                                          configured StateCreator, defaults to true
+ * environment.model.class                - Model each worker simulates with, constructed like SEPIA's runners
+ *                                          do through its (State, int seed, StateCreator, Configuration)
+ *                                          constructor, defaults to SimpleModel
+ *
+ * With a cached state the map keeps only players, unit templates and units, which is all the footman maps
+ * have, and the RLAgent is handed its footmen before every episode instead of classifying the units itself.
+ */
+public class ParallelTrainingRunner extends Runner {
+
+    public static final String WORKERS = "experiment.parallel.Workers";
+    public static final String WEIGHT_SHARING = "experiment.parallel.WeightSharing";
+    public static final String AVERAGE_INTERVAL = "experiment.parallel.AverageInterval";
+    public static final String SEED = "experiment.parallel.Seed";
+    public static final String CACHED_STATE = "experiment.parallel.CachedState";
+    public static final String MODEL_CLASS = "environment.model.class";
+
+    private final int numWorkers;
+    private final boolean averageWeights;
+    private final int averageInterval;
+    private final long seed;
+    private final int maxEpisodes;
+    private final Constructor<? extends Model> modelConstructor;
+    /**
+     * The map episodes reset from, null when they reset through the configured StateCreator.
+     */
+    private final ScenarioMap map;
+
+    private final AtomicLong episodesRun = new AtomicLong();
+    private double bestTestReward = Double.NEGATIVE_INFINITY;
+    private WeightCheckpointer checkpointer;
+    /**
+     * The worker that stopped training last, with averaging its weights are the final mean.
+     */
+    private volatile Worker lastFinished;
+
+    public ParallelTrainingRunner(Configuration configuration, StateCreator stateCreator, Agent[] agents) {
+        super(configuration, stateCreator, agents);
+        numWorkers = configuration.getInt(WORKERS, Runtime.getRuntime().availableProcessors());
+        String sharing = configuration.getString(WEIGHT_SHARING, "hogwild");
+        if (!sharing.equals("hogwild") && !sharing.equals("average")) {
+            throw new IllegalArgumentException(WEIGHT_SHARING + " must be hogwild or average, not " + sharing);
+        }
+        averageWeights = sharing.equals("average");
+        averageInterval = configuration.getInt(AVERAGE_INTERVAL, 10);
+        seed = configuration.getInt(SEED, 12345);
+        maxEpisodes = ConfigurationValues.ENVIRONMENT_EPISODES.getIntValue(configuration);
+        String modelClass = configuration.getString(MODEL_CLASS, SimpleModel.class.getName());
+        try {
+            modelConstructor = Class.forName(modelClass).asSubclass(Model.class)
+                    .getConstructor(State.class, int.class, StateCreator.class, Configuration.class);
+        } catch (ClassNotFoundException | ClassCastException | NoSuchMethodException ex) {
+            throw new IllegalArgumentException(MODEL_CLASS + " " + modelClass
+                    + " is not a Model with a (State, int, StateCreator, Configuration) constructor", ex);
+        }
+        if (stateCreator instanceof ScenarioStateCreator) {
+            map = ((ScenarioStateCreator) stateCreator).getMap();
+        } else if (configuration.getBoolean(CACHED_STATE, true)) {
+            map = ScenarioMap.fromState(stateCreator.createState());
+            this.stateCreator = new ScenarioStateCreator(map);
+        } else {
+            map = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        RLAgent template = findLearner(agents);
+        checkpointer = template.getCheckpointer();
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < numWorkers; i++) {
+            workers.add(new Worker(i, copyAgents(agents)));
+        }
+
+        Phaser averaging = averageWeights ? new AveragingPhaser(workers) : null;
+        for (Worker worker : workers) {
+            if (averageWeights) {
+                averaging.register();
+            } else {
+                // hogwild: every worker reads and writes the template's array
+                worker.learner.weights = template.weights;
+            }
+        }
+
+        long start = System.nanoTime();
+        List<Thread> threads = new ArrayList<>();
+        for (Worker worker : workers) {
+            Thread thread = new Thread(() -> worker.train(averaging), "rl-worker-" + worker.index);
+            threads.add(thread);
+            thread.start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        if (averageWeights) {
+            System.arraycopy(lastFinished.learner.weights, 0, template.weights, 0, template.weights.length);
+        }
+        checkpointer.flush();
+        template.printTestData(mergeTestLists(workers));
+        System.out.println(String.format("%d workers ran %d episodes in %.1fs (%.2f episodes/s)",
+                numWorkers, episodesRun.get(), seconds, episodesRun.get() / seconds));
+    }
+
+    /**
+     * Checkpoints every test session of every worker into the template's checkpointer and exports the best
+     * weights seen by any worker as text. Called from the worker threads.
+     */
+    private synchronized void testSessionFinished(RLAgent agent, double averageReward) {
+        double[] snapshot = Arrays.copyOf(agent.weights, agent.weights.length);
+        checkpointer.submit(snapshot, agent.numEpisode, averageReward);
+        if (averageReward >= bestTestReward) {
+            bestTestReward = averageReward;
+            checkpointer.execute(() -> agent.saveWeights(snapshot));
+        }
+    }
+
+    /**
+     * @return Mean over workers of each test session's average reward, in session order
+     */
+    static List<Double> mergeTestLists(List<Worker> workers) {
+        List<Double> merged = new ArrayList<>();
+        for (int session = 0; ; session++) {
+            double sum = 0;
+            int count = 0;
+            for (Worker worker : workers) {
+                List<Double> testList = worker.learner.getTestList();
+                if (session < testList.size()) {
+                    sum += testList.get(session);
+                    count++;
+                }
+            }
+            if (count == 0) {
+                return merged;
+            }
+            merged.add(sum / count);
+        }
+    }
+
+    private static RLAgent findLearner(Agent[] agents) {
+        for (Agent agent : agents) {
+            if (agent instanceof RLAgent) {
+                return (RLAgent) agent;
+            }
+        }
+        throw new IllegalArgumentException("The configuration does not contain an RLAgent");
+    }
+
+    /**
+     * Deep copies the agents through serialization, which every SEPIA agent supports. Visual agents are
+     * dropped because there is no sensible way to show several environments in one window.
+     */
+    public static Agent[] copyAgents(Agent[] agents) {
+        List<Agent> copies = new ArrayList<>();
+        for (Agent agent : agents) {
+            if (agent instanceof VisualAgent) {
+                continue;
+            }
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                ObjectOutputStream out = new ObjectOutputStream(bytes);
+                out.writeObject(agent);
+                out.close();
+                ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+                copies.add((Agent) in.readObject());
+                in.close();
+            } catch (IOException | ClassNotFoundException ex) {
+                throw new IllegalStateException("Unable to copy agent " + agent.getClass().getName(), ex);
+            }
+        }
+        return copies.toArray(new Agent[copies.size()]);
+    }
+
+    /**
+     * One environment and the agents playing in it.
+     */
+    class Worker implements TrainingListener {
+        final int index;
+        final Agent[] agents;
+        final RLAgent learner;
+        final Environment environment;
+        /**
+         * Cleared before the worker leaves the averaging phaser, its weights no longer take part afterwards
+         */
+        volatile boolean running = true;
+
+        Worker(int index, Agent[] agents) {
+            this.index = index;
+            this.agents = agents;
+            this.learner = findLearner(agents);
+            learner.random.setSeed(seed + index);
+            learner.setTrainingListener(this);
+            Model model;
+            try {
+                model = modelConstructor.newInstance(stateCreator.createState(), (int) (seed + index), stateCreator, configuration);
+            } catch (ReflectiveOperationException ex) {
+                throw new IllegalStateException("Unable to create a " + modelConstructor.getDeclaringClass().getName(), ex);
+            }
+            environment = new Environment(agents, model, (int) (seed + index));
+        }
+
+        void train(Phaser averaging) {
+            try {
+                for (int episode = 1; episode <= maxEpisodes && !learner.isFinished(); episode++) {
+                    if (map != null) {
+                        setUnitRosters();
+                    }
+                    environment.runEpisode();
+                    episodesRun.incrementAndGet();
+                    if (averaging != null && episode % averageInterval == 0) {
+                        averaging.arriveAndAwaitAdvance();
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                running = false;
+                lastFinished = this;
+                if (averaging != null) {
+                    averaging.arriveAndDeregister();
+                }
+            }
+        }
+
+        /**
+         * Hands the UnitRosterAware agents their units of the next episode, which starts from the cached map.
+         */
+        void setUnitRosters() {
+            for (Agent agent : agents) {
+                if (agent instanceof UnitRosterAware) {
+                    int player = agent.getPlayerNumber();
+                    ((UnitRosterAware) agent).setUnitRoster(map.getUnitIds(player), map.getEnemyUnitIds(player));
+                }
+            }
+        }
+
+        @Override
+        public void testSessionFinished(RLAgent agent, int session, double averageReward) {
+            ParallelTrainingRunner.this.testSessionFinished(agent, averageReward);
+        }
+    }
+
+    /**
+     * Replaces the weights of the still running workers with their mean each time all of them have arrived.
+     * Workers that finished have deregistered and their frozen weights no longer dilute the mean.
+     */
+    private static class AveragingPhaser extends Phaser {
+        private final List<Worker> workers;
+
+        AveragingPhaser(List<Worker> workers) {
+            this.workers = workers;
+        }
+
+        @Override
+        protected boolean onAdvance(int phase, int registeredParties) {
+            int running = 0;
+            for (Worker worker : workers) {
+                running += worker.running ? 1 : 0;
+            }
+            if (running > 0) {
+                int length = workers.get(0).learner.weights.length;
+                double[] mean = new double[length];
+                for (Worker worker : workers) {
+                    for (int i = 0; i < length && worker.running; i++) {
+                        mean[i] += worker.learner.weights[i] / running;
+                    }
+                }
+                for (Worker worker : workers) {
+                    if (worker.running) {
+                        System.arraycopy(mean, 0, worker.learner.weights, 0, length);
+                    }
+                }
+            }
+            return registeredParties == 0;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package edu.cwru.sepia.experiment;
+
+import edu.cwru.sepia.agent.ParameterClient;
+import edu.cwru.sepia.agent.RLAgent;
+import edu.cwru.sepia.agent.WeightCheckpointer;
+import edu.cwru.sepia.simulation.SimulationRunner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Coordinator holding the canonical weights for RLAgent workers in other processes.
+ *
+ * Workers connect with the parameterServer=host:port agent argument and sync every syncEvery events, see
+ * ParameterClient for the protocol. A push is applied by adding its delta to the weights and bumps the version,
+ * unless the push was based on weights more than maxStaleness versions old, in which case it is dropped. Either
+ * way the reply carries the current weights. Every connection is served by its own thread and the weights are
+ * guarded by the server's lock, so pushes are applied one at a time in arrival order.
+ *
+ * The server checkpoints through a WeightCheckpointer in RLAgent.CHECKPOINT_DIR: the current weights with the
+ * reported score whenever a worker finishes a test session, and every checkpointEvery applied pushes. Workers
+ * do not checkpoint themselves while connected, so agents loading the best checkpoint get the server's weights.
+ *
+ * java edu.cwru.sepia.experiment.ParameterServer &lt;map.xml&gt; [workers] [numEpisodes] [syncEvery] [maxStaleness] [port]
+ * starts a server on the loopback interface and, with workers above 0, that many SimulationRunner worker JVMs
+ * on the map with seeds 12345 + i, then waits for them and prints the final weights. With 0 workers it serves
+ * until it is killed, for workers started by hand. Defaults are 2 workers, 100 episodes, syncEvery=10,
+ * maxStaleness=8 and an ephemeral port.
+ */
+public class ParameterServer implements Closeable {
+
+    private final ServerSocket serverSocket;
+    private final int maxStaleness;
+    private final int checkpointEvery;
+    private final WeightCheckpointer checkpointer;
+    private final long schemaHash;
+
+    private double[] weights;
+    private long version = 0;
+    private long appliedPushes = 0;
+    private long stalePushes = 0;
+    private volatile boolean closed = false;
+
+    /**
+     * @param port Port to listen on, 0 for any free port
+     * @param maxStaleness Largest number of versions a push's base may be behind
+     * @param checkpointEvery Applied pushes between periodic checkpoints, 0 for none
+     * @param checkpointer Where checkpoints go, null for none
+     */
+    public ParameterServer(int port, int maxStaleness, int checkpointEvery, WeightCheckpointer checkpointer) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        this.maxStaleness = maxStaleness;
+        this.checkpointEvery = checkpointEvery;
+        this.checkpointer = checkpointer;
+        schemaHash = WeightCheckpointer.schemaHash(RLAgent.FEATURE_NAMES);
+    }
+
+    /**
+     * Accepts workers on a daemon thread until close.
+     */
+    public void start() {
+        Thread acceptor = new Thread(() -> {
+            while (!closed) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    Thread worker = new Thread(() -> serve(socket), "ps-" + socket.getPort());
+                    worker.setDaemon(true);
+                    worker.start();
+                } catch (IOException ex) {
+                    if (!closed) {
+                        System.err.println("Parameter server stopped accepting. Reason: " + ex.getMessage());
+                    }
+                    return;
+                }
+            }
+        }, "ps-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return Copy of the current weights, null before the first worker registered
+     */
+    public synchronized double[] getWeights() {
+        return weights == null ? null : Arrays.copyOf(weights, weights.length);
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    public synchronized long getAppliedPushes() {
+        return appliedPushes;
+    }
+
+    public synchronized long getStalePushes() {
+        return stalePushes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        if (checkpointer != null) {
+            checkpointer.flush();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket connection = socket) {
+            connection.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+            double[] vector = null;
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException ex) {
+                    return;
+                }
+                if (type == ParameterClient.HELLO) {
+                    int numFeatures = in.readInt();
+                    long hash = in.readLong();
+                    vector = new double[numFeatures];
+                    readVector(in, vector);
+                    if (hash != schemaHash || numFeatures != RLAgent.FEATURE_NAMES.length) {
+                        out.writeByte(ParameterClient.STATUS_ERROR);
+                        out.writeUTF("feature schema does not match the server's");
+                        out.flush();
+                        return;
+                    }
+                    writeWeights(out, register(vector), vector);
+                } else if (vector == null) {
+                    out.writeByte(ParameterClient.STATUS_ERROR);
+                    out.writeUTF("expected HELLO first");
+                    out.flush();
+                    return;
+                } else if (type == ParameterClient.PUSH) {
+                    long baseVersion = in.readLong();
+                    readVector(in, vector);
+                    writeWeights(out, push(baseVersion, vector), vector);
+                } else if (type == ParameterClient.PULL) {
+                    writeWeights(out, pull(vector), vector);
+                } else if (type == ParameterClient.TEST) {
+                    int episode = in.readInt();
+                    double score = in.readDouble();
+                    testSessionFinished(episode, score);
+                    out.writeByte(ParameterClient.STATUS_OK);
+                    out.flush();
+                } else {
+                    out.writeByte(ParameterClient.STATUS_ERROR);
+                    out.writeUTF("unknown message type " + type);
+                    out.flush();
+                    return;
+                }
+            }
+        } catch (IOException ex) {
+            if (!closed) {
+                System.err.println("Lost a parameter server worker. Reason: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Adopts the first worker's weights, then copies the current ones into vector.
+     */
+    private synchronized byte register(double[] vector) {
+        if (weights == null) {
+            weights = Arrays.copyOf(vector, vector.length);
+        }
+        return pull(vector);
+    }
+
+    /**
+     * Applies delta unless it is too stale, then copies the current weights into it.
+     */
+    private synchronized byte push(long baseVersion, double[] delta) {
+        if (version - baseVersion > maxStaleness) {
+            stalePushes++;
+            pull(delta);
+            return ParameterClient.STATUS_STALE;
+        }
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] += delta[i];
+        }
+        version++;
+        appliedPushes++;
+        if (checkpointer != null && checkpointEvery > 0 && appliedPushes % checkpointEvery == 0) {
+            checkpointer.submit(Arrays.copyOf(weights, weights.length), (int) version, Double.NaN);
+        }
+        return pull(delta);
+    }
+
+    private synchronized byte pull(double[] vector) {
+        System.arraycopy(weights, 0, vector, 0, weights.length);
+        return ParameterClient.STATUS_OK;
+    }
+
+    private synchronized void testSessionFinished(int episode, double averageReward) {
+        if (checkpointer != null) {
+            checkpointer.submit(Arrays.copyOf(weights, weights.length), (int) version, averageReward);
+        }
+    }
+
+    private synchronized void writeWeights(DataOutputStream out, byte status, double[] vector) throws IOException {
+        out.writeByte(status);
+        out.writeLong(version);
+        for (double value : vector) {
+            out.writeDouble(value);
+        }
+        out.flush();
+    }
+
+    private static void readVector(DataInputStream in, double[] vector) throws IOException {
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] = in.readDouble();
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.err.println("Usage: ParameterServer <map.xml> [workers] [numEpisodes] [syncEvery] [maxStaleness] [port]");
+            System.exit(1);
+        }
+        String map = args[0];
+        int numWorkers = args.length >= 2 ? Integer.parseInt(args[1]) : 2;
+        String numEpisodes = args.length >= 3 ? args[2] : "100";
+        String syncEvery = args.length >= 4 ? args[3] : "10";
+        int maxStaleness = args.length >= 5 ? Integer.parseInt(args[4]) : 8;
+        int port = args.length >= 6 ? Integer.parseInt(args[5]) : 0;
+
+        WeightCheckpointer checkpointer = new WeightCheckpointer(Paths.get(RLAgent.CHECKPOINT_DIR),
+                RLAgent.FEATURE_NAMES, 3, 3);
+        ParameterServer server = new ParameterServer(port, maxStaleness, 100, checkpointer);
+        server.start();
+        System.out.println("Parameter server listening on " + InetAddress.getLoopbackAddress().getHostAddress()
+                + ":" + server.getPort());
+        if (numWorkers == 0) {
+            Thread.currentThread().join();
+        }
+
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<Process> workers = new ArrayList<>();
+        for (int i = 0; i < numWorkers; i++) {
+            ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    SimulationRunner.class.getName(), map, numEpisodes, "false", Integer.toString(12345 + i), "0",
+                    "parameterServer=" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + server.getPort(),
+                    "syncEvery=" + syncEvery);
+            builder.redirectErrorStream(true);
+            builder.redirectOutput(new File("parameter-worker-" + i + ".log"));
+            workers.add(builder.start());
+        }
+        int failed = 0;
+        for (Process worker : workers) {
+            failed += worker.waitFor() == 0 ? 0 : 1;
+        }
+        server.close();
+        System.out.println(String.format("%d workers finished, %d failed. %d pushes applied, %d dropped as stale.",
+                numWorkers, failed, server.getAppliedPushes(), server.getStalePushes()));
+        System.out.println("Final weights " + Arrays.toString(server.getWeights()));
+    }
+}
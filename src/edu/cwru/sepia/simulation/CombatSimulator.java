@@ -0,0 +1,619 @@
+package edu.cwru.sepia.simulation;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.action.ActionFeedback;
+import edu.cwru.sepia.action.ActionResult;
+import edu.cwru.sepia.action.ActionType;
+import edu.cwru.sepia.action.TargetedAction;
+import edu.cwru.sepia.agent.Agent;
+import edu.cwru.sepia.agent.UnitRosterAware;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Unit;
+import edu.cwru.sepia.util.Direction;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Headless footman combat on a ScenarioMap, played by ordinary SEPIA agents.
+ *
+ * Positions, hit points and orders live in primitive arrays indexed by map slot and every rule is evaluated
+ * on those arrays. The simulator mirrors the result into a plain SEPIA State and History each turn, so agents
+ * get the StateView and HistoryView they get from SimpleModel: unit positions and hit points, damage and
+ * death logs and command feedback. There is no XML and no agent thread per player.
+ *
+ * Rules follow SimpleModel and SimplePlanner for what the footman maps use:
+ * - a compound attack is planned when it is given: the moves of SimplePlanner's A* path to within range
+ *   (Chebyshev distance) of where the target stands then, followed by one attack
+ * - every turn a unit executes the next step of its plan, even after the target moved or died, so a unit
+ *   walks its stale path to the end before it notices the target is gone
+ * - a step onto an occupied tile, an attack on a target out of range or dead and a compound attack without a
+ *   path fail the command, which is planned again and goes on next turn unless the agent replaces it; a
+ *   compound attack on a dead target fails once and ends, a hit completes the command
+ * - damage is max(basicAttack - armor, 1) + piercingAttack minus rand.nextInt() % ((d + 2) / 2)
+ * - units act in the order SimpleModel's command map yields, see commanded
+ * - the episode ends when at most one player has units or the turn number passes the time limit
+ *
+ * All attacks of a turn see the hit points at the start of the turn and deaths are resolved after every unit
+ * acted, as in SimpleModel, where units killed during a turn still act in it. The damage roll is the only
+ * randomness, drawn from a seeded Random, so an episode is fully determined by the seed and the agents.
+ */
+public class CombatSimulator {
+
+    private static final int EMPTY = -1;
+    /**
+     * Path length of a compound attack SimplePlanner found no path for.
+     */
+    private static final int NO_PATH = -1;
+    /**
+     * Path length of a compound attack on a dead target, SimplePlanner's permanent fail.
+     */
+    private static final int NO_TARGET = -2;
+    private static final Direction[] DIRECTIONS = Direction.values();
+    /**
+     * Length of every direction's name by ordinal, AStarNode's tie break among nodes of equal estimate.
+     */
+    private static final int[] NAME_LENGTH = new int[DIRECTIONS.length];
+    static {
+         for(Direction direction : DIRECTIONS) {
+              NAME_LENGTH[direction.ordinal()] = direction.toString().length();
+         }
+    }
+
+    private final ScenarioMap map;
+    private final int timeLimit;
+    private final Random rand;
+    private final int numUnits;
+    private final int xExtent;
+    private final int yExtent;
+
+    /**
+     * Map slot of every unit id, EMPTY for ids that are not on the map.
+     */
+    private final int[] slotById;
+    private final int[] x;
+    private final int[] y;
+    private final int[] hp;
+    private final boolean[] alive;
+    /**
+     * Slot of the unit on each tile (x + y * xExtent), EMPTY for free tiles.
+     */
+    private final int[] occupant;
+    /**
+     * Slot of every unit that got a command this episode, by unit id. SimpleModel keeps the commands in a
+     * HashMap keyed by the unit, whose hash code is its id, and never removes one during an episode, so its
+     * units act in the iteration order of this map. actingOrder holds that order.
+     */
+    private HashMap<Integer, Integer> commanded;
+    private final int[] actingOrder;
+    private int numActing;
+    private final Action[] orders;
+    private final int[] orderTarget;
+    /**
+     * Planned moves of every unit's order, pathStep is the next one, pathLength is NO_PATH if there was no path
+     * and NO_TARGET if the target was dead.
+     */
+    private final Direction[][] paths;
+    private final int[] pathLength;
+    private final int[] pathStep;
+    /**
+     * SimplePlanner's open list as a binary heap of search nodes, sifted the way java.util.PriorityQueue sifts,
+     * so nodes of equal order come off it in the same order. Node n stands on nodeTile[n], is reached from
+     * nodePrevious[n] by nodeDirection[n] after nodeG[n] moves and is ordered by nodeKey[n], which packs the
+     * estimate and the tie break.
+     */
+    private final int[] heap;
+    private int heapSize;
+    private final int[] nodeTile;
+    private final int[] nodeG;
+    private final int[] nodeKey;
+    private final int[] nodePrevious;
+    private final Direction[] nodeDirection;
+    /**
+     * Search that put each tile on the open list, so the tiles need no clearing between searches.
+     */
+    private final int[] queuedIn;
+    private int search;
+    private final int[] damageTaken;
+    private final int[] unitsLeft;
+
+    private State state;
+    private History history;
+    private Unit[] units;
+    /**
+     * Set to keep only the last turns of the history, null keeps SEPIA's full history.
+     */
+    private HistoryWindow historyWindow;
+
+    /**
+     * @param map Map to play, shared read-only
+     * @param timeLimit Last turn of an episode, SEPIA's environment.model.TimeLimit
+     * @param seed Seed of the damage rolls
+     */
+    public CombatSimulator(ScenarioMap map, int timeLimit, long seed) {
+         this.map = map;
+         this.timeLimit = timeLimit;
+         this.rand = new Random(seed);
+         numUnits = map.getNumUnits();
+         xExtent = map.getXExtent();
+         yExtent = map.getYExtent();
+         slotById = new int[map.getMaxUnitId() + 1];
+         Arrays.fill(slotById, EMPTY);
+         for(int slot = 0; slot < numUnits; slot++) {
+              slotById[map.getUnitId(slot)] = slot;
+         }
+         x = new int[numUnits];
+         y = new int[numUnits];
+         hp = new int[numUnits];
+         alive = new boolean[numUnits];
+         occupant = new int[xExtent * yExtent];
+         actingOrder = new int[numUnits];
+         orders = new Action[numUnits];
+         orderTarget = new int[numUnits];
+         paths = new Direction[numUnits][xExtent * yExtent];
+         pathLength = new int[numUnits];
+         pathStep = new int[numUnits];
+         heap = new int[xExtent * yExtent + 1];
+         nodeTile = new int[xExtent * yExtent + 1];
+         nodeG = new int[xExtent * yExtent + 1];
+         nodeKey = new int[xExtent * yExtent + 1];
+         nodePrevious = new int[xExtent * yExtent + 1];
+         nodeDirection = new Direction[xExtent * yExtent + 1];
+         queuedIn = new int[xExtent * yExtent];
+         damageTaken = new int[numUnits];
+         unitsLeft = new int[map.getMaxPlayer() + 1];
+    }
+
+    /**
+     * Plays one episode the way Environment.runEpisode does: initialStep, then a middleStep after every turn
+     * until the episode is over, then terminalStep.
+     *
+     * @param agents One agent per player of the map
+     * @return How the episode ended
+     */
+    public Outcome runEpisode(Agent[] agents) {
+         startEpisode(agents);
+         while(playTurn(agents)) {
+              // middleSteps ran inside playTurn
+         }
+         return endEpisode(agents);
+    }
+
+    /**
+     * Resets the map and runs every agent's initialStep. runEpisode is startEpisode, playTurn until it returns
+     * false and endEpisode. The pieces are public so benchmarks and tools can stop an episode at any turn.
+     * UnitRosterAware agents are handed the map's unit ids first, so they do not classify the units themselves.
+     */
+    public void startEpisode(Agent[] agents) {
+         reset();
+         for(Agent agent : agents) {
+              int player = agent.getPlayerNumber();
+              if(agent instanceof UnitRosterAware) {
+                   ((UnitRosterAware) agent).setUnitRoster(map.getUnitIds(player), map.getEnemyUnitIds(player));
+              }
+              addActions(player, agent.initialStep(state.getView(player), history.getView(player)));
+         }
+    }
+
+    /**
+     * Executes one turn and, unless the episode ended with it, runs every agent's middleStep.
+     *
+     * @return false once the episode is over, endEpisode should be called next
+     */
+    public boolean playTurn(Agent[] agents) {
+         if(isTerminated()) {
+              return false;
+         }
+         executeStep();
+         if(isTerminated()) {
+              return false;
+         }
+         for(Agent agent : agents) {
+              int player = agent.getPlayerNumber();
+              addActions(player, agent.middleStep(state.getView(player), history.getView(player)));
+         }
+         return true;
+    }
+
+    /**
+     * Runs every agent's terminalStep.
+     *
+     * @return How the episode ended
+     */
+    public Outcome endEpisode(Agent[] agents) {
+         for(Agent agent : agents) {
+              int player = agent.getPlayerNumber();
+              agent.terminalStep(state.getView(player), history.getView(player));
+         }
+         return new Outcome(winner(), state.getTurnNumber(), unitsLeft.clone());
+    }
+
+    /**
+     * Keeps only the last turns of every following episode's history, see HistoryWindow. Long episodes then
+     * play in constant memory, as long as no agent reads further back than the window.
+     *
+     * @param turns Turns kept, 0 for SEPIA's full history
+     */
+    public void setHistoryWindow(int turns) {
+         historyWindow = turns > 0 ? new HistoryWindow(turns) : null;
+    }
+
+    /**
+     * @return The history window of the episodes, with its running totals, null when the full history is kept
+     */
+    public HistoryWindow getHistoryWindow() {
+         return historyWindow;
+    }
+
+    /**
+     * @return The SEPIA state of the current or last episode
+     */
+    public State getState() {
+         return state;
+    }
+
+    /**
+     * @return The SEPIA history of the current or last episode
+     */
+    public History getHistory() {
+         return history;
+    }
+
+    private void reset() {
+         state = map.createState();
+         if(historyWindow != null) {
+              history = historyWindow.newHistory(unitsLeft.length);
+         } else {
+              history = new History();
+              for(int player = 0; player < unitsLeft.length; player++) {
+                   history.addPlayer(player);
+              }
+         }
+         units = new Unit[numUnits];
+         commanded = new HashMap<>();
+         numActing = 0;
+         Arrays.fill(occupant, EMPTY);
+         Arrays.fill(unitsLeft, 0);
+         for(int slot = 0; slot < numUnits; slot++) {
+              units[slot] = state.getUnit(map.getUnitId(slot));
+              x[slot] = map.getX(slot);
+              y[slot] = map.getY(slot);
+              hp[slot] = map.getHP(slot);
+              alive[slot] = true;
+              occupant[x[slot] + y[slot] * xExtent] = slot;
+              orders[slot] = null;
+              orderTarget[slot] = EMPTY;
+              damageTaken[slot] = 0;
+              unitsLeft[map.getPlayer(slot)]++;
+         }
+    }
+
+    /**
+     * Queues the commands of one player. A new command replaces the unit's current one and compound attacks
+     * are planned right away, from the positions of this turn.
+     */
+    private void addActions(int player, Map<Integer, Action> actions) {
+         if(actions == null) {
+              return;
+         }
+         int turn = state.getTurnNumber();
+         for(Map.Entry<Integer, Action> entry : actions.entrySet()) {
+              Action action = entry.getValue();
+              int unitId = entry.getKey();
+              history.recordCommandRecieved(player, turn, unitId, action);
+              int slot = unitId >= 0 && unitId < slotById.length ? slotById[unitId] : EMPTY;
+              if(slot == EMPTY || !alive[slot] || action.getUnitId() != unitId) {
+                   history.recordCommandFeedback(player, turn, new ActionResult(action, ActionFeedback.INVALIDUNIT));
+              } else if(map.getPlayer(slot) != player) {
+                   history.recordCommandFeedback(player, turn, new ActionResult(action, ActionFeedback.INVALIDCONTROLLER));
+              } else if(action.getType() != ActionType.COMPOUNDATTACK && action.getType() != ActionType.PRIMITIVEATTACK) {
+                   commanded(unitId, slot);
+                   history.recordCommandFeedback(player, turn, new ActionResult(action, ActionFeedback.INVALIDTYPE));
+              } else {
+                   commanded(unitId, slot);
+                   int targetId = ((TargetedAction) action).getTargetId();
+                   orders[slot] = action;
+                   orderTarget[slot] = targetId >= 0 && targetId < slotById.length ? slotById[targetId] : EMPTY;
+                   replan(slot);
+              }
+         }
+    }
+
+    private void commanded(int unitId, int slot) {
+         if(commanded.containsKey(unitId)) {
+              return;
+         }
+         commanded.put(unitId, slot);
+         numActing = 0;
+         for(int commandedSlot : commanded.values()) {
+              actingOrder[numActing++] = commandedSlot;
+         }
+    }
+
+    /**
+     * Runs one turn: every unit with an order executes its next move or its attack, then damage is applied and
+     * dead units are removed, then the turn number advances.
+     */
+    private void executeStep() {
+         int turn = state.getTurnNumber();
+         for(int i = 0; i < numActing; i++) {
+              int slot = actingOrder[i];
+              if(!alive[slot] || orders[slot] == null) {
+                   continue;
+              }
+              int target = orderTarget[slot];
+              if(pathLength[slot] == NO_TARGET) {
+                   feedback(slot, turn, ActionFeedback.FAILED);
+                   orders[slot] = null;
+              } else if(pathLength[slot] == NO_PATH) {
+                   fail(slot, turn);
+              } else if(pathStep[slot] < pathLength[slot]) {
+                   if(move(slot, paths[slot][pathStep[slot]++])) {
+                        feedback(slot, turn, ActionFeedback.INCOMPLETE);
+                   } else {
+                        fail(slot, turn);
+                   }
+              } else if(target == EMPTY || !alive[target] || distance(slot, target) > map.getRange(slot)) {
+                   fail(slot, turn);
+              } else {
+                   int damage = calculateDamage(slot, target);
+                   damageTaken[target] += damage;
+                   history.recordDamage(units[slot], units[target], damage, state);
+                   feedback(slot, turn, ActionFeedback.COMPLETED);
+                   orders[slot] = null;
+              }
+         }
+
+         for(int slot = 0; slot < numUnits; slot++) {
+              if(damageTaken[slot] == 0) {
+                   continue;
+              }
+              hp[slot] -= damageTaken[slot];
+              damageTaken[slot] = 0;
+              units[slot].setHP(Math.max(hp[slot], 0));
+              units[slot].deprecateOldView();
+         }
+         for(int slot = 0; slot < numUnits; slot++) {
+              if(alive[slot] && hp[slot] <= 0) {
+                   history.recordDeath(units[slot], state);
+                   state.removeUnit(map.getUnitId(slot));
+                   alive[slot] = false;
+                   orders[slot] = null;
+                   occupant[x[slot] + y[slot] * xExtent] = EMPTY;
+                   unitsLeft[map.getPlayer(slot)]--;
+              }
+         }
+         state.incrementTurn();
+    }
+
+    private void feedback(int slot, int turn, ActionFeedback feedback) {
+         history.recordCommandFeedback(map.getPlayer(slot), turn, new ActionResult(orders[slot], feedback));
+    }
+
+    /**
+     * Reports the order FAILED and plans it again from the positions of the moment. SimpleModel never drops a
+     * failed command, so the unit goes on with the new plan next turn unless its agent gives it another one.
+     */
+    private void fail(int slot, int turn) {
+         feedback(slot, turn, ActionFeedback.FAILED);
+         replan(slot);
+    }
+
+    /**
+     * Plans the unit's order as SimplePlanner does: a primitive attack is just the attack, a compound attack on
+     * a dead target fails for good and any other compound attack gets a fresh path.
+     */
+    private void replan(int slot) {
+         int target = orderTarget[slot];
+         pathLength[slot] = 0;
+         pathStep[slot] = 0;
+         if(orders[slot].getType() == ActionType.PRIMITIVEATTACK) {
+              return;
+         }
+         if(target == EMPTY || !alive[target]) {
+              pathLength[slot] = NO_TARGET;
+         } else {
+              plan(slot, target);
+         }
+    }
+
+    /**
+     * Plans the moves of a compound attack the way SimplePlanner.getDirections does: A* over the tiles no unit
+     * stands on, one per move, with the Chebyshev distance to the target as the heuristic. The search stops
+     * at the first tile taken off the open list that is within range of the target, or next to it, and among
+     * tiles of equal estimate AStarNode takes the one reached by the direction with the shorter name first.
+     * The same open list ordering makes the same choice among equally short paths.
+     *
+     * When every tile within range of the target is taken the search would visit every tile it can reach
+     * before it gives up, so that case is answered without searching.
+     */
+    private void plan(int slot, int target) {
+         int reach = Math.max(map.getRange(slot), 1);
+         int tx = x[target];
+         int ty = y[target];
+         pathStep[slot] = 0;
+         if(chebyshev(x[slot], y[slot], tx, ty) > reach && !freeTileWithin(tx, ty, reach)) {
+              pathLength[slot] = NO_PATH;
+              return;
+         }
+         search++;
+         heapSize = 0;
+         nodeTile[0] = x[slot] + y[slot] * xExtent;
+         nodeG[0] = 0;
+         nodePrevious[0] = EMPTY;
+         offer(0);
+         int numNodes = 1;
+         int goal = EMPTY;
+         while(heapSize > 0) {
+              int node = poll();
+              int nodeX = nodeTile[node] % xExtent;
+              int nodeY = nodeTile[node] / xExtent;
+              if(chebyshev(nodeX, nodeY, tx, ty) <= reach) {
+                   goal = node;
+                   break;
+              }
+              for(Direction direction : DIRECTIONS) {
+                   int nx = nodeX + direction.xComponent();
+                   int ny = nodeY + direction.yComponent();
+                   if(nx < 0 || ny < 0 || nx >= xExtent || ny >= yExtent) {
+                        continue;
+                   }
+                   int tile = nx + ny * xExtent;
+                   if(occupant[tile] != EMPTY || queuedIn[tile] == search) {
+                        continue;
+                   }
+                   queuedIn[tile] = search;
+                   int g = nodeG[node] + 1;
+                   nodeTile[numNodes] = tile;
+                   nodeG[numNodes] = g;
+                   nodeKey[numNodes] = (g + chebyshev(nx, ny, tx, ty)) * 16 + NAME_LENGTH[direction.ordinal()];
+                   nodePrevious[numNodes] = node;
+                   nodeDirection[numNodes] = direction;
+                   offer(numNodes++);
+              }
+         }
+         if(goal == EMPTY) {
+              pathLength[slot] = NO_PATH;
+              return;
+         }
+         pathLength[slot] = nodeG[goal];
+         for(int node = goal; nodePrevious[node] != EMPTY; node = nodePrevious[node]) {
+              paths[slot][nodeG[node] - 1] = nodeDirection[node];
+         }
+    }
+
+    /**
+     * Adds a node to the open list, PriorityQueue.offer's sift up.
+     */
+    private void offer(int node) {
+         int k = heapSize++;
+         while(k > 0) {
+              int parent = (k - 1) >>> 1;
+              if(nodeKey[node] >= nodeKey[heap[parent]]) {
+                   break;
+              }
+              heap[k] = heap[parent];
+              k = parent;
+         }
+         heap[k] = node;
+    }
+
+    /**
+     * Takes the first node off the open list, PriorityQueue.poll's sift down.
+     */
+    private int poll() {
+         int first = heap[0];
+         int n = --heapSize;
+         if(n > 0) {
+              int node = heap[n];
+              int k = 0;
+              while(k < n >>> 1) {
+                   int child = 2 * k + 1;
+                   if(child + 1 < n && nodeKey[heap[child]] > nodeKey[heap[child + 1]]) {
+                        child++;
+                   }
+                   if(nodeKey[node] <= nodeKey[heap[child]]) {
+                        break;
+                   }
+                   heap[k] = heap[child];
+                   k = child;
+              }
+              heap[k] = node;
+         }
+         return first;
+    }
+
+    private boolean freeTileWithin(int tx, int ty, int reach) {
+         for(int ny = Math.max(ty - reach, 0); ny <= Math.min(ty + reach, yExtent - 1); ny++) {
+              for(int nx = Math.max(tx - reach, 0); nx <= Math.min(tx + reach, xExtent - 1); nx++) {
+                   if(occupant[nx + ny * xExtent] == EMPTY) {
+                        return true;
+                   }
+              }
+         }
+         return false;
+    }
+
+    /**
+     * Moves the unit one tile, as SimpleModel does a primitive move.
+     *
+     * @return false if the tile is off the map or occupied
+     */
+    private boolean move(int slot, Direction direction) {
+         int nx = x[slot] + direction.xComponent();
+         int ny = y[slot] + direction.yComponent();
+         if(nx < 0 || ny < 0 || nx >= xExtent || ny >= yExtent || occupant[nx + ny * xExtent] != EMPTY) {
+              return false;
+         }
+         occupant[x[slot] + y[slot] * xExtent] = EMPTY;
+         x[slot] = nx;
+         y[slot] = ny;
+         occupant[nx + ny * xExtent] = slot;
+         state.moveUnit(units[slot], direction);
+         units[slot].deprecateOldView();
+         return true;
+    }
+
+    private int calculateDamage(int attacker, int defender) {
+         int damage = Math.max(map.getBasicAttack(attacker) - map.getArmor(defender), 1) + map.getPiercingAttack(attacker);
+         return damage - rand.nextInt() % ((damage + 2) / 2);
+    }
+
+    private int distance(int a, int b) {
+         return chebyshev(x[a], y[a], x[b], y[b]);
+    }
+
+    private static int chebyshev(int x1, int y1, int x2, int y2) {
+         return Math.max(Math.abs(x1 - x2), Math.abs(y1 - y2));
+    }
+
+    private boolean isTerminated() {
+         int playersLeft = 0;
+         for(int left : unitsLeft) {
+              if(left > 0) {
+                   playersLeft++;
+              }
+         }
+         return playersLeft <= 1 || state.getTurnNumber() > timeLimit;
+    }
+
+    /**
+     * @return The only player with units left, -1 if none or several have units
+     */
+    private int winner() {
+         int winner = -1;
+         for(int player = 0; player < unitsLeft.length; player++) {
+              if(unitsLeft[player] > 0) {
+                   if(winner != -1) {
+                        return -1;
+                   }
+                   winner = player;
+              }
+         }
+         return winner;
+    }
+
+    /**
+     * Result of one episode.
+     */
+    public static final class Outcome {
+         /**
+          * The only player with units left, -1 for a draw or an episode cut off by the time limit
+          */
+         public final int winner;
+         public final int turns;
+         /**
+          * Surviving units indexed by player number
+          */
+         public final int[] unitsLeft;
+
+         public Outcome(int winner, int turns, int[] unitsLeft) {
+              this.winner = winner;
+              this.turns = turns;
+              this.unitsLeft = unitsLeft;
+         }
+    }
+}
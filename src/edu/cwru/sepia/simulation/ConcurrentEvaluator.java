@@ -0,0 +1,164 @@
+package edu.cwru.sepia.simulation;
+
+import edu.cwru.sepia.agent.Agent;
+import edu.cwru.sepia.agent.RLAgent;
+import edu.cwru.sepia.agent.TestEvaluator;
+import edu.cwru.sepia.experiment.ParallelTrainingRunner;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Plays an RLAgent's test sessions on a thread pool while the agent keeps training.
+ *
+ * Every test episode of a session runs in its own CombatSimulator on a frozen copy of the agent holding the
+ * weight snapshot of the session, against fresh copies of the opponents. An episode's simulator and
+ * SeededCombatAgents are seeded from the base seed, the session number and the episode number only, so the
+ * results do not depend on thread timing. The runner calls deliverCompleted between training episodes, which
+ * hands finished sessions to their agent in submission order, and finish at the end, so the agent's test list
+ * and printTestData output are the same on every run.
+ */
+public class ConcurrentEvaluator implements TestEvaluator {
+
+    /**
+     * Test episodes per session, as in RLAgent's schedule.
+     */
+    public static final int EPISODES_PER_SESSION = 5;
+
+    private final ScenarioMap map;
+    private final int timeLimit;
+    private final long seed;
+    private final Agent[] opponents;
+    private final ExecutorService pool;
+    private final ArrayDeque<Session> pending = new ArrayDeque<>();
+    private int sessions = 0;
+    private int historyWindow = 0;
+
+    /**
+     * @param map Map to test on
+     * @param timeLimit Last turn of a test episode
+     * @param seed Base seed of the test episodes
+     * @param threads Test episodes played at the same time
+     * @param opponents The agents playing against the RLAgent. SeededCombatAgents are recreated with each
+     *                  episode's seed, other agents are copied through serialization.
+     */
+    public ConcurrentEvaluator(ScenarioMap map, int timeLimit, long seed, int threads, Agent[] opponents) {
+        this.map = map;
+        this.timeLimit = timeLimit;
+        this.seed = seed;
+        this.opponents = opponents;
+        pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "rl-test");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param turns Turns of history each test episode keeps, 0 for the full history, see
+     *              CombatSimulator.setHistoryWindow
+     */
+    public void setHistoryWindow(int turns) {
+        historyWindow = turns;
+    }
+
+    @Override
+    public void evaluate(RLAgent agent, double[] weights, int episode) {
+        int session = sessions++;
+        List<Future<Double>> episodes = new ArrayList<>();
+        for (int i = 0; i < EPISODES_PER_SESSION; i++) {
+            long episodeSeed = seed + 1000003L * (session * EPISODES_PER_SESSION + i + 1);
+            // copied here, on the training thread, so the copy sees the agent as it is now
+            RLAgent learner = (RLAgent) ParallelTrainingRunner.copyAgents(new Agent[]{agent})[0];
+            learner.weights = weights;
+            learner.freeze();
+            Agent[] players = playersFor(learner, episodeSeed);
+            episodes.add(pool.submit(() -> {
+                CombatSimulator simulator = new CombatSimulator(map, timeLimit, episodeSeed);
+                simulator.setHistoryWindow(historyWindow);
+                simulator.runEpisode(players);
+                return learner.getLastEpisodeReward();
+            }));
+        }
+        pending.add(new Session(agent, weights, episode, episodes));
+    }
+
+    /**
+     * Hands every finished session at the front of the queue to its agent. Call from the training thread.
+     */
+    public void deliverCompleted() {
+        while (!pending.isEmpty() && pending.peek().isDone()) {
+            pending.poll().deliver();
+        }
+    }
+
+    /**
+     * Waits for every submitted session, delivers them in order and stops the pool.
+     */
+    public void finish() {
+        while (!pending.isEmpty()) {
+            pending.poll().deliver();
+        }
+        pool.shutdown();
+    }
+
+    private Agent[] playersFor(RLAgent learner, long episodeSeed) {
+        Agent[] players = new Agent[opponents.length + 1];
+        players[0] = learner;
+        for (int i = 0; i < opponents.length; i++) {
+            Agent opponent = opponents[i];
+            if (opponent instanceof SeededCombatAgent) {
+                players[i + 1] = new SeededCombatAgent(opponent.getPlayerNumber(), episodeSeed);
+            } else {
+                players[i + 1] = ParallelTrainingRunner.copyAgents(new Agent[]{opponent})[0];
+            }
+        }
+        return players;
+    }
+
+    /**
+     * The test episodes of one session and where their result goes.
+     */
+    private static class Session {
+        final RLAgent agent;
+        final double[] weights;
+        final int episode;
+        final List<Future<Double>> episodes;
+
+        Session(RLAgent agent, double[] weights, int episode, List<Future<Double>> episodes) {
+            this.agent = agent;
+            this.weights = weights;
+            this.episode = episode;
+            this.episodes = episodes;
+        }
+
+        boolean isDone() {
+            for (Future<Double> future : episodes) {
+                if (!future.isDone()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void deliver() {
+            double total = 0;
+            try {
+                for (Future<Double> future : episodes) {
+                    total += future.get();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for test episodes", ex);
+            } catch (ExecutionException ex) {
+                throw new IllegalStateException("Test episode failed", ex.getCause());
+            }
+            agent.addTestResult(total / EPISODES_PER_SESSION, weights, episode);
+        }
+    }
+}
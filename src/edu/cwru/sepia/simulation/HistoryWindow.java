@@ -0,0 +1,294 @@
+package edu.cwru.sepia.simulation;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.action.ActionResult;
+import edu.cwru.sepia.environment.model.history.ActionLogger;
+import edu.cwru.sepia.environment.model.history.ActionResultLogger;
+import edu.cwru.sepia.environment.model.history.DamageLog;
+import edu.cwru.sepia.environment.model.history.DeathLog;
+import edu.cwru.sepia.environment.model.history.EventLogger;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.history.PlayerHistory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SEPIA histories that only keep the last few turns, plus running totals of what they dropped.
+ *
+ * SEPIA's loggers keep a list or map for every turn of the episode, empty turns included, so a stalemate that
+ * runs for the full time limit keeps growing the heap. The histories made here replace every player's and the
+ * observer's damage, death, command and feedback loggers with ring buffers of the last turns turns. Agents
+ * read them through the unchanged HistoryView, no agent code changes.
+ *
+ * Reading a turn that has left the window throws an IllegalStateException rather than returning an empty
+ * log, so an agent that looks further back than the window covers fails loudly instead of learning from
+ * missing events. RLAgent.HISTORY_TURNS is how far back RLAgent and everything it uses read. The lists and
+ * maps handed out are live views of their ring slot, valid until the slot is reused turns turns later.
+ *
+ * Births, upgrades and resource logs are not windowed, the footman maps produce none.
+ */
+public final class HistoryWindow {
+
+    private final int turns;
+    private EventWindow observerEvents;
+
+    /**
+     * @param turns Turns kept, at least 1
+     */
+    public HistoryWindow(int turns) {
+        if (turns < 1) {
+            throw new IllegalArgumentException("A history window must keep at least one turn, not " + turns);
+        }
+        this.turns = turns;
+    }
+
+    public int getTurns() {
+        return turns;
+    }
+
+    /**
+     * Creates the history of a new episode with players 0 to numPlayers - 1. The running totals restart.
+     */
+    public History newHistory(int numPlayers) {
+        History history = new History();
+        for (int player = 0; player < numPlayers; player++) {
+            history.addPlayer(player);
+            install(history.getPlayerHistory(player));
+        }
+        observerEvents = install(history.getObserverHistory());
+        return history;
+    }
+
+    /**
+     * @return Damage the player's units dealt in the current episode, including turns that left the window
+     */
+    public long getDamageDealt(int player) {
+        return observerEvents == null ? 0 : observerEvents.get(observerEvents.damageDealt, player);
+    }
+
+    /**
+     * @return Damage the player's units took in the current episode, including turns that left the window
+     */
+    public long getDamageTaken(int player) {
+        return observerEvents == null ? 0 : observerEvents.get(observerEvents.damageTaken, player);
+    }
+
+    /**
+     * @return Units the player lost in the current episode, including turns that left the window
+     */
+    public long getDeaths(int player) {
+        return observerEvents == null ? 0 : observerEvents.get(observerEvents.deaths, player);
+    }
+
+    private EventWindow install(PlayerHistory playerHistory) {
+        EventWindow events = new EventWindow(turns);
+        playerHistory.setEventLogger(events);
+        playerHistory.setCommandsIssued(new ActionWindow(turns));
+        playerHistory.setCommandFeedback(new ActionResultWindow(turns));
+        playerHistory.setPrimitivesExecuted(new ActionResultWindow(turns));
+        return events;
+    }
+
+    /**
+     * Which turn each ring slot holds and the newest turn written, shared by the windows below.
+     */
+    private static final class Ring {
+        final int[] slotTurns;
+        int newestTurn = -1;
+
+        Ring(int turns) {
+            slotTurns = new int[turns];
+            Arrays.fill(slotTurns, -1);
+        }
+
+        /**
+         * @return The slot to write turn to, true in cleared[0] if it held an older turn that was just dropped
+         */
+        int write(int turn, boolean[] cleared) {
+            int slot = turn % slotTurns.length;
+            cleared[0] = slotTurns[slot] != turn;
+            slotTurns[slot] = turn;
+            newestTurn = Math.max(newestTurn, turn);
+            return slot;
+        }
+
+        /**
+         * @return The slot holding turn, -1 if nothing was logged for it
+         * @throws IllegalStateException if turn has left the window
+         */
+        int read(int turn) {
+            if (turn <= newestTurn - slotTurns.length) {
+                throw new IllegalStateException("Turn " + turn + " is outside the history window of the last "
+                        + slotTurns.length + " turns, the newest is " + newestTurn);
+            }
+            int slot = turn < 0 ? -1 : turn % slotTurns.length;
+            return slot >= 0 && slotTurns[slot] == turn ? slot : -1;
+        }
+    }
+
+    private static final class EventWindow extends EventLogger {
+        private static final long serialVersionUID = 1L;
+
+        private final Ring ring;
+        private final List<List<DamageLog>> damage = new ArrayList<>();
+        private final List<List<DeathLog>> death = new ArrayList<>();
+        private final boolean[] cleared = new boolean[1];
+        long[] damageDealt = new long[2];
+        long[] damageTaken = new long[2];
+        long[] deaths = new long[2];
+
+        EventWindow(int turns) {
+            ring = new Ring(turns);
+            for (int i = 0; i < turns; i++) {
+                damage.add(new ArrayList<DamageLog>());
+                death.add(new ArrayList<DeathLog>());
+            }
+        }
+
+        @Override
+        public void recordDamage(int turn, int attackerId, int attackerController, int defenderId,
+                                 int defenderController, int damageAmount) {
+            int slot = slot(turn);
+            damage.get(slot).add(new DamageLog(attackerId, attackerController, defenderId, defenderController, damageAmount));
+            damageDealt = add(damageDealt, attackerController, damageAmount);
+            damageTaken = add(damageTaken, defenderController, damageAmount);
+        }
+
+        @Override
+        public void recordDeath(int turn, int unitId, int controller) {
+            death.get(slot(turn)).add(new DeathLog(unitId, controller));
+            deaths = add(deaths, controller, 1);
+        }
+
+        @Override
+        public List<DamageLog> getDamage(int turn) {
+            int slot = ring.read(turn);
+            return slot < 0 ? Collections.<DamageLog>emptyList() : Collections.unmodifiableList(damage.get(slot));
+        }
+
+        @Override
+        public List<DeathLog> getDeaths(int turn) {
+            int slot = ring.read(turn);
+            return slot < 0 ? Collections.<DeathLog>emptyList() : Collections.unmodifiableList(death.get(slot));
+        }
+
+        @Override
+        public int getHighestRoundDamage() {
+            return ring.newestTurn;
+        }
+
+        @Override
+        public int getHighestRoundDeath() {
+            return ring.newestTurn;
+        }
+
+        long get(long[] totals, int player) {
+            return player >= 0 && player < totals.length ? totals[player] : 0;
+        }
+
+        private int slot(int turn) {
+            int slot = ring.write(turn, cleared);
+            if (cleared[0]) {
+                damage.get(slot).clear();
+                death.get(slot).clear();
+            }
+            return slot;
+        }
+
+        private static long[] add(long[] totals, int player, long amount) {
+            if (player < 0) {
+                return totals;
+            }
+            if (player >= totals.length) {
+                totals = Arrays.copyOf(totals, player + 1);
+            }
+            totals[player] += amount;
+            return totals;
+        }
+    }
+
+    private static final class ActionResultWindow extends ActionResultLogger {
+        private static final long serialVersionUID = 1L;
+
+        private final Ring ring;
+        private final List<Map<Integer, ActionResult>> results = new ArrayList<>();
+        private final boolean[] cleared = new boolean[1];
+
+        ActionResultWindow(int turns) {
+            ring = new Ring(turns);
+            for (int i = 0; i < turns; i++) {
+                results.add(new HashMap<Integer, ActionResult>());
+            }
+        }
+
+        @Override
+        public void addActionResult(int turn, ActionResult result) {
+            addActionResult(turn, result.getAction().getUnitId(), result);
+        }
+
+        @Override
+        public void addActionResult(int turn, int unitId, ActionResult result) {
+            int slot = ring.write(turn, cleared);
+            if (cleared[0]) {
+                results.get(slot).clear();
+            }
+            results.get(slot).put(unitId, result);
+        }
+
+        @Override
+        public Map<Integer, ActionResult> getActionResults(int turn) {
+            int slot = ring.read(turn);
+            return slot < 0 ? Collections.<Integer, ActionResult>emptyMap() : Collections.unmodifiableMap(results.get(slot));
+        }
+
+        @Override
+        public int getHighestRound() {
+            return ring.newestTurn;
+        }
+    }
+
+    private static final class ActionWindow extends ActionLogger {
+        private static final long serialVersionUID = 1L;
+
+        private final Ring ring;
+        private final List<Map<Integer, Action>> actions = new ArrayList<>();
+        private final boolean[] cleared = new boolean[1];
+
+        ActionWindow(int turns) {
+            ring = new Ring(turns);
+            for (int i = 0; i < turns; i++) {
+                actions.add(new HashMap<Integer, Action>());
+            }
+        }
+
+        @Override
+        public void addAction(int turn, Action action) {
+            addAction(turn, action.getUnitId(), action);
+        }
+
+        @Override
+        public void addAction(int turn, int unitId, Action action) {
+            int slot = ring.write(turn, cleared);
+            if (cleared[0]) {
+                actions.get(slot).clear();
+            }
+            actions.get(slot).put(unitId, action);
+        }
+
+        @Override
+        public Map<Integer, Action> getActions(int turn) {
+            int slot = ring.read(turn);
+            return slot < 0 ? Collections.<Integer, Action>emptyMap() : Collections.unmodifiableMap(actions.get(slot));
+        }
+
+        @Override
+        public int getHighestRound() {
+            return ring.newestTurn;
+        }
+    }
+}
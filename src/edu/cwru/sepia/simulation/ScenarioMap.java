@@ -0,0 +1,442 @@
+package edu.cwru.sepia.simulation;
+
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Unit;
+import edu.cwru.sepia.environment.model.state.UnitTemplate;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The units of a SEPIA map file (data/rl_5fv5f.xml, data/rl_10fv10f.xml) as flat arrays.
+ *
+ * Only what footman combat needs is read: the map size, and for every unit its id, owner, position, hit
+ * points and the combat stats of its template. The XML is parsed with the JDK's DOM parser, so loading a map
+ * does not depend on SEPIA's JAXB bindings. A map is immutable once loaded and can be shared by any number
+ * of simulators and threads. Slot i of every array describes the same unit.
+ *
+ * Every player's unit ids and the ids of its enemies are classified once when the map is built, so runners
+ * that reset from the map can hand them to UnitRosterAware agents instead of the agents scanning each
+ * episode's initial state. The map is Serializable so ScenarioStateCreator can stand in for SEPIA's state
+ * creators.
+ */
+public final class ScenarioMap implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int xExtent;
+    private final int yExtent;
+
+    private final int[] unitIds;
+    private final int[] players;
+    private final int[] xPositions;
+    private final int[] yPositions;
+    private final int[] hitPoints;
+
+    private final int[] templateIds;
+    private final String[] templateNames;
+    private final int[] baseHealth;
+    private final int[] basicAttack;
+    private final int[] piercingAttack;
+    private final int[] range;
+    private final int[] armor;
+    private final int[] sightRange;
+
+    /**
+     * Unit ids of each player and of each player's enemies, indexed by player.
+     */
+    private final int[][] playerUnitIds;
+    private final int[][] enemyUnitIds;
+
+    private ScenarioMap(int xExtent, int yExtent, List<UnitRecord> units) {
+         this.xExtent = xExtent;
+         this.yExtent = yExtent;
+         int n = units.size();
+         unitIds = new int[n];
+         players = new int[n];
+         xPositions = new int[n];
+         yPositions = new int[n];
+         hitPoints = new int[n];
+         templateIds = new int[n];
+         templateNames = new String[n];
+         baseHealth = new int[n];
+         basicAttack = new int[n];
+         piercingAttack = new int[n];
+         range = new int[n];
+         armor = new int[n];
+         sightRange = new int[n];
+         for(int i = 0; i < n; i++) {
+              UnitRecord unit = units.get(i);
+              unitIds[i] = unit.id;
+              players[i] = unit.player;
+              xPositions[i] = unit.x;
+              yPositions[i] = unit.y;
+              hitPoints[i] = unit.hp;
+              templateIds[i] = unit.template.id;
+              templateNames[i] = unit.template.name;
+              baseHealth[i] = unit.template.baseHealth;
+              basicAttack[i] = unit.template.basicAttack;
+              piercingAttack[i] = unit.template.piercingAttack;
+              range[i] = unit.template.range;
+              armor[i] = unit.template.armor;
+              sightRange[i] = unit.template.sightRange;
+         }
+         //classified on the state createState builds, so the ids come in the order its views list them
+         int numPlayers = getMaxPlayer() + 1;
+         State initial = createState();
+         List<List<Integer>> owned = new ArrayList<>();
+         for(int player = 0; player < numPlayers; player++) {
+              boolean hasUnits = false;
+              for(int owner : players) {
+                   hasUnits |= owner == player;
+              }
+              owned.add(hasUnits ? initial.getView(player).getUnitIds(player) : Collections.<Integer>emptyList());
+         }
+         playerUnitIds = new int[numPlayers][];
+         enemyUnitIds = new int[numPlayers][];
+         for(int player = 0; player < numPlayers; player++) {
+              playerUnitIds[player] = toArray(owned.get(player));
+              List<Integer> enemies = new ArrayList<>();
+              for(int other = 0; other < numPlayers; other++) {
+                   if(other != player) {
+                        enemies.addAll(owned.get(other));
+                   }
+              }
+              enemyUnitIds[player] = toArray(enemies);
+         }
+    }
+
+    /**
+     * Reads the units of a SEPIA state XML file. Slots are in file order.
+     *
+     * @param path Map file, e.g. data/rl_5fv5f.xml
+     * @return The parsed map
+     * @throws IOException if the file can not be read or is not a SEPIA state
+     */
+    public static ScenarioMap load(String path) throws IOException {
+         Document document;
+         try {
+              document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new File(path));
+         } catch (ParserConfigurationException | SAXException ex) {
+              throw new IOException("Unable to parse map " + path, ex);
+         }
+         Element root = document.getDocumentElement();
+         if(!root.getTagName().equals("state")) {
+              throw new IOException(path + " is not a SEPIA state, root element is " + root.getTagName());
+         }
+
+         List<UnitRecord> units = new ArrayList<>();
+         for(Element player : children(root, "player")) {
+              int playerId = intChild(player, "ID");
+              List<TemplateRecord> templates = new ArrayList<>();
+              for(Element template : children(player, "template")) {
+                   if(template.getAttribute("xsi:type").equals("UnitTemplate")) {
+                        templates.add(new TemplateRecord(intChild(template, "ID"),
+                                  children(template, "name").get(0).getTextContent().trim(),
+                                  intChild(template, "baseHealth"), intChild(template, "baseAttack"),
+                                  intChild(template, "piercingAttack"), intChild(template, "range"),
+                                  intChild(template, "armor"), intChild(template, "sightRange")));
+                   }
+              }
+              for(Element unit : children(player, "unit")) {
+                   int templateId = intChild(unit, "templateID");
+                   TemplateRecord template = null;
+                   for(TemplateRecord candidate : templates) {
+                        if(candidate.id == templateId) {
+                             template = candidate;
+                        }
+                   }
+                   if(template == null) {
+                        throw new IOException("Unit " + intChild(unit, "ID") + " of " + path + " has unknown template " + templateId);
+                   }
+                   units.add(new UnitRecord(intChild(unit, "ID"), playerId, intChild(unit, "xPosition"),
+                             intChild(unit, "yPosition"), intChild(unit, "currentHealth"), template));
+              }
+         }
+         return new ScenarioMap(Integer.parseInt(root.getAttribute("xExtent")),
+                   Integer.parseInt(root.getAttribute("yExtent")), units);
+    }
+
+    /**
+     * Reads the units of an existing SEPIA state, e.g. the one a Runner's StateCreator produces. Slots are in
+     * unit id order.
+     *
+     * @param state State to copy the units from. It is not modified.
+     * @return The map of the state
+     */
+    public static ScenarioMap fromState(State state) {
+         List<Integer> ids = new ArrayList<>(state.getUnits().keySet());
+         Collections.sort(ids);
+         List<UnitRecord> units = new ArrayList<>();
+         for(Integer id : ids) {
+              Unit unit = state.getUnit(id);
+              UnitTemplate template = unit.getTemplate();
+              units.add(new UnitRecord(id, unit.getPlayer(), unit.getxPosition(), unit.getyPosition(), unit.getCurrentHealth(),
+                        new TemplateRecord(template.getView().getID(), template.getName(), template.getBaseHealth(),
+                                  template.getBasicAttack(), template.getPiercingAttack(), template.getRange(),
+                                  template.getArmor(), template.getSightRange())));
+         }
+         return new ScenarioMap(state.getXExtent(), state.getYExtent(), units);
+    }
+
+    /**
+     * Builds a fresh SEPIA state holding the map's players, the templates in use and all units. The state can
+     * be handed to SimpleModel directly, which is how validation runs play the same map in real SEPIA.
+     */
+    public State createState() {
+         State state = new State();
+         state.setSize(xExtent, yExtent);
+         boolean[] added = new boolean[getMaxPlayer() + 1];
+         for(int i = 0; i < unitIds.length; i++) {
+              if(!added[players[i]]) {
+                   state.addPlayer(players[i]);
+                   added[players[i]] = true;
+              }
+         }
+         List<UnitTemplate> templates = new ArrayList<>();
+         for(int i = 0; i < unitIds.length; i++) {
+              UnitTemplate template = findTemplate(templates, templateIds[i]);
+              if(template == null) {
+                   template = new UnitTemplate(templateIds[i]);
+                   template.setName(templateNames[i]);
+                   template.setPlayer(players[i]);
+                   template.setBaseHealth(baseHealth[i]);
+                   template.setBasicAttack(basicAttack[i]);
+                   template.setPiercingAttack(piercingAttack[i]);
+                   template.setRange(range[i]);
+                   template.setArmor(armor[i]);
+                   template.setSightRange(sightRange[i]);
+                   template.setCanMove(true);
+                   template.setDurationMove(1);
+                   template.setDurationAttack(1);
+                   state.addTemplate(template);
+                   templates.add(template);
+              }
+              Unit unit = new Unit(template, unitIds[i]);
+              unit.setHP(hitPoints[i]);
+              state.addUnit(unit, xPositions[i], yPositions[i]);
+         }
+         return state;
+    }
+
+    /**
+     * Builds a synthetic map with unitsPerPlayer units for every player of this map, all of the template of
+     * the player's first unit at full health. Each player's army is a block of columns and the blocks face
+     * each other ten tiles apart, like the armies of the rl_ maps. Used to scale benchmarks and training
+     * beyond the shipped 5v5 and 10v10 maps.
+     *
+     * @param unitsPerPlayer Army size of every player
+     * @return The scaled map, unit ids are assigned player by player from 0
+     */
+    public ScenarioMap withArmySize(int unitsPerPlayer) {
+         if(unitsPerPlayer <= 0) {
+              throw new IllegalArgumentException("Army size must be positive, not " + unitsPerPlayer);
+         }
+         List<Integer> playerOrder = new ArrayList<>();
+         List<TemplateRecord> playerTemplates = new ArrayList<>();
+         for(int i = 0; i < unitIds.length; i++) {
+              if(!playerOrder.contains(players[i])) {
+                   playerOrder.add(players[i]);
+                   playerTemplates.add(new TemplateRecord(templateIds[i], templateNames[i], baseHealth[i], basicAttack[i],
+                             piercingAttack[i], range[i], armor[i], sightRange[i]));
+              }
+         }
+         int rows = Math.max(1, Math.min(unitsPerPlayer, 2 * (int) Math.ceil(Math.sqrt(unitsPerPlayer))));
+         int columns = (unitsPerPlayer + rows - 1) / rows;
+         int gap = 10;
+         List<UnitRecord> units = new ArrayList<>();
+         for(int p = 0; p < playerOrder.size(); p++) {
+              TemplateRecord template = playerTemplates.get(p);
+              int left = 2 + p * (columns + gap);
+              for(int u = 0; u < unitsPerPlayer; u++) {
+                   units.add(new UnitRecord(units.size(), playerOrder.get(p), left + u / rows, 2 + u % rows,
+                             template.baseHealth, template));
+              }
+         }
+         int width = 4 + playerOrder.size() * columns + (playerOrder.size() - 1) * gap;
+         return new ScenarioMap(Math.max(xExtent, width), Math.max(yExtent, rows + 4), units);
+    }
+
+    public int getXExtent() {
+         return xExtent;
+    }
+
+    public int getYExtent() {
+         return yExtent;
+    }
+
+    public int getNumUnits() {
+         return unitIds.length;
+    }
+
+    /**
+     * @return Largest unit id on the map, -1 if it has no units
+     */
+    public int getMaxUnitId() {
+         int max = -1;
+         for(int id : unitIds) {
+              max = Math.max(max, id);
+         }
+         return max;
+    }
+
+    /**
+     * @return Largest player number on the map, -1 if it has no units
+     */
+    public int getMaxPlayer() {
+         int max = -1;
+         for(int player : players) {
+              max = Math.max(max, player);
+         }
+         return max;
+    }
+
+    /**
+     * @return Ids of the player's units in the order the views of createState's states list them, shared by
+     * every caller and not to be modified. Empty for players without units.
+     */
+    public int[] getUnitIds(int player) {
+         return player >= 0 && player < playerUnitIds.length ? playerUnitIds[player] : new int[0];
+    }
+
+    /**
+     * @return Ids of every other player's units, player by player in the order of getUnitIds, shared by every
+     * caller and not to be modified
+     */
+    public int[] getEnemyUnitIds(int player) {
+         return player >= 0 && player < enemyUnitIds.length ? enemyUnitIds[player] : unitIds;
+    }
+
+    public int getUnitId(int slot) {
+         return unitIds[slot];
+    }
+
+    public int getPlayer(int slot) {
+         return players[slot];
+    }
+
+    public int getX(int slot) {
+         return xPositions[slot];
+    }
+
+    public int getY(int slot) {
+         return yPositions[slot];
+    }
+
+    public int getHP(int slot) {
+         return hitPoints[slot];
+    }
+
+    public String getTemplateName(int slot) {
+         return templateNames[slot];
+    }
+
+    public int getBasicAttack(int slot) {
+         return basicAttack[slot];
+    }
+
+    public int getPiercingAttack(int slot) {
+         return piercingAttack[slot];
+    }
+
+    public int getRange(int slot) {
+         return range[slot];
+    }
+
+    public int getArmor(int slot) {
+         return armor[slot];
+    }
+
+    public int getSightRange(int slot) {
+         return sightRange[slot];
+    }
+
+    private static int[] toArray(List<Integer> values) {
+         int[] array = new int[values.size()];
+         for(int i = 0; i < array.length; i++) {
+              array[i] = values.get(i);
+         }
+         return array;
+    }
+
+    private static UnitTemplate findTemplate(List<UnitTemplate> templates, int templateId) {
+         for(UnitTemplate template : templates) {
+              if(template.getView().getID() == templateId) {
+                   return template;
+              }
+         }
+         return null;
+    }
+
+    private static List<Element> children(Element parent, String tagName) {
+         List<Element> children = new ArrayList<>();
+         NodeList nodes = parent.getChildNodes();
+         for(int i = 0; i < nodes.getLength(); i++) {
+              Node node = nodes.item(i);
+              if(node.getNodeType() == Node.ELEMENT_NODE && ((Element) node).getTagName().equals(tagName)) {
+                   children.add((Element) node);
+              }
+         }
+         return children;
+    }
+
+    private static int intChild(Element parent, String tagName) throws IOException {
+         List<Element> children = children(parent, tagName);
+         if(children.isEmpty()) {
+              throw new IOException("<" + parent.getTagName() + "> has no <" + tagName + ">");
+         }
+         return Integer.parseInt(children.get(0).getTextContent().trim());
+    }
+
+    private static final class TemplateRecord {
+         final int id;
+         final String name;
+         final int baseHealth;
+         final int basicAttack;
+         final int piercingAttack;
+         final int range;
+         final int armor;
+         final int sightRange;
+
+         TemplateRecord(int id, String name, int baseHealth, int basicAttack, int piercingAttack,
+                        int range, int armor, int sightRange) {
+              this.id = id;
+              this.name = name;
+              this.baseHealth = baseHealth;
+              this.basicAttack = basicAttack;
+              this.piercingAttack = piercingAttack;
+              this.range = range;
+              this.armor = armor;
+              this.sightRange = sightRange;
+         }
+    }
+
+    private static final class UnitRecord {
+         final int id;
+         final int player;
+         final int x;
+         final int y;
+         final int hp;
+         final TemplateRecord template;
+
+         UnitRecord(int id, int player, int x, int y, int hp, TemplateRecord template) {
+              this.id = id;
+              this.player = player;
+              this.x = x;
+              this.y = y;
+              this.hp = hp;
+              this.template = template;
+         }
+    }
+}
@@ -0,0 +1,36 @@
+package edu.cwru.sepia.simulation;
+
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.StateCreator;
+
+/**
+ * A StateCreator that resets from a pre-parsed ScenarioMap.
+ *
+ * SEPIA's own creators rebuild the initial state from scratch on every episode: XmlStateCreator converts the
+ * whole XML binding again and the RawStateCreator returned by State.getStateCreator deserializes a Java
+ * serialized copy of the state. This one builds the state straight from the map's flat arrays, the map is
+ * parsed once and shared read-only. The state holds the map's players, templates and units, everything the
+ * footman maps use, see ScenarioMap.createState.
+ */
+public class ScenarioStateCreator implements StateCreator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ScenarioMap map;
+
+    public ScenarioStateCreator(ScenarioMap map) {
+        this.map = map;
+    }
+
+    /**
+     * @return The map states are created from, its unit rosters can be handed to UnitRosterAware agents
+     */
+    public ScenarioMap getMap() {
+        return map;
+    }
+
+    @Override
+    public State createState() {
+        return map.createState();
+    }
+}
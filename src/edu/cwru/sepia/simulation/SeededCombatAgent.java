@@ -0,0 +1,147 @@
+package edu.cwru.sepia.simulation;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.action.ActionFeedback;
+import edu.cwru.sepia.action.ActionResult;
+import edu.cwru.sepia.agent.Agent;
+import edu.cwru.sepia.environment.model.history.DeathLog;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Unit;
+import edu.cwru.sepia.util.DistanceMetrics;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The targeting of the enemy combatAgent with its own seeded Random in place of Math.random, so simulated
+ * episodes can be replayed.
+ *
+ * Each turn orders on dead targets and orders that completed or failed are dropped. An idle unit whose nearest
+ * enemy is closer than its sight range attacks that enemy with probability 0.75 and a uniformly random enemy
+ * otherwise. Units that see no enemy wait. All standing orders are re-issued every turn.
+ */
+public class SeededCombatAgent extends Agent {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Random random;
+    private Map<Integer, Action> unitOrders;
+    private int enemyPlayer = -1;
+    private int lastStepMovedIn = -1;
+
+    public SeededCombatAgent(int playernum, long seed) {
+         super(playernum);
+         random = new Random(seed);
+    }
+
+    /**
+     * @param args Optional seed, 0 by default
+     */
+    public SeededCombatAgent(int playernum, String[] args) {
+         this(playernum, args != null && args.length >= 1 ? Long.parseLong(args[0]) : 0);
+    }
+
+    @Override
+    public Map<Integer, Action> initialStep(State.StateView stateView, History.HistoryView historyView) {
+         for(Integer player : stateView.getPlayerNumbers()) {
+              if(player != playernum) {
+                   enemyPlayer = player;
+              }
+         }
+         unitOrders = new HashMap<>();
+         for(Integer unitId : stateView.getUnitIds(playernum)) {
+              unitOrders.put(unitId, null);
+         }
+         doAggro(stateView);
+         lastStepMovedIn = stateView.getTurnNumber();
+         return getAction();
+    }
+
+    @Override
+    public Map<Integer, Action> middleStep(State.StateView stateView, History.HistoryView historyView) {
+         if(lastStepMovedIn < stateView.getTurnNumber()) {
+              int lastTurn = stateView.getTurnNumber() - 1;
+              for(DeathLog death : historyView.getDeathLogs(lastTurn)) {
+                   if(death.getController() == playernum) {
+                        unitOrders.remove(death.getDeadUnitID());
+                   }
+                   for(Map.Entry<Integer, Action> order : unitOrders.entrySet()) {
+                        if(order.getValue() != null
+                                  && order.getValue().equals(Action.createCompoundAttack(order.getKey(), death.getDeadUnitID()))) {
+                             order.setValue(null);
+                        }
+                   }
+              }
+              for(ActionResult result : historyView.getCommandFeedback(playernum, lastTurn).values()) {
+                   if(result.getFeedback() != ActionFeedback.INCOMPLETE) {
+                        int unitId = result.getAction().getUnitId();
+                        if(result.getAction().equals(unitOrders.get(unitId))) {
+                             unitOrders.put(unitId, null);
+                        }
+                   }
+              }
+              doAggro(stateView);
+              lastStepMovedIn = stateView.getTurnNumber();
+         }
+         return getAction();
+    }
+
+    @Override
+    public void terminalStep(State.StateView stateView, History.HistoryView historyView) {
+         lastStepMovedIn = stateView.getTurnNumber();
+    }
+
+    private void doAggro(State.StateView stateView) {
+         List<Integer> enemies = stateView.getUnitIds(enemyPlayer);
+         for(Map.Entry<Integer, Action> order : unitOrders.entrySet()) {
+              if(order.getValue() != null) {
+                   continue;
+              }
+              Unit.UnitView unit = stateView.getUnit(order.getKey());
+              int nearest = -1;
+              int nearestDistance = Integer.MAX_VALUE;
+              for(Integer enemyId : enemies) {
+                   Unit.UnitView enemy = stateView.getUnit(enemyId);
+                   int distance = DistanceMetrics.chebyshevDistance(unit.getXPosition(), unit.getYPosition(),
+                             enemy.getXPosition(), enemy.getYPosition());
+                   if(distance < nearestDistance) {
+                        nearestDistance = distance;
+                        nearest = enemyId;
+                   }
+              }
+              if(nearest >= 0 && nearestDistance < unit.getTemplateView().getSightRange()) {
+                   if(random.nextDouble() < 0.75) {
+                        order.setValue(Action.createCompoundAttack(order.getKey(), nearest));
+                   } else {
+                        int target = enemies.get((int) Math.floor(random.nextDouble() * enemies.size()));
+                        order.setValue(Action.createCompoundAttack(order.getKey(), target));
+                   }
+              }
+         }
+    }
+
+    private Map<Integer, Action> getAction() {
+         Map<Integer, Action> actions = new HashMap<>();
+         for(Map.Entry<Integer, Action> order : unitOrders.entrySet()) {
+              if(order.getValue() != null) {
+                   actions.put(order.getKey(), order.getValue());
+              }
+         }
+         return actions;
+    }
+
+    @Override
+    public void savePlayerData(OutputStream outputStream) {
+
+    }
+
+    @Override
+    public void loadPlayerData(InputStream inputStream) {
+
+    }
+}
@@ -0,0 +1,156 @@
+package edu.cwru.sepia.simulation;
+
+import edu.cwru.sepia.agent.Agent;
+import edu.cwru.sepia.agent.RLAgent;
+import edu.cwru.sepia.agent.visual.VisualAgent;
+import edu.cwru.sepia.environment.model.state.StateCreator;
+import edu.cwru.sepia.experiment.Configuration;
+import edu.cwru.sepia.experiment.ConfigurationValues;
+import edu.cwru.sepia.experiment.Runner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Trains an RLAgent on the CombatSimulator instead of SimpleModel.
+ *
+ * As a SEPIA runner it reads the map from the configured StateCreator, so any existing configuration can
+ * switch by setting RunnerClass to this class. The enemy combatAgent is swapped for a SeededCombatAgent,
+ * which plays the same way but draws from a seeded Random, and visual agents are dropped. The RLAgent runs
+ * its normal schedule, saving its best weights and printing its learning curve, and the runner stops it
+ * before the schedule would call System.exit.
+ *
+ * Configured with the Runner parameters of the XML configuration:
+ * experiment.NumEpisodes              - upper bound on episodes
+ * environment.model.TimeLimit         - last turn of an episode
+ * experiment.simulation.Seed          - seed of the damage rolls and the enemy, defaults to 12345
+ * experiment.simulation.TestThreads   - with more than 0 the RLAgent's test sessions are played on that many
+ *                                       threads by a ConcurrentEvaluator while it trains, defaults to 0
+ * experiment.simulation.HistoryWindow - with more than 0 every episode keeps only that many turns of
+ *                                       history, see HistoryWindow, defaults to 0 for SEPIA's full history.
+ *                                       It must cover RLAgent.HISTORY_TURNS.
+ *
+ * It can also run without SEPIA's XML configuration loader:
+ * java edu.cwru.sepia.simulation.SimulationRunner data/rl_5fv5f.xml [numEpisodes] [loadWeights] [seed] [testThreads] [key=value...]
+ * where the trailing key=value arguments are passed to the RLAgent as options. The history window is then
+ * set with -Dexperiment.simulation.HistoryWindow=N.
+ */
+public class SimulationRunner extends Runner {
+
+    public static final String SEED = "experiment.simulation.Seed";
+    public static final String TEST_THREADS = "experiment.simulation.TestThreads";
+    public static final String HISTORY_WINDOW = "experiment.simulation.HistoryWindow";
+
+    private final ScenarioMap map;
+    private final int timeLimit;
+    private final long seed;
+    private final int maxEpisodes;
+    private final int testThreads;
+    private final int historyWindow;
+
+    public SimulationRunner(Configuration configuration, StateCreator stateCreator, Agent[] agents) {
+        super(configuration, stateCreator, agents);
+        map = ScenarioMap.fromState(stateCreator.createState());
+        timeLimit = ConfigurationValues.MODEL_TIME_LIMIT.getIntValue(configuration);
+        seed = configuration.getInt(SEED, 12345);
+        maxEpisodes = ConfigurationValues.ENVIRONMENT_EPISODES.getIntValue(configuration);
+        testThreads = configuration.getInt(TEST_THREADS, 0);
+        historyWindow = configuration.getInt(HISTORY_WINDOW, 0);
+        if (historyWindow > 0 && historyWindow < RLAgent.HISTORY_TURNS) {
+            throw new IllegalArgumentException(HISTORY_WINDOW + " must be at least " + RLAgent.HISTORY_TURNS
+                    + ", the turns RLAgent reads back, not " + historyWindow);
+        }
+    }
+
+    @Override
+    public void run() {
+        Agent[] players = simulatedAgents(agents, seed);
+        RLAgent learner = null;
+        List<Agent> opponents = new ArrayList<>();
+        for (Agent agent : players) {
+            if (agent instanceof RLAgent) {
+                learner = (RLAgent) agent;
+            } else {
+                opponents.add(agent);
+            }
+        }
+        ConcurrentEvaluator evaluator = null;
+        if (learner != null && testThreads > 0) {
+            evaluator = new ConcurrentEvaluator(map, timeLimit, seed, testThreads,
+                    opponents.toArray(new Agent[opponents.size()]));
+            evaluator.setHistoryWindow(historyWindow);
+            learner.setTestEvaluator(evaluator);
+        }
+
+        CombatSimulator simulator = new CombatSimulator(map, timeLimit, seed);
+        simulator.setHistoryWindow(historyWindow);
+        long start = System.nanoTime();
+        int episodes = 0;
+        while (episodes < maxEpisodes && (learner == null || !learner.isFinished())) {
+            simulator.runEpisode(players);
+            episodes++;
+            if (evaluator != null) {
+                evaluator.deliverCompleted();
+            }
+        }
+        if (evaluator != null) {
+            // the agent skipped its own learning curve, the sessions were still running
+            evaluator.finish();
+            learner.printTestData(learner.getTestList());
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("Simulated %d episodes in %.1fs (%.2f episodes/s)",
+                episodes, seconds, episodes / seconds));
+    }
+
+    /**
+     * @return The agents to play in the simulator: combatAgents replaced by SeededCombatAgents and visual
+     * agents dropped, everything else unchanged
+     */
+    static Agent[] simulatedAgents(Agent[] agents, long seed) {
+        List<Agent> players = new ArrayList<>();
+        for (Agent agent : agents) {
+            if (agent instanceof VisualAgent) {
+                continue;
+            }
+            if (agent.getClass().getSimpleName().equals("combatAgent")) {
+                players.add(new SeededCombatAgent(agent.getPlayerNumber(), seed));
+            } else {
+                players.add(agent);
+            }
+        }
+        return players.toArray(new Agent[players.size()]);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: SimulationRunner <map.xml> [numEpisodes] [loadWeights] [seed] [testThreads] [key=value...]");
+            System.exit(1);
+        }
+        ScenarioMap map = ScenarioMap.load(args[0]);
+        String numEpisodes = args.length >= 2 ? args[1] : "10";
+        String loadWeights = args.length >= 3 ? args[2] : "false";
+        long seed = args.length >= 4 ? Long.parseLong(args[3]) : 12345;
+        int testThreads = args.length >= 5 ? Integer.parseInt(args[4]) : 0;
+
+        String[] agentArgs = new String[Math.max(2, args.length - 3)];
+        agentArgs[0] = numEpisodes;
+        agentArgs[1] = loadWeights;
+        for (int i = 5; i < args.length; i++) {
+            agentArgs[i - 3] = args[i];
+        }
+
+        Configuration configuration = new Configuration();
+        configuration.put(ConfigurationValues.MODEL_TIME_LIMIT.key, 100000);
+        configuration.put(ConfigurationValues.ENVIRONMENT_EPISODES.key, Integer.MAX_VALUE);
+        configuration.put(SEED, (int) seed);
+        configuration.put(TEST_THREADS, testThreads);
+        configuration.put(HISTORY_WINDOW, Integer.getInteger(HISTORY_WINDOW, 0).intValue());
+        Agent[] agents = {
+                new RLAgent(0, agentArgs),
+                new SeededCombatAgent(1, seed)
+        };
+        new SimulationRunner(configuration, new ScenarioStateCreator(map), agents).run();
+    }
+}
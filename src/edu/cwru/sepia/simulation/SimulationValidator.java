@@ -0,0 +1,217 @@
+package edu.cwru.sepia.simulation;
+
+import edu.cwru.sepia.agent.Agent;
+import edu.cwru.sepia.agent.RLAgent;
+import edu.cwru.sepia.environment.Environment;
+import edu.cwru.sepia.environment.model.SimpleModel;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.StateCreator;
+import edu.cwru.sepia.experiment.Configuration;
+import edu.cwru.sepia.experiment.ConfigurationValues;
+
+import java.util.List;
+
+/**
+ * Plays the same training run in SEPIA's SimpleModel and in the CombatSimulator, compares the outcomes and
+ * passes or fails.
+ *
+ * Every run gets a fresh RLAgent with the same seed and plays the same number of episodes. Two checks decide:
+ *
+ * same agents  - SimpleModel and the simulator both play against SeededCombatAgent. The simulator follows
+ *                SimpleModel's rules and damage rolls, so the two runs must agree exactly: win rate, episode
+ *                length, survivors and test reward. Any difference is a rule the simulator got wrong.
+ * combatAgent  - SimpleModel plays against the real combatAgent, when it is on the classpath. It draws from
+ *                Math.random, so its games can not be replayed and only the statistics are compared: the win
+ *                rate and the mean episode length must be within TOLERANCE standard errors of the simulator's.
+ *
+ * The report lists, per run, the learner's win rate, mean episode length, mean survivors of both players, the
+ * mean test session reward and episodes per second. Both engines play the run once untimed before the
+ * measured runs, so the speedup compares JIT-compiled code. It is the speedup of a whole training run: the
+ * RLAgent costs the same in both engines, so it stays well below the engine's own. The exit status is 1 if a
+ * check failed.
+ *
+ * java edu.cwru.sepia.simulation.SimulationValidator data/rl_5fv5f.xml [episodes] [seed]
+ */
+public class SimulationValidator {
+
+    private static final int TIME_LIMIT = 100000;
+    /**
+     * Standard errors the combatAgent run may differ from the simulator by. The standard errors treat episodes
+     * as independent, which the episodes of one training run are not, so the bound is wider than the usual 3.
+     */
+    public static final double TOLERANCE = 4;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: SimulationValidator <map.xml> [episodes] [seed]");
+            System.exit(1);
+        }
+        ScenarioMap map = ScenarioMap.load(args[0]);
+        int episodes = args.length >= 2 ? Integer.parseInt(args[1]) : 100;
+        long seed = args.length >= 3 ? Long.parseLong(args[2]) : 12345;
+
+        runSepia(map, episodes, seed, new SeededCombatAgent(1, seed));
+        runSimulator(map, episodes, seed);
+        Statistics sepia = runSepia(map, episodes, seed, new SeededCombatAgent(1, seed));
+        Statistics simulated = runSimulator(map, episodes, seed);
+        Agent combatAgent = combatAgent();
+        Statistics original = combatAgent != null ? runSepia(map, episodes, seed, combatAgent) : null;
+
+        System.out.println(String.format("%-12s %8s %10s %10s %10s %12s %12s", "engine", "episodes", "win rate",
+                "turns", "left p0", "left p1", "test reward"));
+        sepia.print("SimpleModel");
+        simulated.print("Simulator");
+        if (original != null) {
+            original.print("combatAgent");
+        }
+        System.out.println(String.format("Simulator speedup: %.1fx", simulated.episodesPerSecond() / sepia.episodesPerSecond()));
+
+        boolean passed = true;
+        if (!simulated.sameGamesAs(sepia)) {
+            System.out.println("FAIL same agents: the simulator and SimpleModel played different games");
+            passed = false;
+        }
+        if (original == null) {
+            System.out.println("combatAgent is not on the classpath, only the same agents check ran");
+        } else {
+            passed &= withinTolerance("win rate", simulated.winRate(), original.winRate(),
+                    Math.sqrt(simulated.winRateVariance() / simulated.episodes + original.winRateVariance() / original.episodes));
+            passed &= withinTolerance("turns", simulated.meanTurns(), original.meanTurns(),
+                    Math.sqrt(simulated.turnsVariance() / simulated.episodes + original.turnsVariance() / original.episodes));
+        }
+        System.out.println(passed ? "PASS" : "FAIL");
+        // SEPIA's agent threads are not daemons
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static boolean withinTolerance(String statistic, double simulated, double original, double standardError) {
+        double difference = Math.abs(simulated - original);
+        boolean within = difference <= TOLERANCE * standardError;
+        System.out.println(String.format("%s combatAgent %s: simulator %.3f, combatAgent %.3f, difference %.3f, allowed %.3f",
+                within ? "ok  " : "FAIL", statistic, simulated, original, difference, TOLERANCE * standardError));
+        return within;
+    }
+
+    private static Statistics runSepia(ScenarioMap map, int episodes, long seed, Agent enemy) throws Exception {
+        Configuration configuration = new Configuration();
+        configuration.put(ConfigurationValues.MODEL_CONQUEST.key, true);
+        configuration.put(ConfigurationValues.MODEL_TIME_LIMIT.key, TIME_LIMIT);
+        State initial = map.createState();
+        StateCreator stateCreator = initial.getStateCreator();
+        RLAgent learner = learner(seed);
+        Agent[] agents = {learner, enemy};
+        SimpleModel model = new SimpleModel(initial, (int) seed, stateCreator, configuration);
+        Environment environment = new Environment(agents, model, (int) seed);
+
+        Statistics statistics = new Statistics();
+        long start = System.nanoTime();
+        for (int episode = 0; episode < episodes && !learner.isFinished(); episode++) {
+            environment.runEpisode();
+            State state = model.getState();
+            statistics.add(state.getUnits(0).size(), state.getUnits(1).size(), state.getTurnNumber());
+        }
+        statistics.finish(System.nanoTime() - start, learner.getTestList());
+        return statistics;
+    }
+
+    private static Statistics runSimulator(ScenarioMap map, int episodes, long seed) {
+        RLAgent learner = learner(seed);
+        Agent[] agents = {learner, new SeededCombatAgent(1, seed)};
+        CombatSimulator simulator = new CombatSimulator(map, TIME_LIMIT, seed);
+
+        Statistics statistics = new Statistics();
+        long start = System.nanoTime();
+        for (int episode = 0; episode < episodes && !learner.isFinished(); episode++) {
+            CombatSimulator.Outcome outcome = simulator.runEpisode(agents);
+            statistics.add(outcome.unitsLeft[0], outcome.unitsLeft[1], outcome.turns);
+        }
+        statistics.finish(System.nanoTime() - start, learner.getTestList());
+        return statistics;
+    }
+
+    /**
+     * A learner that reports to nobody, so validation never overwrites saved weights or exits.
+     */
+    private static RLAgent learner(long seed) {
+        RLAgent learner = new RLAgent(0, new String[]{Integer.toString(Integer.MAX_VALUE / 2), "false"});
+        learner.random.setSeed(seed);
+        learner.setTrainingListener((agent, session, averageReward) -> { });
+        return learner;
+    }
+
+    /**
+     * @return SEPIA's combatAgent for player 1, null if it is not on the classpath
+     */
+    private static Agent combatAgent() {
+        try {
+            Class<?> combatAgent = Class.forName("combatAgent");
+            return (Agent) combatAgent.getConstructor(int.class).newInstance(1);
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+    private static class Statistics {
+        int episodes;
+        int wins;
+        long turns;
+        long turnsSquared;
+        long leftMine;
+        long leftEnemy;
+        double seconds;
+        double testReward;
+
+        void add(int mine, int enemy, int episodeTurns) {
+            episodes++;
+            if (mine > 0 && enemy == 0) {
+                wins++;
+            }
+            turns += episodeTurns;
+            turnsSquared += (long) episodeTurns * episodeTurns;
+            leftMine += mine;
+            leftEnemy += enemy;
+        }
+
+        void finish(long nanos, List<Double> testList) {
+            seconds = nanos / 1e9;
+            for (double reward : testList) {
+                testReward += reward / testList.size();
+            }
+        }
+
+        double episodesPerSecond() {
+            return episodes / seconds;
+        }
+
+        double winRate() {
+            return (double) wins / episodes;
+        }
+
+        double winRateVariance() {
+            return winRate() * (1 - winRate());
+        }
+
+        double meanTurns() {
+            return (double) turns / episodes;
+        }
+
+        double turnsVariance() {
+            return (double) turnsSquared / episodes - meanTurns() * meanTurns();
+        }
+
+        /**
+         * @return true if both runs ended every statistic but the timing the same
+         */
+        boolean sameGamesAs(Statistics other) {
+            return episodes == other.episodes && wins == other.wins && turns == other.turns
+                    && turnsSquared == other.turnsSquared && leftMine == other.leftMine
+                    && leftEnemy == other.leftEnemy && testReward == other.testReward;
+        }
+
+        void print(String engine) {
+            System.out.println(String.format("%-12s %8d %10.3f %10.1f %10.2f %12.2f %12.2f   %.1f episodes/s", engine, episodes,
+                    winRate(), meanTurns(), (double) leftMine / episodes,
+                    (double) leftEnemy / episodes, testReward, episodesPerSecond()));
+        }
+    }
+}